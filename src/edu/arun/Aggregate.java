@@ -0,0 +1,366 @@
+package edu.arun;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * COUNT, SUM, MIN, MAX or AVG of a column, worked out while the rows are
+ * scanned. The running values are kept in primitives and fed a batch at a
+ * time from the column vectors, so no row becomes a Column. NULLs are
+ * skipped. A scan split across threads aggregates into a {@link #copy()} per
+ * thread, the copies are then folded together with {@link #merge(Aggregate)}.
+ * <p>
+ * Under GROUP BY an aggregate keeps the values of every group side by side,
+ * in slots of the same primitive arrays, addressed by group number.
+ */
+class Aggregate {
+
+	static final int COUNT = 0, SUM = 1, MIN = 2, MAX = 3, AVG = 4;
+
+	private static final String[] NAMES = { "COUNT", "SUM", "MIN", "MAX", "AVG" };
+
+	final int function;
+
+	/**
+	 * Ordinal position of the column, 0 for COUNT(*).
+	 */
+	final int position;
+
+	/**
+	 * Data type of the column, the type of MIN and MAX.
+	 */
+	final String type;
+
+	private final boolean real;
+
+	private final boolean text;
+
+	/**
+	 * Number of values of each group, NULLs left out.
+	 */
+	private long[] counts = new long[1];
+
+	/**
+	 * The sum, or the smallest or largest value so far, of each group.
+	 * Integers, dates and datetimes are kept in longs, REAL and DOUBLE values
+	 * in doubles and TEXT in texts.
+	 */
+	private long[] longs = new long[1];
+
+	private double[] doubles = new double[1];
+
+	private byte[][] texts = new byte[1][];
+
+	Aggregate(int function, int position, String type) {
+		this.function = function;
+		this.position = position;
+		this.type = type;
+		real = type.equals("REAL") || type.equals("DOUBLE");
+		text = type.equals("TEXT");
+	}
+
+	/**
+	 * The function of the given name, or -1 if it is not one.
+	 */
+	static int function(String name) {
+		for (int i = 0; i < NAMES.length; i++)
+			if (NAMES[i].equalsIgnoreCase(name))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * True if the function can take a column of the given type. SUM and AVG
+	 * only take numbers.
+	 */
+	static boolean accepts(int function, String type) {
+		return (function != SUM && function != AVG)
+				|| !(type.equals("TEXT") || type.equals("DATE") || type.equals("DATETIME"));
+	}
+
+	/**
+	 * An empty aggregate of the same function and column.
+	 */
+	Aggregate copy() {
+		return new Aggregate(function, position, type);
+	}
+
+	static Aggregate[] copy(Aggregate[] aggregates) {
+		Aggregate[] copies = new Aggregate[aggregates.length];
+		for (int i = 0; i < aggregates.length; i++)
+			copies[i] = aggregates[i].copy();
+		return copies;
+	}
+
+	/**
+	 * Make room for groups 0 to <code>groups</code> - 1.
+	 */
+	void ensureGroups(int groups) {
+		if (groups <= counts.length)
+			return;
+		int capacity = Math.max(groups, 2 * counts.length);
+		counts = Arrays.copyOf(counts, capacity);
+		longs = Arrays.copyOf(longs, capacity);
+		doubles = Arrays.copyOf(doubles, capacity);
+		texts = Arrays.copyOf(texts, capacity);
+	}
+
+	/**
+	 * Forget the values of every group.
+	 */
+	void clear() {
+		Arrays.fill(counts, 0);
+		Arrays.fill(longs, 0);
+		Arrays.fill(doubles, 0);
+		Arrays.fill(texts, null);
+	}
+
+	/**
+	 * Add the values of the rows selected in the batch.
+	 */
+	void add(Batch batch) {
+		add(batch, null);
+	}
+
+	/**
+	 * Add the values of the rows selected in the batch, the k-th of them to
+	 * the group <code>groups[k]</code>, or all of them to the only group if
+	 * <code>groups</code> is null.
+	 */
+	void add(Batch batch, int[] groups) {
+		int[] selection = batch.selection;
+		int selected = batch.selected;
+		if (position == 0) {
+			if (groups == null)
+				counts[0] += selected;
+			else
+				for (int k = 0; k < selected; k++)
+					counts[groups[k]]++;
+			return;
+		}
+		if (position == 1) {
+			for (int k = 0; k < selected; k++)
+				addLong(groups == null ? 0 : groups[k], batch.rowids[selection[k]]);
+			return;
+		}
+		Batch.ColumnVector vector = batch.vector(position);
+		boolean[] nulls = vector.nulls;
+		if (text) {
+			for (int k = 0; k < selected; k++) {
+				int i = selection[k];
+				if (!nulls[i])
+					addText(groups == null ? 0 : groups[k], vector.text, vector.starts[i], vector.lengths[i]);
+			}
+		} else if (real) {
+			double[] values = vector.doubles;
+			for (int k = 0; k < selected; k++) {
+				int i = selection[k];
+				if (!nulls[i])
+					addDouble(groups == null ? 0 : groups[k], values[i]);
+			}
+		} else {
+			long[] values = vector.longs;
+			for (int k = 0; k < selected; k++) {
+				int i = selection[k];
+				if (!nulls[i])
+					addLong(groups == null ? 0 : groups[k], values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Add the value of one row.
+	 */
+	void add(RowView row) {
+		add(row, 0);
+	}
+
+	/**
+	 * Add the value of one row to the group.
+	 */
+	void add(RowView row, int group) {
+		if (position == 0)
+			counts[group]++;
+		else if (row.isNull(position))
+			return;
+		else if (text) {
+			byte[] bytes = row.getBytes(position);
+			addText(group, bytes, 0, bytes.length);
+		} else if (real)
+			addDouble(group, row.getDouble(position));
+		else
+			addLong(group, row.getLong(position));
+	}
+
+	private void addLong(int group, long value) {
+		long count = ++counts[group];
+		switch (function) {
+		case SUM:
+		case AVG:
+			longs[group] += value;
+			break;
+		case MIN:
+			if (count == 1 || value < longs[group])
+				longs[group] = value;
+			break;
+		case MAX:
+			if (count == 1 || value > longs[group])
+				longs[group] = value;
+			break;
+		}
+	}
+
+	private void addDouble(int group, double value) {
+		long count = ++counts[group];
+		switch (function) {
+		case SUM:
+		case AVG:
+			doubles[group] += value;
+			break;
+		case MIN:
+			if (count == 1 || value < doubles[group])
+				doubles[group] = value;
+			break;
+		case MAX:
+			if (count == 1 || value > doubles[group])
+				doubles[group] = value;
+			break;
+		}
+	}
+
+	// TEXT compares the way WHERE compares it, without regard to case
+	private void addText(int group, byte[] bytes, int start, int length) {
+		long count = ++counts[group];
+		if (function != MIN && function != MAX)
+			return;
+		int comparison = count == 1 ? 0 : compareText(bytes, start, length, texts[group]);
+		if (count == 1 || (function == MIN ? comparison < 0 : comparison > 0))
+			texts[group] = Arrays.copyOfRange(bytes, start, start + length);
+	}
+
+	private static int compareText(byte[] bytes, int start, int length, byte[] other) {
+		int n = Math.min(length, other.length);
+		for (int i = 0; i < n; i++) {
+			int c = RowView.lower(bytes[start + i]) - RowView.lower(other[i]);
+			if (c != 0)
+				return c;
+		}
+		return length - other.length;
+	}
+
+	/**
+	 * Fold in the values another copy of this aggregate was given.
+	 */
+	void merge(Aggregate other) {
+		combine(0, other.counts[0], other.longs[0], other.doubles[0], other.texts[0]);
+	}
+
+	// Fold the values of another part of the group into it
+	private void combine(int group, long count, long longValue, double doubleValue, byte[] textValue) {
+		if (count == 0)
+			return;
+		if (counts[group] == 0) {
+			longs[group] = longValue;
+			doubles[group] = doubleValue;
+			texts[group] = textValue;
+		} else if (function == SUM || function == AVG) {
+			longs[group] += longValue;
+			doubles[group] += doubleValue;
+		} else if (function == MIN || function == MAX) {
+			int sign = function == MIN ? -1 : 1;
+			if (text) {
+				if (Integer.signum(compareText(textValue, 0, textValue.length, texts[group])) == sign)
+					texts[group] = textValue;
+			} else if (real) {
+				if (Integer.signum(Double.compare(doubleValue, doubles[group])) == sign)
+					doubles[group] = doubleValue;
+			} else if (Integer.signum(Long.compare(longValue, longs[group])) == sign)
+				longs[group] = longValue;
+		}
+		counts[group] += count;
+	}
+
+	/**
+	 * Write the values of the group, to be read back by
+	 * {@link #read(int, DataInput)}.
+	 */
+	void write(int group, DataOutput out) throws IOException {
+		out.writeLong(counts[group]);
+		out.writeLong(longs[group]);
+		out.writeDouble(doubles[group]);
+		byte[] textValue = texts[group];
+		out.writeInt(textValue == null ? -1 : textValue.length);
+		if (textValue != null)
+			out.write(textValue);
+	}
+
+	/**
+	 * Read values written by {@link #write(int, DataOutput)} and fold them
+	 * into the group.
+	 */
+	void read(int group, DataInput in) throws IOException {
+		long count = in.readLong();
+		long longValue = in.readLong();
+		double doubleValue = in.readDouble();
+		int length = in.readInt();
+		byte[] textValue = null;
+		if (length >= 0) {
+			textValue = new byte[length];
+			in.readFully(textValue);
+		}
+		combine(group, count, longValue, doubleValue, textValue);
+	}
+
+	/**
+	 * The data type of the result.
+	 */
+	String resultType() {
+		switch (function) {
+		case COUNT:
+			return "BIGINT";
+		case SUM:
+			return real ? "DOUBLE" : "BIGINT";
+		case AVG:
+			return "DOUBLE";
+		default:
+			return type;
+		}
+	}
+
+	/**
+	 * The result as a Column. Only COUNT has a value when there were no
+	 * values, the others are NULL.
+	 */
+	Column result() {
+		return result(0);
+	}
+
+	/**
+	 * The result of the group as a Column.
+	 */
+	Column result(int group) {
+		long count = counts[group];
+		String value;
+		if (function == COUNT)
+			value = String.valueOf(count);
+		else if (count == 0)
+			value = "NULL";
+		else if (function == SUM)
+			value = real ? String.valueOf(doubles[group]) : String.valueOf(longs[group]);
+		else if (function == AVG)
+			value = String.valueOf(real ? doubles[group] / count : (double) longs[group] / count);
+		else if (text)
+			value = new String(texts[group]);
+		else if (real)
+			value = type.equals("REAL") ? String.valueOf((float) doubles[group]) : String.valueOf(doubles[group]);
+		else if (type.equals("DATE"))
+			value = RowView.dateString(longs[group]);
+		else if (type.equals("DATETIME"))
+			value = RowView.dateTimeString(longs[group]);
+		else
+			value = String.valueOf(longs[group]);
+		return new Column(value, resultType(), "", "N");
+	}
+}
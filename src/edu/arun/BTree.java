@@ -2,37 +2,119 @@ package edu.arun;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
-import java.math.BigDecimal;
-import java.time.Instant;
-import java.time.LocalDate;
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * A table file organised as a B+tree keyed on rowid.
+ * <p>
+ * Page 0 of the file holds the {@link FileHeader}, which also records the
+ * rightmost leaf, the number of pages and rows and the highest rowid, so
+ * that appending a row and counting rows need no scan. The public methods
+ * that change the tree write the header back before they return. Every
+ * other page starts
+ * with a 12 byte page header: page type, an unused byte, the number of cells
+ * (unsigned short), the start of the cell content area and the right pointer
+ * (both int), followed by one int offset per cell. Offsets are relative to
+ * the start of the page and pages refer to each other by page number, so
+ * the size of a file is only bounded by the 32-bit page number.
+ * <p>
+ * Pages released when leaves are merged are chained in a free page list,
+ * through their right pointer, and reused before the file is extended.
+ */
 class BTree {
 
 	/**
-	 * Filepointer
+	 * Filepointer, page I/O goes through the buffer pool or a memory mapping
 	 */
-	public RandomAccessFile filePointer;
+	public PageFile filePointer;
 
 	private long pageSize;
 
-	private boolean isOverflow = false;
+	FileHeader fileHeader;
 
-	long startOffset = 0, endOffset = 0;;
+	static final byte INTERIOR_PAGE = 5;
+
+	static final byte LEAF_PAGE = 13;
+
+	static final byte FREE_PAGE = 1;
+
+	/**
+	 * Version of the on-disk format written by this code.
+	 */
+	static final int FORMAT_VERSION = 2;
+
+	static final byte[] MAGIC = "DavisBase table\0".getBytes();
+
+	static final int HEADER_PAGE = 0;
+
+	/**
+	 * The root never moves, when it splits its content is pushed down.
+	 */
+	static final int ROOT_PAGE = 1;
+
+	/**
+	 * Size of the page header in front of the cell offset array.
+	 */
+	static final int PAGE_HEADER_SIZE = 12;
+
+	static final int MIN_PAGE_SIZE = 512;
+
+	static final int MAX_PAGE_SIZE = 64 * 1024;
+
+	/**
+	 * Percentage of each page filled by the bulk loader unless told
+	 * otherwise.
+	 */
+	static final int DEFAULT_FILL_FACTOR = 100;
+
+	/**
+	 * Rows per {@link Batch} of a scan, 0 to scan row at a time.
+	 */
+	private static int batchSize = Batch.DEFAULT_SIZE;
+
+	/**
+	 * Threads an aggregate over many leaves is split across.
+	 */
+	private static int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Fewest leaves given to each thread of an aggregate, a smaller table is
+	 * aggregated on the calling thread.
+	 */
+	static final int LEAVES_PER_THREAD = 64;
 
 	static Map<Integer, SerialTypeCode> serialTypeCodesMap;
 
+	// Lengths of the values of the fixed size serial type codes, looked up
+	// for every column a scan skips
+	private static final int[] dataLengths = new int[13];
+
 	static {
 		Map<Integer, SerialTypeCode> aMap = new HashMap<>();
 		aMap.put(0, new SerialTypeCode(0, 1));
@@ -49,255 +131,794 @@ class BTree {
 		aMap.put(11, new SerialTypeCode(11, 8));
 		aMap.put(12, new SerialTypeCode(12, 0));
 		serialTypeCodesMap = Collections.unmodifiableMap(aMap);
+		for (SerialTypeCode code : aMap.values())
+			dataLengths[code.typeCode] = code.length;
 	}
 
 	/**
+	 * Open the table file. An existing file keeps the page size recorded in
+	 * its header, <code>pageSize</code> is only used for a new file.
 	 *
 	 * @throws IOException
 	 */
 	public BTree(String tablename, long pageSize) throws IOException {
-		filePointer = new RandomAccessFile("data\\" + tablename + ".tbl", "rw");
+		String path = "data\\" + tablename + ".tbl";
+		// Replays the log of the database if it was not shut down cleanly
+		WriteAheadLog.forFile(path);
+		FileHeader fileHeader = readFileHeader(path);
+		if (fileHeader != null)
+			pageSize = fileHeader.pageSize;
+		filePointer = PageFile.open(path, pageSize);
 		this.pageSize = pageSize;
+		if (fileHeader == null)
+			clear();
+		else {
+			this.fileHeader = fileHeader;
+			if (fileHeader.formatVersion < FORMAT_VERSION)
+				upgradeFileHeader();
+		}
+	}
+
+	static boolean isValidPageSize(long pageSize) {
+		return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && Long.bitCount(pageSize) == 1;
+	}
+
+	// Read the header of an existing table file before it is opened, since
+	// the page size has to be known to open it. The header page may only be
+	// in the buffer pool yet. A header of zeros was never committed, the
+	// file is treated as new.
+	private static FileHeader readFileHeader(String path) throws IOException {
+		byte[] page = BufferPool.getInstance().peek(path, HEADER_PAGE);
+		if (page == null) {
+			if (!new File(path).exists())
+				return null;
+			try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+				page = new byte[(int) Math.min(file.length(), MIN_PAGE_SIZE)];
+				file.readFully(page);
+			}
+		}
+		if (page.length == 0 || page[0] == 0)
+			return null;
+		if (page.length < MAGIC.length + 16 || !Arrays.equals(Arrays.copyOf(page, MAGIC.length), MAGIC))
+			throw new IOException("File " + path + " is not a DavisBase table file");
+		ByteBuffer buffer = ByteBuffer.wrap(page, MAGIC.length, page.length - MAGIC.length);
+		FileHeader header = new FileHeader();
+		header.formatVersion = buffer.getInt();
+		header.pageSize = buffer.getInt();
+		header.rootPage = buffer.getInt();
+		header.freeListHead = buffer.getInt();
+		if (header.formatVersion >= 2) {
+			header.rightmostLeaf = buffer.getInt();
+			header.pageCount = buffer.getInt();
+			header.rowCount = buffer.getLong();
+			header.maxRowid = buffer.getInt();
+		}
+		if (header.formatVersion > FORMAT_VERSION)
+			throw new IOException("File " + path + " uses format version " + header.formatVersion
+					+ ", this version of DavisBase reads up to version " + FORMAT_VERSION);
+		if (!isValidPageSize(header.pageSize))
+			throw new IOException("File " + path + " has an invalid page size " + header.pageSize);
+		return header;
+	}
+
+	private void writeFileHeader() throws IOException {
+		filePointer.seek(0);
+		filePointer.write(MAGIC);
+		filePointer.writeInt(fileHeader.formatVersion);
+		filePointer.writeInt(fileHeader.pageSize);
+		filePointer.writeInt(fileHeader.rootPage);
+		filePointer.writeInt(fileHeader.freeListHead);
+		filePointer.writeInt(fileHeader.rightmostLeaf);
+		filePointer.writeInt(fileHeader.pageCount);
+		filePointer.writeLong(fileHeader.rowCount);
+		filePointer.writeInt(fileHeader.maxRowid);
+	}
+
+	// Version 1 files only record the root and the free list. Walk the leaf
+	// chain once to fill in the rest of the header.
+	private void upgradeFileHeader() throws IOException {
+		fileHeader.formatVersion = FORMAT_VERSION;
+		fileHeader.pageCount = (int) (filePointer.length() / pageSize);
+		fileHeader.rightmostLeaf = getLastLeaf();
+		fileHeader.rowCount = 0;
+		fileHeader.maxRowid = 0;
+		if (!isEmpty()) {
+			int pageNumber = getFirstLeaf();
+			PageHeader pageHeader;
+			do {
+				pageHeader = getHeader(pageNumber);
+				fileHeader.rowCount += pageHeader.numberOfCells;
+				if (pageHeader.numberOfCells > 0)
+					fileHeader.maxRowid = Math.max(fileHeader.maxRowid,
+							getCellKey(pageHeader, pageHeader.numberOfCells - 1));
+				pageNumber = pageHeader.rightPointer;
+			} while (pageNumber != -1);
+		}
+		writeFileHeader();
+	}
+
+	/**
+	 * Number of rows in the table, kept in the file header.
+	 */
+	public long getRowCount() {
+		return fileHeader.rowCount;
+	}
+
+	/**
+	 * Number of pages in the file, kept in the file header.
+	 */
+	public int getPageCount() {
+		return fileHeader.pageCount;
+	}
+
+	public long getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Remove every row, leaving a file with only the header page.
+	 */
+	public void clear() throws IOException {
+		filePointer.setLength(0);
+		filePointer.setLength(pageSize);
+		fileHeader = new FileHeader();
+		fileHeader.formatVersion = FORMAT_VERSION;
+		fileHeader.pageSize = (int) pageSize;
+		fileHeader.rootPage = ROOT_PAGE;
+		fileHeader.freeListHead = 0;
+		fileHeader.rightmostLeaf = ROOT_PAGE;
+		fileHeader.pageCount = 1;
+		writeFileHeader();
+	}
+
+	public boolean isEmpty() throws IOException {
+		// A root of zeros was never written, the file was only grown past it
+		PageHeader root = getHeader(fileHeader.rootPage);
+		return root == null || root.pageType == 0;
+	}
+
+	// Byte position of the given offset in the given page
+	private long position(int pageNumber, int offset) {
+		return pageNumber * pageSize + offset;
 	}
 
 	/**
-	 * Insert an entry in the BTree.
+	 * Insert an entry in the BTree. The target leaf is found by walking down
+	 * from the root page; full pages are split and the split is propagated
+	 * up through the interior pages.
 	 */
 	public int insert(final int key, final Payload payload, final short payloadLength) throws IOException {
-		long pageLocation = 0;
-		PageHeader pageHeader = getHeader(pageLocation);
-		if (pageHeader == null) {
-			// BTree is currently empty, create a new root BTreePage
-			insertNewLeafPage(payloadLength, key, payload);
-		} else {
+		if (!insertLeafCell(key, encodeLeafCell(key, payload)))
+			return 0;
+		fileHeader.rowCount++;
+		writeFileHeader();
+		return key;
+	}
 
-			while (pageHeader.rightPointer != -1) {
-				pageLocation = pageHeader.rightPointer;
-				pageHeader = getHeader(pageHeader.rightPointer);
+	// Insert an encoded leaf cell. Returns false if the key is already in
+	// the tree. A key above every rowid inserted so far goes at the end of
+	// the rightmost leaf without walking down from the root, unless that
+	// leaf has to be split.
+	private boolean insertLeafCell(int key, byte[] cell) throws IOException {
+		if (isEmpty()) {
+			// BTree is currently empty, create a new root BTreePage
+			insertNewLeafPage(cell);
+			fileHeader.maxRowid = key;
+			return true;
+		}
+		if (key > fileHeader.maxRowid) {
+			PageHeader last = getHeader(fileHeader.rightmostLeaf);
+			if (!fits(last, cell.length) && fitsAfterCompaction(last, cell.length))
+				last = compact(last);
+			if (fits(last, cell.length)) {
+				insertCell(last, last.numberOfCells, cell);
+				fileHeader.maxRowid = key;
+				return true;
 			}
+		}
+		LeafPath leaf = descend(key);
+		int index = findCell(leaf.pageHeader, key);
+		if (index < leaf.pageHeader.numberOfCells && getCellKey(leaf.pageHeader, index) == key) {
+			createError("ERROR: Already row with the same primary key exists");
+			return false;
+		}
+		insertIntoLeaf(leaf, index, cell);
+		fileHeader.maxRowid = Math.max(fileHeader.maxRowid, key);
+		return true;
+	}
 
-			short dataOffset = (short) (pageHeader.offset - payloadLength - 6);
+	/**
+	 * Insert a batch of rows. The rows are sorted by rowid first, so rows
+	 * that go to the same leaf are added one after the other without walking
+	 * down from the root again, and each page is only brought into the
+	 * cache once. Nothing is inserted if a value does not fit its column or
+	 * a rowid is repeated or already in the table. Returns the number of
+	 * rows inserted.
+	 */
+	public int insertBatch(List<Integer> keys, List<Payload> payloads) throws IOException {
+		// Encode every row before changing anything
+		byte[][] cells = new byte[keys.size()][];
+		for (int i = 0; i < cells.length; i++)
+			try {
+				cells[i] = encodeLeafCell(keys.get(i), payloads.get(i));
+			} catch (NumberFormatException | DateTimeException | IndexOutOfBoundsException e) {
+				createError("ERROR: Row " + (i + 1) + " has an invalid value, nothing was inserted");
+				return 0;
+			}
+		Integer[] order = new Integer[keys.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Integer.compare(keys.get(a), keys.get(b)));
 
-			// Check for overflow
-			if (pageHeader.offset - (payloadLength + 6 + 2) > pageHeader.lengthOfHeader) {
-				if (startOffset > 0 && endOffset > 0) {
-					filePointer.seek(getOffset(startOffset, endOffset));
-					filePointer.writeInt(pageHeader.offset);
-					filePointer.writeInt(key);
-				}
-				filePointer.seek(pageLocation + 8);
-				// update header
-				if (insertDataOffsetArray(pageHeader.numberOfCells, dataOffset, key)) {
-					filePointer.seek(pageLocation + 1);
-					filePointer.write(pageHeader.numberOfCells + 1);
-					filePointer.writeShort(dataOffset);
-
-					filePointer.seek(dataOffset);
-					filePointer.writeShort(payloadLength);
-					filePointer.writeInt(key);
-					filePointer.write(payload.noOfColumns);
-					printSerialTypeCodes(payload.serialTypeCodes);
-					for (Column column : payload.columnData)
-						printColumnData(column);
-				} else {
-					createError("ERROR: Already row with the same primary key exists");
-					return 0;
-				}
+		// Check every rowid before changing anything
+		LeafPath leaf = null;
+		for (int i = 0; i < order.length; i++) {
+			int key = keys.get(order[i]);
+			boolean exists = i > 0 && keys.get(order[i - 1]) == key;
+			if (!exists && !isEmpty()) {
+				if (leaf == null || !leaf.covers(key))
+					leaf = descend(key);
+				int index = findCell(leaf.pageHeader, key);
+				exists = index < leaf.pageHeader.numberOfCells && getCellKey(leaf.pageHeader, index) == key;
+			}
+			if (exists) {
+				createError("ERROR: Already row with the same primary key exists: " + key);
+				return 0;
+			}
+		}
 
-			} else {
-				// Overflow happpened. Split the page leaf page and modify
-				// Internal Page pointers
-				split(pageHeader.numberOfCells);
-				filePointer.seek(pageLocation + 4);
-				filePointer.writeInt((int) filePointer.length());
-				long newPageLocation = filePointer.length();
-				insertNewLeafPage(payloadLength, key, payload);
-				insertNewInternalPage(pageLocation, newPageLocation, key);
+		leaf = null;
+		for (int i : order) {
+			int key = keys.get(i);
+			byte[] cell = cells[i];
+			if (isEmpty()) {
+				insertNewLeafPage(cell);
+				continue;
 			}
+			if (leaf == null || !leaf.covers(key))
+				leaf = descend(key);
+			// A split changes the pages above the leaf, walk down again for
+			// the next row
+			if (!insertIntoLeaf(leaf, findCell(leaf.pageHeader, key), cell))
+				leaf = null;
+		}
+		if (order.length > 0) {
+			fileHeader.rowCount += order.length;
+			fileHeader.maxRowid = Math.max(fileHeader.maxRowid, keys.get(order[order.length - 1]));
+			writeFileHeader();
+		}
+		return order.length;
+	}
+
+	/**
+	 * A leaf, the interior pages on the way down to it and the range of
+	 * rowids it holds: greater than <code>low</code> and up to
+	 * <code>high</code>.
+	 */
+	private static class LeafPath {
+		PageHeader pageHeader;
+		LinkedList<Integer> path = new LinkedList<>();
+		long low = Long.MIN_VALUE;
+		long high = Long.MAX_VALUE;
+
+		boolean covers(int key) {
+			return key > low && key <= high;
 		}
-		return key;
 	}
 
-	// Split the overflow page and insert a new page
-	public boolean split(int n) throws IOException {
-		Payload payload;
-		short payloadLength = 0;
-		int key = 0;
-		if (isOverflow == true) {
-			// Split at the midpoint
-			for (int i = 0; i < n / 2; i++)
-				filePointer.readShort();
-			for (int i = n / 2; i < n; i++) {
-				payload = new Payload();
-				payload.noOfColumns = (byte) (n - 1);
-				payload.columnData = new LinkedList<>();
-				payloadLength = filePointer.readShort();
-				key = filePointer.readInt();
-				payload.serialTypeCodes = readSerialTypeCodes();
-				for (byte b : payload.serialTypeCodes)
-					payload.columnData.add(readData(b));
-				insert(key, payload, payloadLength);
-				modifyInternalPointers(filePointer.getFilePointer(), n);
+	// Walk down from the root to the leaf of the key, remembering the
+	// interior pages on the way and narrowing the key range at each level
+	private LeafPath descend(int key) throws IOException {
+		LeafPath leaf = new LeafPath();
+		PageHeader pageHeader = getHeader(fileHeader.rootPage);
+		while (pageHeader.pageType == INTERIOR_PAGE) {
+			leaf.path.push(pageHeader.pageNumber);
+			int index = findCell(pageHeader, key);
+			if (index > 0)
+				leaf.low = getCellKey(pageHeader, index - 1);
+			int child = pageHeader.rightPointer;
+			if (index < pageHeader.numberOfCells) {
+				leaf.high = getCellKey(pageHeader, index);
+				child = getChild(pageHeader, index);
 			}
+			pageHeader = getHeader(child);
 		}
-		return true;
+		leaf.pageHeader = pageHeader;
+		return leaf;
 	}
 
-	// Method used for modifying the pointers in the internal page
-	private void modifyInternalPointers(long point, int numberOfCells) throws IOException {
-		int n = 0;
-		while (filePointer.readShort() != point) {
-			n++;
+	// Add the cell to the leaf, splitting it if it is full. Returns false
+	// if the leaf was split.
+	private boolean insertIntoLeaf(LeafPath leaf, int index, byte[] cell) throws IOException {
+		if (!fits(leaf.pageHeader, cell.length) && fitsAfterCompaction(leaf.pageHeader, cell.length))
+			leaf.pageHeader = compact(leaf.pageHeader);
+		if (fits(leaf.pageHeader, cell.length)) {
+			insertCell(leaf.pageHeader, index, cell);
+			return true;
 		}
-		while (n <= numberOfCells) {
-			filePointer.seek(filePointer.readInt() + 8);
-			int nextOffset = filePointer.readShort();
-			filePointer.seek(filePointer.readInt() + 8 + ((n - 1) * 2));
-			filePointer.writeShort(nextOffset);
-			n++;
+		// Overflow happpened. Split the leaf page and modify the
+		// Internal Page pointers
+		split(leaf.path, leaf.pageHeader, index, cell);
+		return false;
+	}
+
+	// Return the leaf page that holds (or would hold) the key
+	int findLeaf(int key) throws IOException {
+		int pageNumber = fileHeader.rootPage;
+		PageHeader pageHeader = getHeader(pageNumber);
+		while (pageHeader != null && pageHeader.pageType == INTERIOR_PAGE) {
+			pageNumber = getChildPage(pageHeader, key);
+			pageHeader = getHeader(pageNumber);
 		}
-		modifyInternalPointers(filePointer.getFilePointer(), numberOfCells);
+		return pageNumber;
 	}
 
-	// Method used for creating a new internal page
-	private void insertNewInternalPage(long pageLocation, long newPageLocation, int key) throws IOException {
-		startOffset = filePointer.length();
-		endOffset = filePointer.length() + pageSize;
-		filePointer.setLength(filePointer.length() + pageSize);
-		PageHeader header = new PageHeader();
-		header.numberOfCells = 1;
-		header.pageType = 5;
-		header.rightPointer = (int) newPageLocation;
-		header.offset = (short) (filePointer.length() - pageLocation);
-		header.cellLocations = new short[header.numberOfCells];
-		header.cellLocations[0] = header.offset;
-		filePointer.seek(filePointer.length() - pageSize);
-		filePointer.write(header.pageType);
-		filePointer.write(header.numberOfCells);
-		filePointer.writeShort(header.offset);
-		filePointer.writeInt(header.rightPointer);
-		filePointer.writeShort(header.cellLocations[0]);
-		filePointer.seek(header.offset);
-		filePointer.writeInt((int) pageLocation);
-		filePointer.writeInt(key);
+	// Return the leftmost leaf, where the leaf chain starts
+	int getFirstLeaf() throws IOException {
+		int pageNumber = fileHeader.rootPage;
+		PageHeader pageHeader = getHeader(pageNumber);
+		while (pageHeader != null && pageHeader.pageType == INTERIOR_PAGE) {
+			pageNumber = pageHeader.numberOfCells > 0 ? getChild(pageHeader, 0) : pageHeader.rightPointer;
+			pageHeader = getHeader(pageNumber);
+		}
+		return pageNumber;
 	}
 
-	// Method used for creating a new Leaf page
-	private void insertNewLeafPage(short payloadLength, int key, Payload payload) throws IOException {
-		filePointer.setLength(filePointer.length() + pageSize);
-		PageHeader header = new PageHeader();
-		header.numberOfCells = 1;
-		header.pageType = 13;
-		header.rightPointer = -1;
-		header.offset = (short) (filePointer.length() - payloadLength - 6);
-		header.cellLocations = new short[header.numberOfCells];
-		header.cellLocations[0] = header.offset;
-		filePointer.seek(filePointer.length() - pageSize);
-		filePointer.write(header.pageType);
-		filePointer.write(header.numberOfCells);
-		filePointer.writeShort(header.offset);
-		filePointer.writeInt(header.rightPointer);
-		filePointer.writeShort(header.cellLocations[0]);
-		filePointer.seek(header.offset);
-		filePointer.writeShort(payloadLength);
-		filePointer.writeInt(key);
-		filePointer.write(payload.noOfColumns);
-		printSerialTypeCodes(payload.serialTypeCodes);
-		for (Column column : payload.columnData)
-			printColumnData(column);
-	}
-
-	// Method used for updating the offset array using binary search
-	private boolean insertDataOffsetArray(short numberOfCells, short dataOffset, int key) throws IOException {
-		long lo = filePointer.getFilePointer();
-		long endpoint = lo + (numberOfCells * 2) - 2;
-		long hi = endpoint;
-		long mid1;
-		while (lo <= hi) {
-			// Key is in a[lo..hi] or not present.
-			long mid = lo + (((mid1 = (hi - lo) / 2) % 2 == 0) ? mid1 : mid1 - 1);
-			if (key < getRowIdFromFile(mid))
-				hi = mid - 2;
-			else if (key > getRowIdFromFile(mid))
-				lo = mid + 2;
+	// Return the rightmost leaf
+	int getLastLeaf() throws IOException {
+		int pageNumber = fileHeader.rootPage;
+		PageHeader pageHeader = getHeader(pageNumber);
+		while (pageHeader != null && pageHeader.pageType == INTERIOR_PAGE) {
+			pageNumber = pageHeader.rightPointer;
+			pageHeader = getHeader(pageNumber);
+		}
+		return pageNumber;
+	}
+
+	// Child page to follow for the key: the first cell whose key is greater
+	// than or equal to it, or the right pointer if there is none.
+	private int getChildPage(PageHeader pageHeader, int key) throws IOException {
+		int index = findCell(pageHeader, key);
+		if (index < pageHeader.numberOfCells)
+			return getChild(pageHeader, index);
+		return pageHeader.rightPointer;
+	}
+
+	// Binary search for the index of the first cell whose key is greater than
+	// or equal to the given key.
+	private int findCell(PageHeader pageHeader, int key) throws IOException {
+		int lo = 0, hi = pageHeader.numberOfCells;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (getCellKey(pageHeader, mid) < key)
+				lo = mid + 1;
 			else
-				return false;
+				hi = mid;
 		}
-		short offset;
-		while (endpoint >= lo) {
-			filePointer.seek(endpoint);
-			offset = filePointer.readShort();
-			filePointer.writeShort(offset);
-			endpoint -= 2;
+		return lo;
+	}
+
+	private int getCellKey(PageHeader pageHeader, int index) throws IOException {
+		// Leaf cells start with the payload length, interior cells with the
+		// left child pointer
+		filePointer.seek(position(pageHeader.pageNumber, pageHeader.cellLocations[index])
+				+ (pageHeader.pageType == LEAF_PAGE ? 2 : 4));
+		return filePointer.readInt();
+	}
+
+	private int getChild(PageHeader pageHeader, int index) throws IOException {
+		filePointer.seek(position(pageHeader.pageNumber, pageHeader.cellLocations[index]));
+		return filePointer.readInt();
+	}
+
+	private boolean fits(PageHeader pageHeader, int cellLength) {
+		return pageHeader.offset - (cellLength + 4) >= pageHeader.lengthOfHeader;
+	}
+
+	// Write the cell in the free space of the page and add its offset to the
+	// offset array at the given index.
+	private void insertCell(PageHeader pageHeader, int index, byte[] cell) throws IOException {
+		int pageNumber = pageHeader.pageNumber;
+		int dataOffset = pageHeader.offset - cell.length;
+		filePointer.seek(position(pageNumber, dataOffset));
+		filePointer.write(cell);
+		for (int i = pageHeader.numberOfCells; i > index; i--) {
+			filePointer.seek(position(pageNumber, PAGE_HEADER_SIZE + (i * 4)));
+			filePointer.writeInt(pageHeader.cellLocations[i - 1]);
 		}
-		filePointer.seek(lo);
-		filePointer.writeShort(dataOffset);
-		return true;
+		filePointer.seek(position(pageNumber, PAGE_HEADER_SIZE + (index * 4)));
+		filePointer.writeInt(dataOffset);
+		filePointer.seek(position(pageNumber, 2));
+		filePointer.writeShort(pageHeader.numberOfCells + 1);
+		filePointer.writeInt(dataOffset);
+		// Keep the header in step with the page for further inserts
+		int[] cellLocations = new int[pageHeader.numberOfCells + 1];
+		System.arraycopy(pageHeader.cellLocations, 0, cellLocations, 0, index);
+		cellLocations[index] = dataOffset;
+		System.arraycopy(pageHeader.cellLocations, index, cellLocations, index + 1, pageHeader.numberOfCells - index);
+		pageHeader.cellLocations = cellLocations;
+		pageHeader.numberOfCells++;
+		pageHeader.offset = dataOffset;
+		pageHeader.lengthOfHeader += 4;
 	}
 
-	// Method used for deleting an offset from the offset array
-	private void deleteDataOffsetArray(short numberOfCells, short dataOffset, long pageLocation) throws IOException {
-		filePointer.seek(pageLocation + 8);
-		int n = 1;
-		short nextOffset;
-		while (filePointer.readShort() != dataOffset) {
-			n++;
+	// Split a full page while inserting the cell at the given index. The
+	// lower half stays in place, the upper half moves to a new page and the
+	// separator key is inserted in the parent page. The root never moves, so
+	// when it splits both halves move to new pages and the root becomes an
+	// interior page pointing at them.
+	private void split(LinkedList<Integer> path, PageHeader pageHeader, int index, byte[] cell) throws IOException {
+		List<byte[]> cells = readCells(pageHeader);
+		cells.add(index, cell);
+		boolean leaf = pageHeader.pageType == LEAF_PAGE;
+		boolean root = pageHeader.pageNumber == fileHeader.rootPage;
+		int mid = splitPoint(cells, index, leaf);
+
+		List<byte[]> lower = cells.subList(0, mid);
+		List<byte[]> upper = cells.subList(leaf ? mid : mid + 1, cells.size());
+		// For leaves the separator is the highest rowid of the lower half, for
+		// interior pages the middle cell moves up and its child becomes the
+		// right pointer of the lower half.
+		int separator = leaf ? readInt(lower.get(mid - 1), 2) : readInt(cells.get(mid), 4);
+		int lowerRightPointer = leaf ? -1 : readInt(cells.get(mid), 0);
+
+		int lowerPage = root ? allocatePage() : pageHeader.pageNumber;
+		int upperPage = allocatePage();
+		if (leaf && (root || pageHeader.pageNumber == fileHeader.rightmostLeaf))
+			fileHeader.rightmostLeaf = upperPage;
+		writePage(upperPage, pageHeader.pageType, upper, pageHeader.rightPointer);
+		writePage(lowerPage, pageHeader.pageType, lower, leaf ? upperPage : lowerRightPointer);
+
+		if (root) {
+			List<byte[]> rootCells = new LinkedList<>();
+			rootCells.add(encodeInteriorCell(lowerPage, separator));
+			writePage(pageHeader.pageNumber, INTERIOR_PAGE, rootCells, upperPage);
+		} else
+			insertIntoParent(path, pageHeader.pageNumber, upperPage, separator);
+	}
+
+	// Choose where to split. Appending past the last key, which is what
+	// increasing rowids do, keeps the old page full and starts a new one;
+	// otherwise the cells are divided in two halves of about the same size.
+	private int splitPoint(List<byte[]> cells, int index, boolean leaf) {
+		int n = cells.size();
+		if (index == n - 1)
+			return leaf ? n - 1 : n - 2;
+		int total = 0, half = 0, mid = 0;
+		for (byte[] c : cells)
+			total += c.length + 4;
+		while (mid < n - 1 && half + cells.get(mid).length + 4 <= total / 2)
+			half += cells.get(mid++).length + 4;
+		if (mid == 0)
+			mid = 1;
+		if (!leaf && mid >= n - 1)
+			mid = n - 2;
+		return mid;
+	}
+
+	// The page was split and its upper half moved to upperPage. Point the
+	// parent's reference at the upper half and add a cell for the lower half
+	// in front of it.
+	private void insertIntoParent(LinkedList<Integer> path, int pageNumber, int upperPage, int separator)
+			throws IOException {
+		PageHeader parent = getHeader(path.pop());
+		replaceChild(parent, pageNumber, upperPage);
+		byte[] cell = encodeInteriorCell(pageNumber, separator);
+		int index = findCell(parent, separator);
+		if (!fits(parent, cell.length) && fitsAfterCompaction(parent, cell.length))
+			parent = compact(parent);
+		if (fits(parent, cell.length))
+			insertCell(parent, index, cell);
+		else
+			split(path, parent, index, cell);
+	}
+
+	// Point the reference of an interior page to one of its children at
+	// another page
+	private void replaceChild(PageHeader parent, int oldChild, int newChild) throws IOException {
+		if (parent.rightPointer == oldChild) {
+			filePointer.seek(position(parent.pageNumber, 8));
+			filePointer.writeInt(newChild);
+			parent.rightPointer = newChild;
+		} else
+			for (int i = 0; i < parent.numberOfCells; i++)
+				if (getChild(parent, i) == oldChild) {
+					filePointer.seek(position(parent.pageNumber, parent.cellLocations[i]));
+					filePointer.writeInt(newChild);
+					break;
+				}
+	}
+
+	private int cellLength(PageHeader pageHeader, int index) throws IOException {
+		if (pageHeader.pageType != LEAF_PAGE)
+			return 8;
+		filePointer.seek(position(pageHeader.pageNumber, pageHeader.cellLocations[index]));
+		return (filePointer.readShort() & 0xffff) + 6;
+	}
+
+	// Bytes of the page taken by the header, the offset array and the live
+	// cells. Deleted cells leave holes in the content area that are not
+	// counted.
+	private int usedBytes(PageHeader pageHeader) throws IOException {
+		int used = pageHeader.lengthOfHeader;
+		for (int i = 0; i < pageHeader.numberOfCells; i++)
+			used += cellLength(pageHeader, i);
+		return used;
+	}
+
+	private boolean fitsAfterCompaction(PageHeader pageHeader, int cellLength) throws IOException {
+		return usedBytes(pageHeader) + cellLength + 4 <= pageSize;
+	}
+
+	// Rewrite the page with its cells packed at the end, reclaiming the space
+	// of deleted cells. Returns the new header of the page.
+	private PageHeader compact(PageHeader pageHeader) throws IOException {
+		writePage(pageHeader.pageNumber, pageHeader.pageType, readCells(pageHeader), pageHeader.rightPointer);
+		return getHeader(pageHeader.pageNumber);
+	}
+
+	/**
+	 * Merge the leaf that holds the key with its neighbour under the same
+	 * parent when it is less than half full and both fit in one page. The
+	 * leaf on the right is released to the free list. An interior page left
+	 * with a single child is merged with its neighbour, see
+	 * {@link #mergeSingleChildPage(LinkedList)}.
+	 */
+	private void mergeLeaf(int key) throws IOException {
+		LeafPath leaf = descend(key);
+		if (leaf.path.isEmpty() || usedBytes(leaf.pageHeader) >= pageSize / 2)
+			return;
+		PageHeader parent = getHeader(leaf.path.peek());
+		int n = parent.numberOfCells;
+		int index = findCell(parent, key);
+		if (index < n && getChild(parent, index) != leaf.pageHeader.pageNumber)
+			return;
+		// The left leaf is referenced by the cell at separator, the right one
+		// by the next cell or by the right pointer
+		int separator;
+		PageHeader left, right;
+		if (index < n) {
+			separator = index;
+			left = leaf.pageHeader;
+			right = getHeader(index + 1 < n ? getChild(parent, index + 1) : parent.rightPointer);
+		} else if (n > 0) {
+			separator = n - 1;
+			left = getHeader(getChild(parent, n - 1));
+			right = leaf.pageHeader;
+		} else
+			return;
+		// Older versions bypassed interior pages left with a single child, so
+		// in their files the neighbour may sit on a different level
+		if (left.pageType != LEAF_PAGE || right.pageType != LEAF_PAGE)
+			return;
+		List<byte[]> cells = readCells(left);
+		cells.addAll(readCells(right));
+		int size = PAGE_HEADER_SIZE;
+		for (byte[] cell : cells)
+			size += cell.length + 4;
+		if (size > pageSize)
+			return;
+		writePage(left.pageNumber, LEAF_PAGE, cells, right.rightPointer);
+		if (right.pageNumber == fileHeader.rightmostLeaf)
+			fileHeader.rightmostLeaf = left.pageNumber;
+		replaceChild(parent, right.pageNumber, left.pageNumber);
+		deleteDataOffsetArray(parent, parent.cellLocations[separator]);
+		freePage(right.pageNumber);
+		if (parent.numberOfCells == 0)
+			mergeSingleChildPage(leaf.path);
+	}
+
+	// The interior page on top of the path only has its right pointer left.
+	// The root pulls the child up into itself, which takes one level off
+	// every leaf. Any other page is merged with its neighbour under the same
+	// parent, or shares the children of both with it when they do not fit in
+	// one page, so that every leaf stays at the same depth.
+	private void mergeSingleChildPage(LinkedList<Integer> path) throws IOException {
+		PageHeader page = getHeader(path.pop());
+		if (path.isEmpty()) {
+			PageHeader child = getHeader(page.rightPointer);
+			writePage(page.pageNumber, child.pageType, readCells(child), child.rightPointer);
+			if (child.pageNumber == fileHeader.rightmostLeaf)
+				fileHeader.rightmostLeaf = page.pageNumber;
+			freePage(child.pageNumber);
+			return;
 		}
-		while (n <= numberOfCells) {
-			filePointer.seek(pageLocation + 8 + (n * 2));
-			nextOffset = filePointer.readShort();
-			filePointer.seek(pageLocation + 8 + ((n - 1) * 2));
-			filePointer.writeShort(nextOffset);
-			n++;
+		PageHeader parent = getHeader(path.peek());
+		List<byte[]> parentCells = readCells(parent);
+		int n = parentCells.size();
+		if (n == 0)
+			return;
+		int index = 0;
+		while (index < n && readInt(parentCells.get(index), 0) != page.pageNumber)
+			index++;
+		// The left page is referenced by the cell at separator, the right one
+		// by the next cell or by the right pointer
+		int separator = index < n ? index : n - 1;
+		PageHeader left = getHeader(readInt(parentCells.get(separator), 0));
+		PageHeader right = getHeader(separator + 1 < n ? readInt(parentCells.get(separator + 1), 0) : parent.rightPointer);
+		if (left.pageType != INTERIOR_PAGE || right.pageType != INTERIOR_PAGE)
+			return;
+		// The key of the separator comes down between the children of the two
+		List<byte[]> cells = readCells(left);
+		cells.add(encodeInteriorCell(left.rightPointer, readInt(parentCells.get(separator), 4)));
+		cells.addAll(readCells(right));
+		if (PAGE_HEADER_SIZE + cells.size() * 12 <= pageSize) {
+			writePage(left.pageNumber, INTERIOR_PAGE, cells, right.rightPointer);
+			parentCells.remove(separator);
+			int rightPointer = parent.rightPointer;
+			if (separator < parentCells.size())
+				parentCells.set(separator,
+						encodeInteriorCell(left.pageNumber, readInt(parentCells.get(separator), 4)));
+			else
+				rightPointer = left.pageNumber;
+			writePage(parent.pageNumber, INTERIOR_PAGE, parentCells, rightPointer);
+			freePage(right.pageNumber);
+			if (parentCells.isEmpty())
+				mergeSingleChildPage(path);
+			return;
 		}
+		// The middle key goes up to the parent
+		int mid = cells.size() / 2;
+		byte[] middle = cells.get(mid);
+		writePage(left.pageNumber, INTERIOR_PAGE, new LinkedList<>(cells.subList(0, mid)), readInt(middle, 0));
+		writePage(right.pageNumber, INTERIOR_PAGE, new LinkedList<>(cells.subList(mid + 1, cells.size())),
+				right.rightPointer);
+		parentCells.set(separator, encodeInteriorCell(left.pageNumber, readInt(middle, 4)));
+		writePage(parent.pageNumber, INTERIOR_PAGE, parentCells, parent.rightPointer);
 	}
 
-	private int getRowIdFromFile(long fp) throws IOException {
-		filePointer.seek(fp);
-		filePointer.seek(filePointer.readShort() + 2);
-		return filePointer.readInt();
+	// Add the page to the free list
+	private void freePage(int pageNumber) throws IOException {
+		writePage(pageNumber, FREE_PAGE, new LinkedList<>(), fileHeader.freeListHead);
+		fileHeader.freeListHead = pageNumber;
+	}
+
+	private List<byte[]> readCells(PageHeader pageHeader) throws IOException {
+		List<byte[]> cells = new LinkedList<>();
+		for (int cellLocation : pageHeader.cellLocations) {
+			long cellStart = position(pageHeader.pageNumber, cellLocation);
+			filePointer.seek(cellStart);
+			byte[] cell = new byte[pageHeader.pageType == LEAF_PAGE ? (filePointer.readShort() & 0xffff) + 6 : 8];
+			filePointer.seek(cellStart);
+			filePointer.read(cell);
+			cells.add(cell);
+		}
+		return cells;
+	}
+
+	// Read an int of an encoded cell: the rowid of a leaf cell is at index 2,
+	// the left child and the key of an interior cell at 0 and 4.
+	private static int readInt(byte[] cell, int i) {
+		return ((cell[i] & 0xff) << 24) | ((cell[i + 1] & 0xff) << 16) | ((cell[i + 2] & 0xff) << 8)
+				| (cell[i + 3] & 0xff);
+	}
+
+	// Take a page from the free list, or extend the file when it is empty
+	private int allocatePage() throws IOException {
+		if (fileHeader.freeListHead != 0) {
+			int pageNumber = fileHeader.freeListHead;
+			fileHeader.freeListHead = getHeader(pageNumber).rightPointer;
+			return pageNumber;
+		}
+		int pageNumber = fileHeader.pageCount++;
+		filePointer.setLength((pageNumber + 1) * pageSize);
+		return pageNumber;
+	}
+
+	// Write a whole page: the header, the offset array and the cells packed
+	// from the end of the page.
+	private void writePage(int pageNumber, byte pageType, List<byte[]> cells, int rightPointer) throws IOException {
+		filePointer.seek(position(pageNumber, 0));
+		filePointer.write(encodePage(pageType, cells, rightPointer));
+	}
+
+	// The image of a whole page as written by writePage
+	private byte[] encodePage(byte pageType, List<byte[]> cells, int rightPointer) {
+		ByteBuffer page = ByteBuffer.allocate((int) pageSize);
+		int offset = (int) pageSize;
+		int i = 0;
+		for (byte[] cell : cells) {
+			offset -= cell.length;
+			page.position(offset);
+			page.put(cell);
+			page.putInt(PAGE_HEADER_SIZE + 4 * i++, offset);
+		}
+		page.put(0, pageType);
+		page.putShort(2, (short) cells.size());
+		page.putInt(4, offset);
+		page.putInt(8, rightPointer);
+		return page.array();
+	}
+
+	// Method used for creating a new Leaf page
+	private void insertNewLeafPage(byte[] cell) throws IOException {
+		List<byte[]> cells = new LinkedList<>();
+		cells.add(cell);
+		writePage(allocatePage(), LEAF_PAGE, cells, -1);
+	}
+
+	// Encode a leaf cell: payload length, rowid and the payload itself
+	private byte[] encodeLeafCell(int key, Payload payload) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(0);
+		out.writeInt(key);
+		out.write(payload.noOfColumns);
+		printSerialTypeCodes(out, payload.serialTypeCodes);
+		for (Column column : payload.columnData)
+			printColumnData(out, column);
+		byte[] cell = bytes.toByteArray();
+		int payloadLength = cell.length - 6;
+		cell[0] = (byte) (payloadLength >> 8);
+		cell[1] = (byte) payloadLength;
+		return cell;
+	}
+
+	// Encode an interior cell: left child page and key
+	private static byte[] encodeInteriorCell(int leftChild, int key) {
+		return new byte[] { (byte) (leftChild >> 24), (byte) (leftChild >> 16), (byte) (leftChild >> 8),
+				(byte) leftChild, (byte) (key >> 24), (byte) (key >> 16), (byte) (key >> 8), (byte) key };
+	}
+
+	// Method used for deleting an offset from the offset array
+	private void deleteDataOffsetArray(PageHeader pageHeader, int dataOffset) throws IOException {
+		long offsetArray = position(pageHeader.pageNumber, PAGE_HEADER_SIZE);
+		int n = 0;
+		filePointer.seek(offsetArray);
+		while (filePointer.readInt() != dataOffset) {
+			n++;
+		}
+		for (; n < pageHeader.numberOfCells - 1; n++) {
+			filePointer.seek(offsetArray + ((n + 1) * 4));
+			int nextOffset = filePointer.readInt();
+			filePointer.seek(offsetArray + (n * 4));
+			filePointer.writeInt(nextOffset);
+		}
+		pageHeader.numberOfCells--;
+		filePointer.seek(position(pageHeader.pageNumber, 2));
+		filePointer.writeShort(pageHeader.numberOfCells);
 	}
 
-	private void printColumnData(Column column) throws NumberFormatException, IOException {
+	private void printColumnData(DataOutputStream out, Column column) throws NumberFormatException, IOException {
 		switch (column.type.toUpperCase()) {
 		case "TINYINT":
-			filePointer.writeByte(Byte.valueOf(column.column));
+			out.writeByte(Byte.valueOf(column.column));
 			break;
 		case "NULL TINYINT":
-			filePointer.writeByte(0);
+			out.writeByte(0);
 			break;
 		case "SMALLINT":
-			filePointer.writeShort(Short.valueOf(column.column));
+			out.writeShort(Short.valueOf(column.column));
 			break;
 		case "NULL SMALLINT":
-			filePointer.writeShort(0);
+			out.writeShort(0);
 			break;
 		case "INT":
-			filePointer.writeInt(Integer.valueOf(column.column));
+			out.writeInt(Integer.valueOf(column.column));
 			break;
 		case "NULL INT":
-			filePointer.writeInt(0);
+			out.writeInt(0);
 			break;
 		case "BIGINT":
-			filePointer.writeLong(Long.valueOf(column.column));
+			out.writeLong(Long.valueOf(column.column));
 			break;
 		case "REAL":
-			filePointer.writeFloat(Float.valueOf(column.column));
+			out.writeFloat(Float.valueOf(column.column));
 			break;
 		case "DOUBLE":
-			filePointer.writeDouble(Double.valueOf(column.column));
+			out.writeDouble(Double.valueOf(column.column));
 			break;
 		case "NULL DOUBLE":
-			filePointer.writeDouble(0);
+			out.writeDouble(0);
 			break;
 		case "DATETIME":
-			filePointer.writeLong(convertDateTimeToLong(column.column));
+			out.writeLong(convertDateTimeToLong(column.column));
 			break;
 		case "DATE":
-			filePointer.writeLong(convertDateToLong(column.column));
+			out.writeLong(convertDateToLong(column.column));
 			break;
 		case "TEXT":
-			filePointer.writeBytes(column.column);
+			out.writeBytes(column.column);
 			break;
 		}
 	}
@@ -320,13 +941,6 @@ class BTree {
 		return zdt.toInstant().toEpochMilli() / 1000;
 	}
 
-	private LocalDate convertLongToDate(long date) {
-		ZoneId zoneId = ZoneId.of("America/Chicago");
-		Instant i = Instant.ofEpochSecond(date);
-		ZonedDateTime zdt2 = ZonedDateTime.ofInstant(i, zoneId);
-		return zdt2.toLocalDate();
-	}
-
 	private long convertDateTimeToLong(String column) {
 
 		/* Define the time zone for Dallas CST */
@@ -349,34 +963,30 @@ class BTree {
 		return zdt.toInstant().toEpochMilli() / 1000;
 	}
 
-	private ZonedDateTime convertLongToDateTime(long datetime) {
-		ZoneId zoneId = ZoneId.of("America/Chicago");
-		Instant i = Instant.ofEpochSecond(datetime);
-		ZonedDateTime zdt2 = ZonedDateTime.ofInstant(i, zoneId);
-		return zdt2;
-	}
-
-	private void printSerialTypeCodes(byte[] serialTypeCodes) throws IOException {
+	private void printSerialTypeCodes(DataOutputStream out, byte[] serialTypeCodes) throws IOException {
 		for (byte b : serialTypeCodes)
-			filePointer.write(b);
+			out.write(b);
 	}
 
 	/**
-	 * Return the root BTreePage, or null if it doesn't exist.
+	 * Return the page, or null if it doesn't exist.
 	 */
-	PageHeader getHeader(long pos) throws IOException {
-		if (filePointer.length() == 0)
+	PageHeader getHeader(int pageNumber) throws IOException {
+		if (pageNumber < 0 || position(pageNumber + 1, 0) > filePointer.length())
 			return null;
-		filePointer.seek(pos);
+		// Decode the header straight from the page buffer
+		ByteBuffer page = filePointer.page(pageNumber);
 		PageHeader header = new PageHeader();
-		header.pageType = filePointer.readByte();
-		header.numberOfCells = filePointer.readByte();
-		header.offset = filePointer.readShort();
-		header.rightPointer = filePointer.readInt();
-		header.cellLocations = new short[header.numberOfCells];
+		header.pageNumber = pageNumber;
+		header.pageType = page.get(0);
+		header.numberOfCells = page.getShort(2) & 0xffff;
+		header.offset = page.getInt(4);
+		header.rightPointer = page.getInt(8);
+		header.cellLocations = new int[header.numberOfCells];
 		for (int i = 0; i < header.numberOfCells; i++)
-			header.cellLocations[i] = filePointer.readShort();
-		header.lengthOfHeader = (int) filePointer.getFilePointer();
+			header.cellLocations[i] = page.getInt(PAGE_HEADER_SIZE + 4 * i);
+		header.lengthOfHeader = PAGE_HEADER_SIZE + 4 * header.numberOfCells;
+		filePointer.seek(position(pageNumber, header.lengthOfHeader));
 		return header;
 	}
 
@@ -387,362 +997,1144 @@ class BTree {
 		return out.toByteArray();
 	}
 
-	private long getOffset(long startOffset, long endOffset) {
-		return ThreadLocalRandom.current().nextLong(startOffset + 1, endOffset + 1);
-	}
-
 	public static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
 		ByteArrayInputStream in = new ByteArrayInputStream(data);
 		ObjectInputStream is = new ObjectInputStream(in);
 		return is.readObject();
 	}
 
-	// Iterate through the BTree and get the highest rowId.
+	// The highest rowid ever inserted, from the file header. Rowids of
+	// deleted rows are not handed out again.
 	public int getLastRowId() throws IOException {
-		if (getHeader(0) == null)
-			return 0;
-		filePointer.seek(4);
-		int rightLeafPointer = filePointer.readInt();
-		while (rightLeafPointer != -1) {
-			filePointer.seek(rightLeafPointer + 4);
-			rightLeafPointer = filePointer.readInt();
-		}
-		filePointer.seek(filePointer.getFilePointer() - 7);
-		byte n = filePointer.readByte();
-		long value1 = filePointer.getFilePointer() + 6;
-		long value = value1 + ((n - 1) * 2);
-		filePointer.seek(value);
-		filePointer.seek(filePointer.readShort() + 2);
-		return filePointer.readInt();
+		return fileHeader.maxRowid;
 	}
 
 	public List<List<Column>> selectTable(int noOfColumns) throws IOException {
-		int pageLocation = 0;
-		PageHeader pageHeader = null;
-		filePointer.seek(0);
-		List<List<Column>> data = new LinkedList<>();
-		List<Column> tuple;
-		byte[] serialTypeCodes;
-		if (filePointer.length() != 0)
-			do {
-				pageHeader = getHeader(pageLocation);
-				for (short offset : pageHeader.cellLocations) {
-					tuple = new LinkedList<>();
-					filePointer.seek(offset + 2);
-					tuple.add(new Column(String.valueOf(filePointer.readInt()), "INT", "N", "Y"));
-					serialTypeCodes = readSerialTypeCodes();
-					for (byte b : serialTypeCodes)
-						tuple.add(readData(b));
-					data.add(tuple);
-				}
-				pageLocation = pageHeader.rightPointer;
-			} while (pageHeader.rightPointer != -1);
-		return data;
+		return selectTable(noOfColumns, null);
 	}
 
-	private Column readData(byte b) throws NumberFormatException, IOException {
-		switch (b) {
-		case 0:
-			filePointer.readByte();
-			return new Column("NULL", "NULL TINYINT", "", "N");
-		case 1:
-			filePointer.readShort();
-			return new Column("NULL", "NULL SMALLINT", "", "N");
-		case 2:
-			filePointer.readInt();
-			return new Column("NULL", "NULL INT", "", "N");
-		case 3:
-			filePointer.readDouble();
-			return new Column("NULL", "NULL DOUBLE", "", "N");
-		case 4:
-			return new Column(String.valueOf(filePointer.readByte()), "TINYINT", "", "N");
-		case 5:
-			return new Column(String.valueOf(filePointer.readShort()), "SMALLINT", "", "N");
-		case 6:
-			return new Column(String.valueOf(filePointer.readInt()), "INT", "", "N");
-		case 7:
-			return new Column(String.valueOf(filePointer.readLong()), "BIGINT", "", "N");
-		case 8:
-			return new Column(String.valueOf(filePointer.readFloat()), "REAL", "", "N");
-		case 9:
-			return new Column(String.valueOf(filePointer.readDouble()), "DOUBLE", "", "N");
-		case 10:
-			return new Column(convertLongToDateTime(filePointer.readLong()).toString(), "DATETIME", "", "N");
-		case 11:
-			return new Column(convertLongToDate(filePointer.readLong()).toString(), "DATE", "", "N");
-		default:
-			if (b == 12)
-				return new Column("NULL", "TEXT", "", "Y");
-			byte[] text = new byte[b - 12];
-			filePointer.read(text);
-			return new Column(new String(text), "TEXT", "", "N");
-		}
+	/**
+	 * Return every row with only the columns at the given ordinal positions,
+	 * or with all of them if <code>columns</code> is null.
+	 */
+	public List<List<Column>> selectTable(int noOfColumns, List<Integer> columns) throws IOException {
+		return readAll(openTable(columns));
 	}
 
-	private byte[] readSerialTypeCodes() throws IOException {
-		byte n = filePointer.readByte();
-		byte[] serialTypeCodes = new byte[n];
-		for (int i = 0; i < n; i++)
-			serialTypeCodes[i] = filePointer.readByte();
-		return serialTypeCodes;
+	/**
+	 * Open a cursor over every row, with only the columns at the given
+	 * ordinal positions or all of them if <code>columns</code> is null.
+	 */
+	public Cursor openTable(List<Integer> columns) throws IOException {
+		return openScan(Predicate.TRUE, columns);
 	}
 
-	public List<List<Column>> select(int wherePosition, String whereValue, int noOfColumns, String operator,
-			String whereType) throws IOException {
-		int pageLocation = 0;
-		filePointer.seek(0);
-		PageHeader pageHeader = null;
-		List<List<Column>> data = new LinkedList<>();
-		List<Column> tuple;
-		byte[] serialTypeCodes;
-		if (filePointer.length() != 0)
-			do {
-				pageHeader = getHeader(pageLocation);
-				for (short offset : pageHeader.cellLocations) {
-					tuple = new LinkedList<>();
-					filePointer.seek(offset + 2);
-					tuple.add(new Column(String.valueOf(filePointer.readInt()), "INT", "N", "Y"));
-					serialTypeCodes = readSerialTypeCodes();
-					for (byte b : serialTypeCodes)
-						tuple.add(readData(b));
-					if (isCompareSuccessful(tuple.get(wherePosition - 1).column, whereValue, whereType, operator))
-						data.add(tuple);
-				}
-				pageLocation = pageHeader.rightPointer;
-			} while (pageHeader.rightPointer != -1);
-		return data;
+	static void setBatchSize(int size) {
+		batchSize = size;
 	}
 
-	public int update(int wherePosition, List<Integer> updatePositions, String whereValue, List<String> updateValues,
-			int noOfColumns, String operator, String whereType, String updateType) throws IOException {
-		int pageLocation = 0;
-		filePointer.seek(0);
-		PageHeader pageHeader = null;
-		Payload payload;
-		int key, i, numOfRows = 0;
-		short payloadLength;
-		String oldValue = null, updateValue = null;
-		do {
-			pageHeader = getHeader(pageLocation);
-			for (short offset : pageHeader.cellLocations) {
-				payload = new Payload();
-				payload.noOfColumns = (byte) (noOfColumns - 1);
-				payload.columnData = new LinkedList<>();
-				filePointer.seek(offset);
-				payloadLength = filePointer.readShort();
-				key = filePointer.readInt();
-				payload.serialTypeCodes = readSerialTypeCodes();
-				for (byte b : payload.serialTypeCodes)
-					payload.columnData.add(readData(b));
-				if (isCompareSuccessfulForUpdate(offset, wherePosition, whereValue, whereType, operator,
-						payload.serialTypeCodes)) {
-					numOfRows++;
-					i = 0;
-					for (int updatePosition : updatePositions) {
-						oldValue = payload.columnData.get(updatePosition - 2).column;
-						updateValue = updateValues.get(i++);
-						payloadLength = (short) (payloadLength - oldValue.length() + updateValue.length());
-						payload.serialTypeCodes[updatePosition - 2] = (byte) (12 + updateValue.length());
-						payload.columnData.get(updatePosition - 2).column = updateValue;
-					}
-					deleteDataOffsetArray(pageHeader.numberOfCells, offset, pageLocation);
-					filePointer.seek(pageLocation + 1);
-					filePointer.write(pageHeader.numberOfCells - 1);
-					insert(key, payload, payloadLength);
-					filePointer.seek(pageLocation + 1);
-					pageHeader.numberOfCells = filePointer.readByte();
-				}
-			}
-			pageLocation = pageHeader.rightPointer;
-		} while (pageHeader.rightPointer != -1);
-		return numOfRows;
+	static void setParallelism(int threads) {
+		parallelism = threads;
 	}
 
-	public int delete(int wherePosition, String whereValue, int noOfColumns, String operator, String whereType)
-			throws IOException {
-		filePointer.seek(0);
-		PageHeader pageHeader = getHeader(0);
-		long pageLocation = 0;
-		int numberOfRows = 0;
-		byte[] serialTypeCodes;
-		do {
-			pageHeader = getHeader(pageLocation);
-			for (short offset : pageHeader.cellLocations) {
-				filePointer.seek(offset + 6);
-				serialTypeCodes = readSerialTypeCodes();
-				if (isCompareSuccessfulForUpdate(offset, wherePosition, whereValue, whereType, operator,
-						serialTypeCodes)) {
-					numberOfRows++;
-					deleteDataOffsetArray(pageHeader.numberOfCells, offset, pageLocation);
-					filePointer.seek(pageLocation + 1);
-					filePointer.write(--pageHeader.numberOfCells);
-				}
-			}
-			pageLocation = pageHeader.rightPointer;
-		} while (pageHeader.rightPointer != -1);
-		return numberOfRows;
+	// A scan returning the rows the predicate keeps, batch by batch unless
+	// batches are turned off
+	private Cursor openScan(Predicate predicate, List<Integer> columns) throws IOException {
+		if (batchSize > 0 && predicate != null)
+			return new BatchCursor(predicate, columns);
+		return new ScanCursor(predicate, columns);
 	}
 
-	private boolean isCompareSuccessfulForUpdate(short offset, int wherePosition, String whereValue, String whereType,
-			String operator, byte[] serialTypeCodes) throws NumberFormatException, IOException {
-		if (wherePosition == 0)
-			return true;
-		if (wherePosition == 1) {
-			filePointer.seek(offset + 2);
-			// TO check if it is a number
-			if (whereValue.matches("-?\\d+(\\.\\d+)?")) {
-				int c = filePointer.readInt();
-				if (c == Integer.valueOf(whereValue))
-					return true;
-			} else {
-				createError("Primary Key must be an integer");
-			}
-		} else
-			return isCompareSuccessful(readColumnValue(offset, wherePosition, serialTypeCodes), whereValue, whereType,
-					operator);
-		return false;
+	/**
+	 * Open a cursor over the rows the predicate keeps, with only the columns
+	 * at the given ordinal positions or all of them if <code>columns</code>
+	 * is null. Only the leaves holding the rowids the predicate allows are
+	 * read. It is empty if the predicate is null, one that did not compile.
+	 */
+	public Cursor openWhere(Predicate predicate, List<Integer> columns) throws IOException {
+		if (predicate == null)
+			return Cursor.of(Collections.emptyList());
+		if (predicate.lowKey() == Long.MIN_VALUE && predicate.highKey() == Long.MAX_VALUE)
+			return openScan(predicate, columns);
+		return new RangeCursor(predicate.lowKey(), predicate.highKey(), predicate, columns);
 	}
 
-	private String readColumnValue(short offset, int wherePosition, byte[] serialTypeCodes)
-			throws NumberFormatException, IOException {
-		filePointer.seek(
-				offset + 6 + serialTypeCodes.length + 1 + getColumnLocationFromOffset(wherePosition, serialTypeCodes));
-		return readData(serialTypeCodes[wherePosition - 2]).column;
+	/**
+	 * Open a cursor over the rows with the given rowids, in that order, that
+	 * the predicate keeps.
+	 */
+	public Cursor openRows(List<Integer> rowids, Predicate predicate, List<Integer> columns) throws IOException {
+		return new RowsCursor(rowids, predicate, columns);
+	}
 
+	/**
+	 * Open a scan filling batches of rows.
+	 */
+	BatchScan openBatches() throws IOException {
+		return new BatchScan(new Batch(batchSize > 0 ? batchSize : Batch.DEFAULT_SIZE));
 	}
 
-	private long getColumnLocationFromOffset(int wherePosition, byte[] serialTypeCodes) {
-		long jumpLength = 0;
-		for (int i = 2; i < wherePosition; i++) {
-			jumpLength += serialTypeCodes[i - 2] > 12 ? serialTypeCodes[i - 2] - 12
-					: BTree.serialTypeCodesMap.get(serialTypeCodes[i - 2]).length;
+	/**
+	 * Add the rows the predicate keeps to the aggregates. Only the leaves
+	 * holding the rowids the predicate allows are read. When there are enough
+	 * of them they are split into runs of leaves, each aggregated on its own
+	 * thread into copies of the aggregates, which are merged at the end.
+	 */
+	void aggregate(Predicate predicate, Aggregate[] aggregates) throws IOException {
+		if (predicate == null || outsideKeys(predicate) || isEmpty())
+			return;
+		List<Integer> leaves = new ArrayList<>();
+		collectLeaves(fileHeader.rootPage, predicate.lowKey(), predicate.highKey(), leaves);
+		int threads = Math.min(parallelism, leaves.size() / LEAVES_PER_THREAD);
+		if (threads <= 1) {
+			scanLeaves(leaves, predicate, batch -> aggregate(batch, aggregates));
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Aggregate[]>> partials = new ArrayList<>(threads);
+			for (int t = 0; t < threads; t++) {
+				List<Integer> run = leaves.subList(leaves.size() * t / threads, leaves.size() * (t + 1) / threads);
+				Aggregate[] partial = Aggregate.copy(aggregates);
+				partials.add(executor.submit(() -> {
+					scanLeaves(run, predicate, batch -> aggregate(batch, partial));
+					return partial;
+				}));
+			}
+			for (Future<Aggregate[]> future : partials) {
+				Aggregate[] partial = future.get();
+				for (int i = 0; i < aggregates.length; i++)
+					aggregates[i].merge(partial[i]);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
 		}
-		return jumpLength;
 	}
 
-	private boolean isCompareSuccessful(String columnValue, String whereValue, String whereType, String operator) {
-		boolean success = false;
-		switch (operator) {
-		case "=":
-			if (whereType.equals("TEXT"))
-				success = columnValue.equalsIgnoreCase(whereValue);
-			else if (whereType.equals("DATE"))
-				success = convertLongToDate(Long.valueOf(columnValue))
-						.equals(convertLongToDate(Long.valueOf(whereValue)));
-			else if (whereType.equals("DATETIME"))
-				success = convertLongToDateTime(Long.valueOf(columnValue))
-						.equals(convertLongToDateTime(Long.valueOf(whereValue)));
+	/**
+	 * Add the rows with the given rowids, which have to be sorted, that the
+	 * predicate keeps to the aggregates.
+	 */
+	void aggregate(List<Integer> rowids, Predicate predicate, Aggregate[] aggregates) throws IOException {
+		RowsCursor cursor = new RowsCursor(rowids, predicate, Collections.emptyList());
+		RowView row;
+		while ((row = cursor.nextView()) != null)
+			for (Aggregate aggregate : aggregates)
+				aggregate.add(row);
+	}
+
+	private static void aggregate(Batch batch, Aggregate[] aggregates) {
+		for (Aggregate aggregate : aggregates)
+			aggregate.add(batch);
+	}
+
+	/**
+	 * Add the rows the predicate keeps to their groups, a batch at a time.
+	 * Only the leaves holding the rowids the predicate allows are read.
+	 */
+	void group(Predicate predicate, GroupTable groups) throws IOException {
+		if (predicate == null || outsideKeys(predicate) || isEmpty())
+			return;
+		List<Integer> leaves = new ArrayList<>();
+		collectLeaves(fileHeader.rootPage, predicate.lowKey(), predicate.highKey(), leaves);
+		scanLeaves(leaves, predicate, groups::add);
+	}
+
+	/**
+	 * Add the rows with the given rowids, which have to be sorted, that the
+	 * predicate keeps to their groups.
+	 */
+	void group(List<Integer> rowids, Predicate predicate, GroupTable groups) throws IOException {
+		RowsCursor cursor = new RowsCursor(rowids, predicate, Collections.emptyList());
+		RowView row;
+		while ((row = cursor.nextView()) != null)
+			groups.add(row);
+	}
+
+	// Add the leaves under the page that may hold rowids from low to high,
+	// in rowid order. The keys of the child of an interior cell are past the
+	// key of the cell before and up to its own.
+	private void collectLeaves(int pageNumber, long low, long high, List<Integer> leaves) throws IOException {
+		PageHeader pageHeader = getHeader(pageNumber);
+		if (pageHeader.pageType != INTERIOR_PAGE) {
+			leaves.add(pageNumber);
+			return;
+		}
+		long previous = Long.MIN_VALUE;
+		for (int i = 0; i < pageHeader.numberOfCells && previous < high; i++) {
+			int key = getCellKey(pageHeader, i);
+			if (key >= low)
+				collectLeaves(getChild(pageHeader, i), low, high, leaves);
+			previous = key;
+		}
+		if (previous < high)
+			collectLeaves(pageHeader.rightPointer, low, high, leaves);
+	}
+
+	/**
+	 * Takes the rows of a scan a batch at a time.
+	 */
+	private interface BatchSink {
+		void add(Batch batch) throws IOException;
+	}
+
+	// Hand the rows of the leaves the predicate keeps to the sink, a batch at
+	// a time. Runs on the threads of an aggregate, so the page headers are
+	// read from the page buffers, and only pinning a page goes through the
+	// file. The leaves of the rows of a batch stay pinned until it is
+	// handed over.
+	private void scanLeaves(List<Integer> leaves, Predicate predicate, BatchSink sink) throws IOException {
+		Batch batch = new Batch(batchSize > 0 ? batchSize : Batch.DEFAULT_SIZE);
+		List<Integer> pinned = new ArrayList<>();
+		try {
+			for (int pageNumber : leaves) {
+				ByteBuffer page;
+				synchronized (filePointer) {
+					page = filePointer.pin(pageNumber);
+				}
+				pinned.add(pageNumber);
+				int numberOfCells = page.getShort(2) & 0xffff;
+				for (int i = 0; i < numberOfCells; i++) {
+					batch.add(page, page.getInt(PAGE_HEADER_SIZE + 4 * i));
+					if (batch.isFull()) {
+						scanBatch(batch, predicate, sink);
+						unpinAllButLast(pinned);
+					}
+				}
+			}
+			if (batch.size > 0)
+				scanBatch(batch, predicate, sink);
+		} finally {
+			for (int pageNumber : pinned)
+				filePointer.unpin(pageNumber);
+		}
+	}
+
+	// Unpin the pages but the last one, which a scan is still reading
+	private void unpinAllButLast(List<Integer> pinned) {
+		while (pinned.size() > 1)
+			filePointer.unpin(pinned.remove(0));
+	}
+
+	private static void scanBatch(Batch batch, Predicate predicate, BatchSink sink) throws IOException {
+		batch.selectAll();
+		predicate.filter(batch);
+		sink.add(batch);
+		batch.clear();
+	}
+
+	// Read what is left of the cursor into a list
+	static List<List<Column>> readAll(Cursor cursor) throws IOException {
+		List<List<Column>> data = new LinkedList<>();
+		List<Column> tuple;
+		while ((tuple = cursor.next()) != null)
+			data.add(tuple);
+		cursor.close();
+		return data;
+	}
+
+	/**
+	 * Rows of up to <code>pages</code> leaf pages picked at random, or of
+	 * every leaf if the file has no more pages than that. A leaf is reached
+	 * by walking down from the root and taking a random child of every
+	 * interior page on the way, so only the sampled leaves are read.
+	 */
+	public List<List<Column>> sampleRows(int pages, Random random) throws IOException {
+		if (fileHeader.pageCount - 1 <= pages || isEmpty())
+			return selectTable(0);
+		Set<Integer> leaves = new HashSet<>();
+		List<List<Column>> data = new LinkedList<>();
+		RowView view = new RowView();
+		// A walk may end on a leaf already sampled, give up after a while
+		for (int i = 0; i < 2 * pages && leaves.size() < pages; i++) {
+			int pageNumber = fileHeader.rootPage;
+			PageHeader pageHeader = getHeader(pageNumber);
+			while (pageHeader.pageType == INTERIOR_PAGE) {
+				int child = random.nextInt(pageHeader.numberOfCells + 1);
+				pageNumber = child < pageHeader.numberOfCells ? getChild(pageHeader, child) : pageHeader.rightPointer;
+				pageHeader = getHeader(pageNumber);
+			}
+			if (leaves.add(pageNumber)) {
+				ByteBuffer page = filePointer.page(pageNumber);
+				for (int offset : pageHeader.cellLocations)
+					data.add(view.at(page, offset).toRow(null));
+			}
+		}
+		return data;
+	}
+
+	private byte[] readSerialTypeCodes() throws IOException {
+		byte n = filePointer.readByte();
+		byte[] serialTypeCodes = new byte[n];
+		for (int i = 0; i < n; i++)
+			serialTypeCodes[i] = filePointer.readByte();
+		return serialTypeCodes;
+	}
+
+	/**
+	 * Return the rows for which <code>column operator whereValue</code>
+	 * holds, the column being the one at <code>wherePosition</code> and of
+	 * data type <code>whereType</code>. The comparison is compiled into a
+	 * {@link Predicate} and only the rows it keeps are decoded, with only the
+	 * columns at the ordinal positions in <code>columns</code>, or all of
+	 * them if it is null.
+	 */
+	public List<List<Column>> select(int wherePosition, String whereValue, int noOfColumns, String operator,
+			String whereType, List<Integer> columns) throws IOException {
+		return readAll(openSelect(wherePosition, whereValue, operator, whereType, columns));
+	}
+
+	/**
+	 * Open a cursor over the rows
+	 * {@link #select(int, String, int, String, String, List)} returns. It is
+	 * empty if the comparison does not compile.
+	 */
+	public Cursor openSelect(int wherePosition, String whereValue, String operator, String whereType,
+			List<Integer> columns) throws IOException {
+		return openScan(Predicate.compile(wherePosition, whereType, operator, whereValue), columns);
+	}
+
+	/**
+	 * Set the columns at <code>updatePositions</code> of the matching rows.
+	 * <code>updates</code> holds the serial type code and the value of each
+	 * of these columns, in the same order. When every new value has the width
+	 * of the old one the values are overwritten where they are; otherwise
+	 * the cell is rebuilt, and written back in place if it is not longer than
+	 * before. Only rows that grow are moved: they are taken out of their leaf
+	 * during the scan and inserted again once it is over, since inserts may
+	 * split the leaves being scanned.
+	 */
+	public int update(int wherePosition, List<Integer> updatePositions, String whereValue, Payload updates,
+			int noOfColumns, String operator, String whereType) throws NumberFormatException, IOException {
+		return update(Predicate.compile(wherePosition, whereType, operator, whereValue), updatePositions, updates);
+	}
+
+	/**
+	 * Set the columns of the rows the predicate keeps, like
+	 * {@link #update(int, List, String, Payload, int, String, String)}. Only
+	 * the leaves holding the rowids the predicate allows are read.
+	 */
+	public int update(Predicate predicate, List<Integer> updatePositions, Payload updates)
+			throws NumberFormatException, IOException {
+		if (predicate == null || isEmpty() || outsideKeys(predicate))
+			return 0;
+		// The new values are the same for every row, encode them once
+		byte[][] values = new byte[updatePositions.size()][];
+		for (int i = 0; i < values.length; i++)
+			values[i] = encodeColumn(updates.columnData.get(i));
+		int pageNumber = firstLeaf(predicate);
+		PageHeader pageHeader = null;
+		int numOfRows = 0;
+		List<Integer> keys = new LinkedList<>();
+		List<byte[]> cells = new LinkedList<>();
+		RowView view = new RowView();
+		do {
+			pageHeader = getHeader(pageNumber);
+			ByteBuffer page = filePointer.pin(pageNumber);
+			boolean last = isLastLeaf(pageHeader, predicate);
+			try {
+				for (int offset : pageHeader.cellLocations) {
+					if (!predicate.test(view.at(page, offset)))
+						continue;
+					long cell = position(pageNumber, offset);
+					filePointer.seek(cell);
+					int cellLength = (filePointer.readShort() & 0xffff) + 6;
+					int key = filePointer.readInt();
+					byte[] serialTypeCodes = readSerialTypeCodes();
+					numOfRows++;
+					if (keepsWidths(serialTypeCodes, updatePositions, updates.serialTypeCodes)) {
+						for (int i = 0; i < values.length; i++) {
+							int updatePosition = updatePositions.get(i);
+							filePointer.seek(cell + 7 + updatePosition - 2);
+							filePointer.writeByte(updates.serialTypeCodes[i]);
+							filePointer.seek(cell + 7 + serialTypeCodes.length
+									+ getColumnLocationFromOffset(updatePosition, serialTypeCodes));
+							filePointer.write(values[i]);
+						}
+						continue;
+					}
+					byte[] newCell = rebuildCell(cell, cellLength, serialTypeCodes, updatePositions,
+							updates.serialTypeCodes, values);
+					if (newCell.length <= cellLength) {
+						filePointer.seek(cell);
+						filePointer.write(newCell);
+					} else {
+						deleteDataOffsetArray(pageHeader, offset);
+						keys.add(key);
+						cells.add(newCell);
+					}
+				}
+			} finally {
+				filePointer.unpin(pageNumber);
+			}
+			pageNumber = last ? -1 : pageHeader.rightPointer;
+		} while (pageNumber != -1);
+		for (int i = 0; i < keys.size(); i++)
+			insertLeafCell(keys.get(i), cells.get(i));
+		writeFileHeader();
+		return numOfRows;
+	}
+
+	// True if every updated column keeps the number of bytes it takes
+	private static boolean keepsWidths(byte[] serialTypeCodes, List<Integer> updatePositions, byte[] newCodes) {
+		int i = 0;
+		for (int updatePosition : updatePositions)
+			if (dataLength(serialTypeCodes[updatePosition - 2]) != dataLength(newCodes[i++]))
+				return false;
+		return true;
+	}
+
+	// Copy the leaf cell at the given position with the updated columns
+	// replaced by their new serial type codes and values
+	private byte[] rebuildCell(long cell, int cellLength, byte[] serialTypeCodes, List<Integer> updatePositions,
+			byte[] newCodes, byte[][] values) throws IOException {
+		byte[] old = new byte[cellLength];
+		filePointer.seek(cell);
+		filePointer.read(old);
+		byte[] codes = serialTypeCodes.clone();
+		byte[][] data = new byte[codes.length][];
+		int i = 0;
+		for (int updatePosition : updatePositions) {
+			codes[updatePosition - 2] = newCodes[i];
+			data[updatePosition - 2] = values[i++];
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(cellLength);
+		bytes.write(old, 0, 7);
+		bytes.write(codes, 0, codes.length);
+		int from = 7 + codes.length;
+		for (i = 0; i < codes.length; i++) {
+			int length = dataLength(serialTypeCodes[i]);
+			if (data[i] == null)
+				bytes.write(old, from, length);
 			else
-				success = new BigDecimal(columnValue).equals(new BigDecimal(whereValue));
+				bytes.write(data[i], 0, data[i].length);
+			from += length;
+		}
+		byte[] newCell = bytes.toByteArray();
+		int payloadLength = newCell.length - 6;
+		newCell[0] = (byte) (payloadLength >> 8);
+		newCell[1] = (byte) payloadLength;
+		return newCell;
+	}
 
-			break;
+	private byte[] encodeColumn(Column column) throws NumberFormatException, IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		printColumnData(new DataOutputStream(bytes), column);
+		return bytes.toByteArray();
+	}
+
+	// Number of bytes taken by a value of the given serial type code
+	static int dataLength(byte serialTypeCode) {
+		return serialTypeCode >= 12 ? serialTypeCode - 12 : dataLengths[serialTypeCode];
+	}
+
+	/**
+	 * Delete the rows for which <code>column operator whereValue</code>
+	 * holds, compared like
+	 * {@link #select(int, String, int, String, String, List)} does.
+	 */
+	public int delete(int wherePosition, String whereValue, int noOfColumns, String operator, String whereType)
+			throws IOException {
+		return delete(Predicate.compile(wherePosition, whereType, operator, whereValue));
+	}
+
+	/**
+	 * Delete the rows the predicate keeps. Only the leaves holding the rowids
+	 * the predicate allows are read.
+	 */
+	public int delete(Predicate predicate) throws IOException {
+		if (predicate == null || isEmpty() || outsideKeys(predicate))
+			return 0;
+		PageHeader pageHeader = null;
+		int pageNumber = firstLeaf(predicate);
+		int numberOfRows = 0;
+		// A deleted rowid of every leaf that lost rows, to find it again
+		List<Integer> shrunkLeaves = new LinkedList<>();
+		RowView view = new RowView();
+		do {
+			pageHeader = getHeader(pageNumber);
+			ByteBuffer page = filePointer.pin(pageNumber);
+			boolean last = isLastLeaf(pageHeader, predicate);
+			int deleted = 0;
+			try {
+				for (int offset : pageHeader.cellLocations) {
+					if (predicate.test(view.at(page, offset))) {
+						numberOfRows++;
+						if (deleted++ == 0)
+							shrunkLeaves.add(page.getInt(offset + 2));
+						deleteDataOffsetArray(pageHeader, offset);
+					}
+				}
+			} finally {
+				filePointer.unpin(pageNumber);
+			}
+			pageNumber = last ? -1 : pageHeader.rightPointer;
+		} while (pageNumber != -1);
+		// Merging changes the leaf chain, so it waits until the scan is over
+		for (int key : shrunkLeaves)
+			mergeLeaf(key);
+		fileHeader.rowCount -= numberOfRows;
+		writeFileHeader();
+		return numberOfRows;
+	}
+
+	/**
+	 * Delete the rows whose rowid lies between <code>low</code> and
+	 * <code>high</code>, both inclusive. Only the leaves holding the range
+	 * are read.
+	 */
+	public int deleteRange(long low, long high) throws IOException {
+		if (low > high || low > Integer.MAX_VALUE || high < Integer.MIN_VALUE || isEmpty())
+			return 0;
+		int pageNumber = findLeaf((int) Math.max(low, Integer.MIN_VALUE));
+		int numberOfRows = 0;
+		boolean pastRange = false;
+		List<Integer> shrunkLeaves = new LinkedList<>();
+		do {
+			PageHeader pageHeader = getHeader(pageNumber);
+			int deleted = 0;
+			for (int offset : pageHeader.cellLocations) {
+				filePointer.seek(position(pageNumber, offset) + 2);
+				int key = filePointer.readInt();
+				if (key > high) {
+					pastRange = true;
+					break;
+				}
+				if (key < low)
+					continue;
+				numberOfRows++;
+				deleteDataOffsetArray(pageHeader, offset);
+				if (deleted++ == 0)
+					shrunkLeaves.add(key);
+			}
+			pageNumber = pageHeader.rightPointer;
+		} while (!pastRange && pageNumber != -1);
+		for (int key : shrunkLeaves)
+			mergeLeaf(key);
+		fileHeader.rowCount -= numberOfRows;
+		writeFileHeader();
+		return numberOfRows;
+	}
+
+	/**
+	 * Delete with a WHERE clause on the primary key. Like
+	 * {@link #selectPrimary(String, String, List)} every comparison is turned
+	 * into rowid ranges.
+	 */
+	public int deletePrimary(String whereValue, String operator) throws IOException {
+		long key;
+		try {
+			key = Long.parseLong(whereValue);
+		} catch (NumberFormatException e) {
+			createError("Primary Key must be an integer");
+			return 0;
+		}
+		switch (operator) {
+		case "=":
+			return deleteRange(key, key);
+		case "<":
+			return deleteRange(Integer.MIN_VALUE, below(key));
+		case "<=":
+			return deleteRange(Integer.MIN_VALUE, key);
+		case ">":
+			return deleteRange(above(key), Integer.MAX_VALUE);
+		case ">=":
+			return deleteRange(key, Integer.MAX_VALUE);
 		case "!=":
 		case "<>":
-			if (whereType.equals("TEXT"))
-				success = !columnValue.equalsIgnoreCase(whereValue);
-			else if (whereType.equals("DATE"))
-				success = !(convertLongToDate(Long.valueOf(columnValue))
-						.equals(convertLongToDate(Long.valueOf(whereValue))));
-			else if (whereType.equals("DATETIME"))
-				success = !(convertLongToDateTime(Long.valueOf(columnValue))
-						.equals(convertLongToDateTime(Long.valueOf(whereValue))));
-			else
-				success = !(new BigDecimal(columnValue).equals(new BigDecimal(whereValue)));
-			break;
+			return deleteRange(Integer.MIN_VALUE, below(key)) + deleteRange(above(key), Integer.MAX_VALUE);
+		default:
+			createError("Error in parsing relational operator: " + operator);
+		}
+		return 0;
+	}
 
-		case ">":
-			if (whereType.equals("TEXT"))
-				success = columnValue.compareTo(whereValue) == 1 || columnValue.compareTo(whereValue) == 0 ? true
-						: false;
-			else if (whereType.equals("DATE"))
-				success = convertLongToDate(Long.valueOf(columnValue))
-						.isAfter(convertLongToDate(Long.valueOf(whereValue)))
-						|| convertLongToDate(Long.valueOf(columnValue))
-								.equals(convertLongToDate(Long.valueOf(whereValue)));
-			else if (whereType.equals("DATETIME"))
-				success = convertLongToDateTime(Long.valueOf(columnValue))
-						.isAfter(convertLongToDateTime(Long.valueOf(whereValue)))
-						|| convertLongToDateTime(Long.valueOf(columnValue))
-								.equals(convertLongToDateTime(Long.valueOf(whereValue)));
-			else
-				success = new BigDecimal(columnValue).compareTo(new BigDecimal(whereValue)) == 1
-						|| new BigDecimal(columnValue).equals(new BigDecimal(whereValue)) ? true : false;
-			break;
+	/**
+	 * Delete the rows with the given rowids that the predicate keeps.
+	 */
+	public int deleteRows(List<Integer> rowids, Predicate predicate) throws IOException {
+		int numberOfRows = 0;
+		for (int key : rowids)
+			numberOfRows += delete(Predicate.and(Arrays.asList(Predicate.rowid(key), predicate)));
+		return numberOfRows;
+	}
 
-		case "<":
-			if (whereType.equals("TEXT"))
-				success = columnValue.compareTo(whereValue) == -1 ? true : false;
-			else if (whereType.equals("DATE"))
-				success = convertLongToDate(Long.valueOf(columnValue))
-						.isBefore(convertLongToDate(Long.valueOf(whereValue)))
-						|| convertLongToDate(Long.valueOf(columnValue))
-								.equals(convertLongToDate(Long.valueOf(whereValue)));
-			else if (whereType.equals("DATETIME"))
-				success = convertLongToDateTime(Long.valueOf(columnValue))
-						.isBefore(convertLongToDateTime(Long.valueOf(whereValue)))
-						|| convertLongToDateTime(Long.valueOf(columnValue))
-								.equals(convertLongToDateTime(Long.valueOf(whereValue)));
-			else
-				success = new BigDecimal(columnValue).compareTo(new BigDecimal(whereValue)) == -1
-						|| new BigDecimal(columnValue).equals(new BigDecimal(whereValue)) ? true : false;
-			break;
+	// True if no rowid a table can hold is in the key range of the predicate
+	private static boolean outsideKeys(Predicate predicate) {
+		return predicate.lowKey() > predicate.highKey() || predicate.lowKey() > Integer.MAX_VALUE
+				|| predicate.highKey() < Integer.MIN_VALUE;
+	}
 
-		case ">=":
-			if (whereType.equals("TEXT"))
-				success = columnValue.compareTo(whereValue) == 1 ? true : false;
-			else if (whereType.equals("DATE"))
-				success = convertLongToDate(Long.valueOf(columnValue))
-						.isAfter(convertLongToDate(Long.valueOf(whereValue)));
-			else if (whereType.equals("DATETIME"))
-				success = convertLongToDateTime(Long.valueOf(columnValue))
-						.isAfter(convertLongToDateTime(Long.valueOf(whereValue)));
-			else
-				success = new BigDecimal(columnValue).compareTo(new BigDecimal(whereValue)) == 1 ? true : false;
-			break;
+	// The leaf holding the lowest rowid in the key range of the predicate
+	private int firstLeaf(Predicate predicate) throws IOException {
+		long low = predicate.lowKey();
+		return low > Integer.MIN_VALUE ? findLeaf((int) low) : getFirstLeaf();
+	}
 
-		case "<=":
-			if (whereType.equals("TEXT"))
-				success = columnValue.compareTo(whereValue) == -1 ? true : false;
-			else if (whereType.equals("DATE"))
-				success = convertLongToDate(Long.valueOf(columnValue))
-						.isBefore(convertLongToDate(Long.valueOf(whereValue)));
-			else if (whereType.equals("DATETIME"))
-				success = convertLongToDateTime(Long.valueOf(columnValue))
-						.isBefore(convertLongToDateTime(Long.valueOf(whereValue)));
-			else
-				success = new BigDecimal(columnValue).compareTo(new BigDecimal(whereValue)) == -1 ? true : false;
-			break;
+	// True if the leaves after this one are past the key range of the
+	// predicate. Read before the leaf changes.
+	private boolean isLastLeaf(PageHeader pageHeader, Predicate predicate) throws IOException {
+		return pageHeader.numberOfCells > 0
+				&& getCellKey(pageHeader, pageHeader.numberOfCells - 1) >= predicate.highKey();
+	}
 
+	private long getColumnLocationFromOffset(int wherePosition, byte[] serialTypeCodes) {
+		long jumpLength = 0;
+		for (int i = 2; i < wherePosition; i++)
+			jumpLength += dataLength(serialTypeCodes[i - 2]);
+		return jumpLength;
+	}
+
+	// BTree search if where clause has primary key. Every comparison is
+	// turned into a rowid range, so only the leaves holding the range are
+	// read.
+	public List<List<Column>> selectPrimary(String whereValue, String operator, List<Integer> columns)
+			throws IOException {
+		return readAll(openPrimary(whereValue, operator, columns));
+	}
+
+	public Cursor openPrimary(String whereValue, String operator, List<Integer> columns) throws IOException {
+		long key;
+		try {
+			key = Long.parseLong(whereValue);
+		} catch (NumberFormatException e) {
+			createError("Primary Key must be an integer");
+			return Cursor.of(Collections.emptyList());
+		}
+		switch (operator) {
+		case "=":
+			return new RangeCursor(key, key, columns);
+		case "<":
+			return new RangeCursor(Integer.MIN_VALUE, below(key), columns);
+		case "<=":
+			return new RangeCursor(Integer.MIN_VALUE, key, columns);
+		case ">":
+			return new RangeCursor(above(key), Integer.MAX_VALUE, columns);
+		case ">=":
+			return new RangeCursor(key, Integer.MAX_VALUE, columns);
+		case "!=":
+		case "<>":
+			// Both ranges together cover every leaf
+			return openScan(Predicate.compile(1, "INT", operator, whereValue), columns);
 		default:
 			createError("Error in parsing relational operator: " + operator);
 		}
-		return success;
+		return Cursor.of(Collections.emptyList());
 	}
 
-	// BTree search if where clause has primary key
-	public List<List<Column>> selectPrimary(String whereValue, String operator) throws IOException {
-		int pageLocation = 0;
-		filePointer.seek(0);
-		PageHeader pageHeader = null;
-		List<List<Column>> data = new LinkedList<>();
-		List<Column> tuple;
-		byte[] serialTypeCodes;
-		if (filePointer.length() != 0)
-			do {
-				pageHeader = getHeader(pageLocation);
-				for (short offset : pageHeader.cellLocations) {
-					tuple = new LinkedList<>();
-					filePointer.seek(offset + 2);
-					tuple.add(new Column(String.valueOf(filePointer.readInt()), "INT", "N", "Y"));
-					serialTypeCodes = readSerialTypeCodes();
-					for (byte b : serialTypeCodes)
-						tuple.add(readData(b));
-					if (isCompareSuccessful(tuple.get(0).column, whereValue, "INT", operator))
-						data.add(tuple);
+	// The bounds of < and > key. Past the ends of the range of longs they
+	// stay at the key, which leaves the range they bound empty, like
+	// Predicate does.
+	private static long below(long key) {
+		return key == Long.MIN_VALUE ? key : key - 1;
+	}
+
+	private static long above(long key) {
+		return key == Long.MAX_VALUE ? key : key + 1;
+	}
+
+	/**
+	 * Return the rows whose rowid lies between <code>low</code> and
+	 * <code>high</code>, both inclusive, in rowid order.
+	 */
+	public List<List<Column>> selectRange(long low, long high) throws IOException {
+		return selectRange(low, high, null);
+	}
+
+	public List<List<Column>> selectRange(long low, long high, List<Integer> columns) throws IOException {
+		return readAll(new RangeCursor(low, high, columns));
+	}
+
+	public Cursor openRange(long low, long high, List<Integer> columns) throws IOException {
+		return new RangeCursor(low, high, columns);
+	}
+
+	/**
+	 * Return the rows with the given rowids, which have to be sorted.
+	 */
+	public List<List<Column>> selectRows(List<Integer> rowids, List<Integer> columns) throws IOException {
+		return readAll(openRows(rowids, columns));
+	}
+
+	public Cursor openRows(List<Integer> rowids, List<Integer> columns) throws IOException {
+		return new RowsCursor(rowids, columns);
+	}
+
+	/**
+	 * Base of the cursors over the rows of the leaves. A cursor moves one
+	 * {@link RowView} from row to row, {@link #next()} decodes the columns
+	 * at the ordinal positions in <code>columns</code>, all of them if it is
+	 * null. The leaf the cursor is on stays pinned until the cursor moves to
+	 * another leaf or is closed.
+	 */
+	abstract class LeafCursor implements Cursor {
+
+		final RowView view = new RowView();
+
+		private final List<Integer> columns;
+
+		PageHeader pageHeader;
+
+		ByteBuffer page;
+
+		LeafCursor(List<Integer> columns) {
+			this.columns = columns;
+		}
+
+		/**
+		 * Returns the view moved to the next row, or null when there is none.
+		 */
+		abstract RowView nextView() throws IOException;
+
+		@Override
+		public List<Column> next() throws IOException {
+			RowView row = nextView();
+			return row == null ? null : row.toRow(columns);
+		}
+
+		// Move to the leaf, unpinning the one the cursor was on
+		void readLeaf(int pageNumber) throws IOException {
+			PageHeader previous = pageHeader;
+			pageHeader = getHeader(pageNumber);
+			page = filePointer.pin(pageNumber);
+			if (previous != null)
+				filePointer.unpin(previous.pageNumber);
+		}
+
+		// Unpin the leaf, the cursor is on none after that
+		void releaseLeaf() {
+			if (pageHeader != null)
+				filePointer.unpin(pageHeader.pageNumber);
+			pageHeader = null;
+			page = null;
+		}
+	}
+
+	/**
+	 * Cursor over the leaves from the first one on, returning the rows the
+	 * predicate keeps. A null predicate, one that did not compile, keeps
+	 * none.
+	 */
+	class ScanCursor extends LeafCursor {
+
+		private final Predicate predicate;
+
+		private int index;
+
+		ScanCursor(Predicate predicate, List<Integer> columns) throws IOException {
+			super(columns);
+			this.predicate = predicate;
+			if (predicate != null && !isEmpty())
+				readLeaf(getFirstLeaf());
+		}
+
+		@Override
+		RowView nextView() throws IOException {
+			while (pageHeader != null) {
+				if (index < pageHeader.numberOfCells) {
+					if (predicate.test(view.at(page, pageHeader.cellLocations[index++])))
+						return view;
+				} else if (pageHeader.rightPointer != -1) {
+					readLeaf(pageHeader.rightPointer);
+					index = 0;
+				} else
+					close();
+			}
+			return null;
+		}
+
+		@Override
+		public void close() {
+			releaseLeaf();
+		}
+	}
+
+	/**
+	 * Scan of the leaves from the first one on that reads the rows into a
+	 * {@link Batch}, a batch at a time.
+	 */
+	class BatchScan implements Closeable {
+
+		final Batch batch;
+
+		private PageHeader pageHeader;
+
+		private ByteBuffer page;
+
+		private int index;
+
+		/**
+		 * The leaves of the rows of the batch, pinned until the next refill.
+		 * The last one is the leaf the scan is on.
+		 */
+		private final List<Integer> pinned = new ArrayList<>();
+
+		BatchScan(Batch batch) throws IOException {
+			this.batch = batch;
+			if (!isEmpty())
+				readLeaf(getFirstLeaf());
+		}
+
+		private void readLeaf(int pageNumber) throws IOException {
+			pageHeader = getHeader(pageNumber);
+			page = filePointer.pin(pageNumber);
+			pinned.add(pageNumber);
+			index = 0;
+		}
+
+		/**
+		 * Refill the batch with the next rows, all of them selected. Returns
+		 * false when there are none left.
+		 */
+		boolean next() throws IOException {
+			batch.clear();
+			unpinAllButLast(pinned);
+			while (pageHeader != null && !batch.isFull()) {
+				if (index < pageHeader.numberOfCells)
+					batch.add(page, pageHeader.cellLocations[index++]);
+				else if (pageHeader.rightPointer != -1)
+					readLeaf(pageHeader.rightPointer);
+				else {
+					// The last leaf stays pinned for the rows of the batch
+					pageHeader = null;
+					page = null;
 				}
-				pageLocation = pageHeader.rightPointer;
-			} while (pageHeader.rightPointer != -1);
-		return data;
+			}
+			batch.selectAll();
+			return batch.size > 0;
+		}
+
+		/**
+		 * Unpin the leaves. The rows of the batch cannot be read after that.
+		 */
+		@Override
+		public void close() {
+			for (int pageNumber : pinned)
+				filePointer.unpin(pageNumber);
+			pinned.clear();
+			pageHeader = null;
+			page = null;
+		}
+	}
+
+	/**
+	 * Cursor over the rows of a {@link BatchScan} the predicate keeps. The
+	 * predicate narrows the selection of each batch in one go, then the rows
+	 * selected are returned one by one.
+	 */
+	class BatchCursor implements Cursor {
+
+		private final Predicate predicate;
+
+		private final List<Integer> columns;
+
+		private final BatchScan scan;
+
+		private int next;
+
+		BatchCursor(Predicate predicate, List<Integer> columns) throws IOException {
+			this.predicate = predicate;
+			this.columns = columns;
+			scan = openBatches();
+		}
+
+		@Override
+		public List<Column> next() throws IOException {
+			Batch batch = scan.batch;
+			while (next == batch.selected) {
+				next = 0;
+				if (!scan.next()) {
+					close();
+					return null;
+				}
+				predicate.filter(batch);
+			}
+			return batch.toRow(batch.selection[next++], columns);
+		}
+
+		@Override
+		public void close() {
+			scan.close();
+			scan.batch.clear();
+			next = 0;
+		}
+	}
+
+	/**
+	 * Cursor over the rows with the given rowids, which have to be sorted.
+	 * A leaf is only looked up again once a rowid lies past its last row, so
+	 * rows sharing a leaf are read one after the other.
+	 */
+	class RowsCursor extends LeafCursor {
+
+		private Iterator<Integer> rowids;
+
+		private final Predicate predicate;
+
+		RowsCursor(List<Integer> rowids, List<Integer> columns) throws IOException {
+			this(rowids, Predicate.TRUE, columns);
+		}
+
+		RowsCursor(List<Integer> rowids, Predicate predicate, List<Integer> columns) throws IOException {
+			super(columns);
+			this.rowids = isEmpty() ? Collections.emptyIterator() : rowids.iterator();
+			this.predicate = predicate;
+		}
+
+		@Override
+		RowView nextView() throws IOException {
+			while (rowids.hasNext()) {
+				int key = rowids.next();
+				if (pageHeader == null || pageHeader.numberOfCells == 0
+						|| getCellKey(pageHeader, pageHeader.numberOfCells - 1) < key)
+					readLeaf(findLeaf(key));
+				int index = findCell(pageHeader, key);
+				if (index < pageHeader.numberOfCells && getCellKey(pageHeader, index) == key
+						&& predicate.test(view.at(page, pageHeader.cellLocations[index])))
+					return view;
+			}
+			close();
+			return null;
+		}
+
+		@Override
+		public void close() {
+			rowids = Collections.emptyIterator();
+			releaseLeaf();
+		}
+	}
+
+	/**
+	 * Cursor over the rows of a rowid range. It walks down from the root to
+	 * the leaf of the lower bound once, then follows the leaf chain and stops
+	 * at the first rowid past the upper bound.
+	 */
+	class RangeCursor extends LeafCursor {
+
+		private final long high;
+
+		private final Predicate predicate;
+
+		private int index;
+
+		RangeCursor(long low, long high, List<Integer> columns) throws IOException {
+			this(low, high, Predicate.TRUE, columns);
+		}
+
+		RangeCursor(long low, long high, Predicate predicate, List<Integer> columns) throws IOException {
+			super(columns);
+			this.high = high;
+			this.predicate = predicate;
+			if (low > high || low > Integer.MAX_VALUE || high < Integer.MIN_VALUE || isEmpty())
+				return;
+			int key = (int) Math.max(low, Integer.MIN_VALUE);
+			readLeaf(findLeaf(key));
+			index = findCell(pageHeader, key);
+		}
+
+		@Override
+		RowView nextView() throws IOException {
+			while (pageHeader != null) {
+				if (index >= pageHeader.numberOfCells) {
+					if (pageHeader.rightPointer == -1)
+						close();
+					else {
+						readLeaf(pageHeader.rightPointer);
+						index = 0;
+					}
+					continue;
+				}
+				view.at(page, pageHeader.cellLocations[index++]);
+				if (view.getRowid() > high)
+					close();
+				else if (predicate.test(view))
+					return view;
+			}
+			return null;
+		}
+
+		@Override
+		public void close() {
+			releaseLeaf();
+		}
+	}
+
+	/**
+	 * Builds the tree of an empty table bottom-up from rows added in
+	 * increasing rowid order. Leaves are packed up to the fill factor and
+	 * written as soon as they are full, each level of interior pages keeps
+	 * only the page it is building, so the file is written in one pass from
+	 * start to end. The root is written to its fixed page by
+	 * {@link #finish()}.
+	 * <p>
+	 * When the log of the table can be emptied first, every page but the
+	 * root is written straight to the file instead of going through the
+	 * buffer pool and the log, see {@link PageFile#startUnlogged()}. A crash
+	 * before the load commits leaves them past the end of the table, where
+	 * nothing refers to them.
+	 */
+	class BulkLoader {
+
+		private final int fillFactor;
+
+		private final boolean unlogged;
+
+		private final List<byte[]> leafCells = new ArrayList<>();
+
+		private int leafBytes = PAGE_HEADER_SIZE;
+
+		private int leafPage = -1;
+
+		private int lastKey;
+
+		private int rows = 0;
+
+		/**
+		 * The (child page, highest key) entries of the interior page being
+		 * built on each level, level 0 being right above the leaves.
+		 */
+		private final List<List<int[]>> levels = new ArrayList<>();
+
+		BulkLoader(int fillFactor) throws IOException {
+			if (fillFactor < 10 || fillFactor > 100)
+				throw new IllegalArgumentException("Fill factor must be between 10 and 100");
+			if (!isEmpty())
+				throw new IllegalStateException("Bulk load needs an empty table");
+			this.fillFactor = fillFactor;
+			// Keep the root page free until the end. The pages cut off may
+			// have been on the free list.
+			filePointer.setLength(position(ROOT_PAGE + 1, 0));
+			fileHeader.pageCount = ROOT_PAGE + 1;
+			fileHeader.freeListHead = 0;
+			unlogged = filePointer.startUnlogged();
+		}
+
+		// The root goes through the log with the file header, which is what
+		// makes the load visible when it commits
+		private void write(int pageNumber, byte pageType, List<byte[]> cells, int rightPointer) throws IOException {
+			if (unlogged && pageNumber != ROOT_PAGE)
+				filePointer.writeUnlogged(pageNumber, encodePage(pageType, cells, rightPointer));
+			else
+				writePage(pageNumber, pageType, cells, rightPointer);
+		}
+
+		/**
+		 * Append a row. Returns false, and adds nothing, if the rowid is not
+		 * greater than the rowid of the previous row.
+		 */
+		boolean add(int key, Payload payload) throws IOException {
+			if (rows > 0 && key <= lastKey)
+				return false;
+			byte[] cell = encodeLeafCell(key, payload);
+			if (!leafCells.isEmpty() && leafBytes + cell.length + 4 > pageSize * fillFactor / 100) {
+				// The leaf is full, its right pointer is the page of the next
+				// leaf, so that one is allocated first
+				if (leafPage == -1)
+					leafPage = allocatePage();
+				int nextPage = allocatePage();
+				write(leafPage, LEAF_PAGE, leafCells, nextPage);
+				addEntry(0, leafPage, lastKey);
+				leafPage = nextPage;
+				leafCells.clear();
+				leafBytes = PAGE_HEADER_SIZE;
+			}
+			leafCells.add(cell);
+			leafBytes += cell.length + 4;
+			lastKey = key;
+			rows++;
+			return true;
+		}
+
+		// Add a child to the interior page being built on the level, writing
+		// the page out first when it is full.
+		private void addEntry(int level, int child, int key) throws IOException {
+			if (levels.size() == level)
+				levels.add(new ArrayList<>());
+			List<int[]> entries = levels.get(level);
+			int capacity = (int) Math.max(2, (pageSize * fillFactor / 100 - PAGE_HEADER_SIZE) / 12 + 1);
+			if (entries.size() == capacity) {
+				int pageNumber = allocatePage();
+				int[] last = writeInteriorPage(pageNumber, entries);
+				addEntry(level + 1, pageNumber, last[1]);
+				entries.clear();
+			}
+			entries.add(new int[] { child, key });
+		}
+
+		// The last entry becomes the right pointer, the others become cells.
+		// Returns the last entry.
+		private int[] writeInteriorPage(int pageNumber, List<int[]> entries) throws IOException {
+			List<byte[]> cells = new ArrayList<>();
+			for (int i = 0; i < entries.size() - 1; i++)
+				cells.add(encodeInteriorCell(entries.get(i)[0], entries.get(i)[1]));
+			int[] last = entries.get(entries.size() - 1);
+			write(pageNumber, INTERIOR_PAGE, cells, last[0]);
+			return last;
+		}
+
+		/**
+		 * Write the pages still being built and the root. Returns the number
+		 * of rows loaded.
+		 */
+		int finish() throws IOException {
+			if (rows == 0) {
+				clear();
+				return 0;
+			}
+			fileHeader.rowCount = rows;
+			fileHeader.maxRowid = lastKey;
+			if (leafPage == -1) {
+				// Everything fits in the root
+				write(ROOT_PAGE, LEAF_PAGE, leafCells, -1);
+				fileHeader.rightmostLeaf = ROOT_PAGE;
+				writeFileHeader();
+				return rows;
+			}
+			write(leafPage, LEAF_PAGE, leafCells, -1);
+			fileHeader.rightmostLeaf = leafPage;
+			addEntry(0, leafPage, lastKey);
+			for (int level = 0; level < levels.size(); level++) {
+				List<int[]> entries = levels.get(level);
+				if (level == levels.size() - 1)
+					writeInteriorPage(ROOT_PAGE, entries);
+				else {
+					int pageNumber = allocatePage();
+					int[] last = writeInteriorPage(pageNumber, entries);
+					addEntry(level + 1, pageNumber, last[1]);
+				}
+			}
+			writeFileHeader();
+			return rows;
+		}
+	}
+
+	/**
+	 * Close the table file.
+	 */
+	public void close() throws IOException {
+		filePointer.close();
+	}
+
+	/**
+	 * Read the file header again from the header page, after the pages of a
+	 * statement that was rolled back were dropped from the buffer pool.
+	 */
+	void reloadHeader() throws IOException {
+		FileHeader header = readFileHeader(filePointer.getPath());
+		if (header == null)
+			clear();
+		else {
+			fileHeader = header;
+			if (header.formatVersion < FORMAT_VERSION)
+				upgradeFileHeader();
+		}
 	}
 
 	public static void createError(String err) {
@@ -0,0 +1,249 @@
+package edu.arun;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rows of a scan, up to {@link #capacity} of them. A batch only points at
+ * the cells of its rows until a column is asked for: {@link #vector(int)}
+ * then reads the values of the rows still selected into a
+ * {@link ColumnVector} of primitive arrays. Filters narrow the selection
+ * vector, the indexes of the rows still kept, with a loop over the vector
+ * of one column, so a column only the last filters look at is read for the
+ * few rows left, and only the rows left at the end become Columns.
+ * <p>
+ * A scan refills the same batch again and again, so a batch allocates its
+ * arrays once. The scan that fills a batch keeps the pages of its rows
+ * pinned in the page cache until the next fill.
+ */
+class Batch {
+
+	/**
+	 * Rows per batch, unless -Ddavisbase.batchSize says otherwise.
+	 */
+	static final int DEFAULT_SIZE = 1024;
+
+	final int capacity;
+
+	/**
+	 * Number of rows in the batch.
+	 */
+	int size;
+
+	final int[] rowids;
+
+	/**
+	 * The rows kept so far are the first {@link #selected} of these.
+	 */
+	final int[] selection;
+
+	int selected;
+
+	/**
+	 * Page and start of the leaf cell of each row.
+	 */
+	private final ByteBuffer[] pages;
+
+	private final int[] cells;
+
+	/**
+	 * Vector of the column at each ordinal position, grown as columns are
+	 * asked for.
+	 */
+	private ColumnVector[] vectors = new ColumnVector[0];
+
+	private final RowView view = new RowView();
+
+	Batch(int capacity) {
+		this.capacity = capacity;
+		rowids = new int[capacity];
+		selection = new int[capacity];
+		pages = new ByteBuffer[capacity];
+		cells = new int[capacity];
+	}
+
+	boolean isFull() {
+		return size == capacity;
+	}
+
+	void clear() {
+		size = 0;
+		selected = 0;
+		Arrays.fill(pages, null);
+		for (ColumnVector vector : vectors)
+			if (vector != null)
+				vector.clear();
+	}
+
+	/**
+	 * Append the row in the leaf cell starting at <code>cell</code> in the
+	 * page.
+	 */
+	void add(ByteBuffer page, int cell) {
+		pages[size] = page;
+		cells[size] = cell;
+		rowids[size++] = page.getInt(cell + 2);
+	}
+
+	/**
+	 * Select every row of the batch.
+	 */
+	void selectAll() {
+		for (int i = 0; i < size; i++)
+			selection[i] = i;
+		selected = size;
+	}
+
+	/**
+	 * The column at the given ordinal position, past the rowid, read for
+	 * the rows selected now that it was not read for yet.
+	 */
+	ColumnVector vector(int position) {
+		if (position >= vectors.length)
+			vectors = Arrays.copyOf(vectors, position + 1);
+		ColumnVector vector = vectors[position];
+		if (vector == null)
+			vector = vectors[position] = new ColumnVector(capacity);
+		boolean[] loaded = vector.loaded;
+		for (int k = 0; k < selected; k++) {
+			int i = selection[k];
+			if (!loaded[i]) {
+				vector.set(i, view.at(pages[i], cells[i]), position);
+				loaded[i] = true;
+			}
+		}
+		if (vector.floatingPoint)
+			for (int k = 0; k < selected; k++) {
+				int i = selection[k];
+				if (vector.codes[i] != 8 && vector.codes[i] != 9)
+					vector.doubles[i] = vector.longs[i];
+			}
+		return vector;
+	}
+
+	/**
+	 * The view moved to the row at <code>i</code>.
+	 */
+	RowView row(int i) {
+		return view.at(pages[i], cells[i]);
+	}
+
+	/**
+	 * The row at <code>i</code> with the columns at the given ordinal
+	 * positions, or all of them if <code>columns</code> is null.
+	 */
+	List<Column> toRow(int i, List<Integer> columns) {
+		return view.at(pages[i], cells[i]).toRow(columns);
+	}
+
+	/**
+	 * The values of one column. Integers, dates and datetimes are kept in
+	 * {@link #longs}; REAL and DOUBLE values in {@link #doubles}, and then
+	 * the integers of the batch as well. The bytes of TEXT values are packed
+	 * one after the other in {@link #text}.
+	 */
+	static class ColumnVector {
+
+		final byte[] codes;
+
+		final boolean[] nulls;
+
+		final long[] longs;
+
+		final double[] doubles;
+
+		/**
+		 * The TEXT value of row i is <code>lengths[i]</code> bytes from
+		 * <code>starts[i]</code> on.
+		 */
+		final int[] starts;
+
+		final int[] lengths;
+
+		byte[] text;
+
+		private int textLength;
+
+		/**
+		 * True if some value in the batch is a REAL or a DOUBLE, every number
+		 * is then in {@link #doubles}.
+		 */
+		boolean floatingPoint;
+
+		/**
+		 * True for the rows whose value is read.
+		 */
+		private final boolean[] loaded;
+
+		ColumnVector(int capacity) {
+			codes = new byte[capacity];
+			nulls = new boolean[capacity];
+			longs = new long[capacity];
+			doubles = new double[capacity];
+			starts = new int[capacity];
+			lengths = new int[capacity];
+			text = new byte[capacity * 8];
+			loaded = new boolean[capacity];
+		}
+
+		void clear() {
+			Arrays.fill(loaded, false);
+			textLength = 0;
+			floatingPoint = false;
+		}
+
+		void set(int i, RowView row, int position) {
+			byte code = row.getSerialTypeCode(position);
+			codes[i] = code;
+			nulls[i] = row.isNull(position);
+			if (code >= 12) {
+				int length = row.getLength(position);
+				if (textLength + length > text.length) {
+					byte[] grown = new byte[Math.max(2 * text.length, textLength + length)];
+					System.arraycopy(text, 0, grown, 0, textLength);
+					text = grown;
+				}
+				row.copyBytes(position, text, textLength);
+				starts[i] = textLength;
+				lengths[i] = length;
+				textLength += length;
+			} else if (code == 8 || code == 9) {
+				double value = row.getDouble(position);
+				doubles[i] = value;
+				longs[i] = (long) value;
+				floatingPoint = true;
+			} else
+				longs[i] = row.getLong(position);
+		}
+
+		/**
+		 * The value of row i as {@link RowView#getString(int)} reads it.
+		 */
+		String getString(int i) {
+			switch (codes[i]) {
+			case 0:
+			case 1:
+			case 2:
+			case 3:
+			case 12:
+				return "NULL";
+			case 4:
+			case 5:
+			case 6:
+			case 7:
+				return String.valueOf(longs[i]);
+			case 8:
+				return String.valueOf((float) doubles[i]);
+			case 9:
+				return String.valueOf(doubles[i]);
+			case 10:
+				return RowView.dateTimeString(longs[i]);
+			case 11:
+				return RowView.dateString(longs[i]);
+			default:
+				return new String(text, starts[i], lengths[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,542 @@
+package edu.arun;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide cache of table file pages. Every page read or written by a
+ * {@link CachedPageFile} goes through a fixed size frame in this pool.
+ * Frames are pinned while in use, marked dirty on write and written back
+ * lazily when they are evicted or at a checkpoint. Victims are chosen with
+ * the CLOCK (second chance) approximation of LRU.
+ * <p>
+ * Changes are made durable through the {@link WriteAheadLog} when the
+ * statement commits. Until then a modified frame is never written back to
+ * its table file. When the pool needs the room, the image of a modified
+ * frame is appended to the log instead and the frame is dropped; the page
+ * is read back from the log if it is needed again, and its image stays
+ * there until a checkpoint writes it to the table file once it is
+ * committed. The pool thus holds to its budget whatever the size of a
+ * statement. A statement that fails is rolled back with
+ * {@link #rollback()}, and a crash before the commit leaves nothing of it
+ * that recovery replays. Truncating a table file takes effect at once and
+ * is not rolled back.
+ * <p>
+ * A statement that builds new pages in bulk can write them straight to the
+ * table file past its committed end once the log is checkpointed, see
+ * {@link #startUnlogged(CachedPageFile)}. The file is forced before the
+ * commit record, and the log only holds the pages the statement changed
+ * through the pool.
+ * <p>
+ * Table files opened with -Ddavisbase.mmap=true ({@link MappedPageFile})
+ * bypass the pool and the log entirely: their changes reach the file as
+ * they are made and are neither logged nor rolled back.
+ */
+class BufferPool {
+
+	/**
+	 * Default memory budget of the pool, 16 MB.
+	 */
+	static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+	private static BufferPool instance;
+
+	private static long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+	/**
+	 * A cached page of a table file.
+	 */
+	static class Frame {
+		int fileId;
+		int pageNumber;
+		byte[] data;
+		int pinCount;
+		boolean dirty;
+		/**
+		 * Changed by the running statement, it is not written back to its
+		 * table file until the statement commits.
+		 */
+		boolean modified;
+		/**
+		 * LSN of the log record holding the last committed image of the page.
+		 */
+		long pageLsn;
+		boolean referenced;
+		/**
+		 * The handle used to write the page back to disk.
+		 */
+		CachedPageFile owner;
+	}
+
+	/**
+	 * A page whose latest image is in the log rather than in the pool or its
+	 * table file.
+	 */
+	private static class Spill {
+		final CachedPageFile owner;
+		final WriteAheadLog log;
+		/**
+		 * LSN of the record holding the image.
+		 */
+		final long lsn;
+		/**
+		 * The image holds changes of the running statement.
+		 */
+		boolean modified;
+		/**
+		 * For a modified image, the LSN of the record of the last committed
+		 * image of the page, 0 if that is in the table file.
+		 */
+		final long committedLsn;
+
+		Spill(CachedPageFile owner, WriteAheadLog log, long lsn, boolean modified, long committedLsn) {
+			this.owner = owner;
+			this.log = log;
+			this.lsn = lsn;
+			this.modified = modified;
+			this.committedLsn = committedLsn;
+		}
+	}
+
+	private final Map<Long, Frame> frames = new HashMap<>();
+
+	/**
+	 * Pages evicted to the log, by the same key as the frames.
+	 */
+	private final Map<Long, Spill> spills = new HashMap<>();
+
+	private final List<Frame> clock = new ArrayList<>();
+
+	private final Map<String, Integer> fileIds = new HashMap<>();
+
+	/**
+	 * Files written back to since they were last forced to disk.
+	 */
+	private final Set<CachedPageFile> unsynced = new HashSet<>();
+
+	/**
+	 * Files the running statement wrote pages to without logging them.
+	 */
+	private final Set<CachedPageFile> unlogged = new HashSet<>();
+
+	private int clockHand = 0;
+
+	private long usedBytes = 0;
+
+	private long hits = 0, misses = 0;
+
+	private BufferPool() {
+	}
+
+	static synchronized BufferPool getInstance() {
+		if (instance == null)
+			instance = new BufferPool();
+		return instance;
+	}
+
+	/**
+	 * Sets the number of bytes the pool may use for page frames. Takes effect
+	 * on the next page miss.
+	 */
+	static synchronized void setMemoryBudget(long bytes) {
+		memoryBudget = bytes;
+	}
+
+	static synchronized long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Returns the id under which the pages of the given file are cached. All
+	 * handles opened on the same path share their frames.
+	 */
+	synchronized int getFileId(String path) {
+		Integer id = fileIds.get(path);
+		if (id == null) {
+			id = fileIds.size() + 1;
+			fileIds.put(path, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Pin the given page of the file, reading it from disk on a miss. The
+	 * caller must {@link #unpin(Frame, boolean)} the frame when done.
+	 */
+	synchronized Frame pin(CachedPageFile file, int pageNumber) throws IOException {
+		Frame frame = frames.get(key(file.fileId, pageNumber));
+		if (frame != null) {
+			hits++;
+			frame.pinCount++;
+			frame.referenced = true;
+			return frame;
+		}
+		misses++;
+		int pageSize = file.getPageSize();
+		while (usedBytes + pageSize > memoryBudget && evict())
+			;
+		frame = new Frame();
+		frame.fileId = file.fileId;
+		frame.pageNumber = pageNumber;
+		frame.data = new byte[pageSize];
+		frame.owner = file;
+		Spill spill = spills.remove(key(file.fileId, pageNumber));
+		if (spill != null) {
+			spill.log.readPage(spill.lsn, frame.data);
+			frame.dirty = true;
+			frame.modified = spill.modified;
+			frame.pageLsn = spill.modified ? spill.committedLsn : spill.lsn;
+		} else
+			file.readPage(pageNumber, frame.data);
+		frame.pinCount = 1;
+		frame.referenced = true;
+		frames.put(key(file.fileId, pageNumber), frame);
+		clock.add(frame);
+		usedBytes += pageSize;
+		return frame;
+	}
+
+	synchronized void unpin(Frame frame, boolean dirty) {
+		frame.pinCount--;
+		if (dirty)
+			frame.dirty = true;
+	}
+
+	/**
+	 * Unpin the given page of the file. Nothing happens if its frame was
+	 * discarded in the meantime.
+	 */
+	synchronized void unpin(CachedPageFile file, int pageNumber) {
+		Frame frame = frames.get(key(file.fileId, pageNumber));
+		if (frame != null && frame.pinCount > 0)
+			frame.pinCount--;
+	}
+
+	// Advance the clock hand until an unpinned frame without the reference
+	// bit is found and drop it, after appending it to the log if it holds
+	// uncommitted changes. Returns false if every frame is pinned, the pool
+	// then grows past its budget until pages are unpinned.
+	private boolean evict() throws IOException {
+		int scanned = 0;
+		while (!clock.isEmpty() && scanned < 2 * clock.size()) {
+			if (clockHand >= clock.size())
+				clockHand = 0;
+			Frame frame = clock.get(clockHand);
+			scanned++;
+			if (frame.pinCount > 0) {
+				clockHand++;
+			} else if (frame.referenced) {
+				frame.referenced = false;
+				clockHand++;
+			} else {
+				if (frame.modified)
+					spill(frame);
+				else if (frame.dirty)
+					writeBack(frame);
+				remove(clockHand);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Append the image of a frame the running statement modified to the log,
+	// from where the page is read again. The record does not need to be
+	// forced: the table file is not written before the commit, which forces
+	// it.
+	private void spill(Frame frame) throws IOException {
+		String path = frame.owner.getPath();
+		WriteAheadLog log = WriteAheadLog.forFile(path);
+		long committedLsn = frame.pageLsn > log.getBaseLsn() ? frame.pageLsn : 0;
+		spills.put(key(frame.fileId, frame.pageNumber), new Spill(frame.owner, log,
+				log.appendPage(path, frame.pageNumber, frame.data), true, committedLsn));
+	}
+
+	// Write the committed image of a page evicted to the log back to its
+	// table file through the given handle
+	private void writeBack(Spill spill, CachedPageFile file, int pageNumber) throws IOException {
+		byte[] data = new byte[file.getPageSize()];
+		spill.log.readPage(spill.lsn, data);
+		file.writePage(pageNumber, data);
+		unsynced.add(file);
+	}
+
+	// Write a committed page back to its file, once its log record is
+	// durable.
+	private void writeBack(Frame frame) throws IOException {
+		if (frame.pageLsn > 0)
+			WriteAheadLog.forFile(frame.owner.getPath()).flush(frame.pageLsn);
+		frame.owner.writePage(frame.pageNumber, frame.data);
+		frame.dirty = false;
+		unsynced.add(frame.owner);
+	}
+
+	private void remove(int index) {
+		Frame frame = clock.get(index);
+		frames.remove(key(frame.fileId, frame.pageNumber));
+		int last = clock.size() - 1;
+		clock.set(index, clock.get(last));
+		clock.remove(last);
+		usedBytes -= frame.data.length;
+		frame.fileId = 0;
+	}
+
+	/**
+	 * Write every committed dirty page of the file back to disk in page
+	 * order, including the ones evicted to the log.
+	 */
+	synchronized void flush(CachedPageFile file) throws IOException {
+		List<Frame> dirty = new ArrayList<>();
+		for (Frame frame : clock)
+			if (frame.fileId == file.fileId && frame.dirty && !frame.modified)
+				dirty.add(frame);
+		Collections.sort(dirty, Comparator.comparingInt(f -> f.pageNumber));
+		for (Frame frame : dirty)
+			writeBack(frame);
+		List<Long> spilled = new ArrayList<>();
+		for (Map.Entry<Long, Spill> spill : spills.entrySet())
+			if (spill.getKey() >>> 32 == file.fileId && !spill.getValue().modified)
+				spilled.add(spill.getKey());
+		Collections.sort(spilled);
+		for (long key : spilled)
+			writeBack(spills.remove(key), file, (int) key);
+	}
+
+	/**
+	 * Flush the pages of a handle that is being closed and forget it as the
+	 * owner of its cached frames. The frames stay cached for other handles.
+	 */
+	synchronized void release(CachedPageFile file) throws IOException {
+		flush(file);
+		boolean written = unlogged.remove(file);
+		if (unsynced.remove(file) || written)
+			file.sync();
+		for (Frame frame : clock)
+			if (frame.owner == file && !frame.dirty)
+				frame.owner = null;
+	}
+
+	/**
+	 * Commit the running statement: the image of every page it modified that
+	 * is still in the pool is appended to the log of the page's database,
+	 * after those evicted to the log already, followed by a commit record,
+	 * and the logs are forced. The pages stay dirty in the pool or in the
+	 * log. A log that has grown past the checkpoint size is checkpointed.
+	 * Table files written to without logging are forced first.
+	 */
+	void commit() throws IOException {
+		Map<WriteAheadLog, Long> commits = new HashMap<>();
+		synchronized (this) {
+			for (CachedPageFile file : unlogged)
+				file.sync();
+			unlogged.clear();
+			List<Frame> modified = new ArrayList<>();
+			for (Frame frame : clock)
+				if (frame.modified)
+					modified.add(frame);
+			Collections.sort(modified, FILE_ORDER);
+			for (Frame frame : modified) {
+				WriteAheadLog log = WriteAheadLog.forFile(frame.owner.getPath());
+				frame.pageLsn = log.appendPage(frame.owner.getPath(), frame.pageNumber, frame.data);
+				frame.modified = false;
+				commits.put(log, 0L);
+			}
+			for (Spill spill : spills.values())
+				if (spill.modified) {
+					spill.modified = false;
+					commits.put(spill.log, 0L);
+				}
+			for (WriteAheadLog log : commits.keySet())
+				commits.put(log, log.appendCommit());
+		}
+		// Forced outside the lock so that other commits can join the group
+		for (Map.Entry<WriteAheadLog, Long> commit : commits.entrySet())
+			commit.getKey().flush(commit.getValue());
+		for (WriteAheadLog log : commits.keySet())
+			if (log.needsCheckpoint())
+				checkpoint(log);
+	}
+
+	/**
+	 * Write the committed dirty pages of the log's database back in file
+	 * order, those evicted to the log included, force the table files and
+	 * empty the log.
+	 */
+	synchronized void checkpoint(WriteAheadLog log) throws IOException {
+		List<Frame> dirty = new ArrayList<>();
+		for (Frame frame : clock) {
+			if (!frame.dirty || WriteAheadLog.forFile(frame.owner.getPath()) != log)
+				continue;
+			// The log still holds the only committed image of a page that
+			// the running statement has changed since
+			if (frame.modified)
+				return;
+			dirty.add(frame);
+		}
+		List<Long> spilled = new ArrayList<>();
+		for (Map.Entry<Long, Spill> spill : spills.entrySet())
+			if (spill.getValue().log == log) {
+				if (spill.getValue().modified)
+					return;
+				spilled.add(spill.getKey());
+			}
+		Collections.sort(dirty, FILE_ORDER);
+		for (Frame frame : dirty)
+			writeBack(frame);
+		Collections.sort(spilled);
+		for (long key : spilled) {
+			Spill spill = spills.remove(key);
+			writeBack(spill, spill.owner, (int) key);
+		}
+		// Pages evicted since the last checkpoint were written back too
+		for (Iterator<CachedPageFile> i = unsynced.iterator(); i.hasNext();) {
+			CachedPageFile file = i.next();
+			if (WriteAheadLog.forFile(file.getPath()) == log) {
+				file.sync();
+				i.remove();
+			}
+		}
+		log.reset();
+	}
+
+	/**
+	 * Checkpoint the log of the file's database so that the running
+	 * statement can write the pages past the end of the file straight to it
+	 * with {@link CachedPageFile#writeUnlogged(int, byte[])}: they hold
+	 * nothing committed, and the empty log holds no record that recovery
+	 * would replay over them, such as a truncation of the file. Returns
+	 * false if the statement already changed pages logged there.
+	 */
+	synchronized boolean startUnlogged(CachedPageFile file) throws IOException {
+		WriteAheadLog log = WriteAheadLog.forFile(file.getPath());
+		checkpoint(log);
+		return log.size() == 0;
+	}
+
+	/**
+	 * Drop the cached image of a page written straight to its table file,
+	 * which is forced before the running statement commits.
+	 */
+	synchronized void writtenUnlogged(CachedPageFile file, int pageNumber) {
+		Frame frame = frames.get(key(file.fileId, pageNumber));
+		if (frame != null)
+			remove(clock.indexOf(frame));
+		spills.remove(key(file.fileId, pageNumber));
+		unlogged.add(file);
+	}
+
+	/**
+	 * Checkpoint every database with pages in the pool. Called on shutdown.
+	 */
+	synchronized void checkpointAll() throws IOException {
+		// Every open log, since the committed pages it holds may have been
+		// written back already when their table was closed
+		for (WriteAheadLog log : WriteAheadLog.openLogs())
+			if (log.size() > 0)
+				checkpoint(log);
+	}
+
+	/**
+	 * Returns a copy of the given page of the file if it is cached or
+	 * evicted to the log, or null.
+	 */
+	synchronized byte[] peek(String path, int pageNumber) throws IOException {
+		Integer id = fileIds.get(path);
+		if (id == null)
+			return null;
+		Frame frame = frames.get(key(id, pageNumber));
+		if (frame != null)
+			return frame.data.clone();
+		Spill spill = spills.get(key(id, pageNumber));
+		if (spill == null)
+			return null;
+		byte[] data = new byte[spill.owner.getPageSize()];
+		spill.log.readPage(spill.lsn, data);
+		return data;
+	}
+
+	/**
+	 * Roll back the running statement after it failed. The frames it
+	 * modified are dropped, and so are the images of its pages evicted to
+	 * the log, which get an abort record there. The next read of such a page
+	 * gets its last committed image, from the log if it is still there or
+	 * else from the table file. Pages left pinned by the statement are
+	 * unpinned.
+	 */
+	synchronized void rollback() throws IOException {
+		// Pages written without logging lie past the committed end of their
+		// file, nothing refers to them
+		unlogged.clear();
+		for (int i = clock.size() - 1; i >= 0; i--) {
+			Frame frame = clock.get(i);
+			frame.pinCount = 0;
+			if (frame.modified) {
+				restore(key(frame.fileId, frame.pageNumber), frame.owner, frame.pageLsn);
+				remove(i);
+			}
+		}
+		Set<WriteAheadLog> aborted = new HashSet<>();
+		for (Map.Entry<Long, Spill> spill : new ArrayList<>(spills.entrySet()))
+			if (spill.getValue().modified) {
+				aborted.add(spill.getValue().log);
+				spills.remove(spill.getKey());
+				restore(spill.getKey(), spill.getValue().owner, spill.getValue().committedLsn);
+			}
+		for (WriteAheadLog log : aborted)
+			log.appendAbort();
+	}
+
+	// Point the page at its last committed image in the log, if the log still
+	// holds it
+	private void restore(long key, CachedPageFile owner, long committedLsn) throws IOException {
+		WriteAheadLog log = WriteAheadLog.forFile(owner.getPath());
+		if (committedLsn > log.getBaseLsn())
+			spills.put(key, new Spill(owner, log, committedLsn, false, 0));
+	}
+
+	/**
+	 * Drop the cached pages of the file numbered at or above
+	 * <code>fromPage</code> without writing them back. Used when a file is
+	 * truncated or deleted.
+	 */
+	synchronized void discard(int fileId, int fromPage) {
+		for (int i = clock.size() - 1; i >= 0; i--) {
+			Frame frame = clock.get(i);
+			if (frame.fileId == fileId && frame.pageNumber >= fromPage)
+				remove(i);
+		}
+		spills.keySet().removeIf(key -> key >>> 32 == fileId && key.intValue() >= fromPage);
+	}
+
+	/**
+	 * Drop every cached page of the file at the given path.
+	 */
+	synchronized void discard(String path) {
+		Integer id = fileIds.get(path);
+		if (id != null)
+			discard(id, 0);
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	private static final Comparator<Frame> FILE_ORDER = Comparator.<Frame> comparingInt(f -> f.fileId)
+			.thenComparingInt(f -> f.pageNumber);
+
+	private static long key(int fileId, int pageNumber) {
+		return ((long) fileId << 32) | (pageNumber & 0xffffffffL);
+	}
+}
@@ -0,0 +1,288 @@
+package edu.arun;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A table file accessed page by page through the shared {@link BufferPool}.
+ * Every access is served from a cached page frame instead of a system call.
+ * Changes reach the file through the pool once they are committed to the
+ * {@link WriteAheadLog}.
+ * <p>
+ * The file is grown in large chunks, the way {@link MappedPageFile} grows
+ * its mapping, and {@link #length()} tracks the logical end of the table.
+ * The file is truncated back when the last handle on it is closed. Trailing
+ * unused pages left behind by a crash are ignored when the file is opened.
+ */
+class CachedPageFile extends PageFile {
+
+	/**
+	 * The physical size of a file and the end of the pages in use, shared by
+	 * every handle open on the file.
+	 */
+	private static class Extent {
+		long allocated;
+		long used;
+		int handles;
+	}
+
+	private static final Map<String, Extent> extents = new HashMap<>();
+
+	final int fileId;
+
+	private final RandomAccessFile file;
+
+	private final BufferPool pool = BufferPool.getInstance();
+
+	private final Extent extent;
+
+	private long length;
+
+	private boolean closed = false;
+
+	/**
+	 * The frame of the page the file pointer is on. It is not kept pinned,
+	 * the page number and file id are checked before every use since the
+	 * pool may have evicted it in the meantime.
+	 */
+	private BufferPool.Frame current;
+
+	public CachedPageFile(String path, long pageSize) throws IOException {
+		super(path, pageSize);
+		this.file = new RandomAccessFile(path, "rw");
+		synchronized (extents) {
+			Extent e = extents.get(path);
+			if (e == null) {
+				e = new Extent();
+				e.allocated = file.length();
+				e.used = trimUnusedPages(e.allocated);
+				extents.put(path, e);
+			}
+			e.handles++;
+			this.extent = e;
+			this.length = e.used;
+		}
+		this.fileId = pool.getFileId(path);
+	}
+
+	// Every page in use starts with a non zero page type, so all zero pages
+	// at the end of the file were allocated by a handle that was not closed.
+	private long trimUnusedPages(long length) throws IOException {
+		while (length >= pageSize && length % pageSize == 0) {
+			file.seek(length - pageSize);
+			if (file.read() != 0)
+				break;
+			length -= pageSize;
+		}
+		return length;
+	}
+
+	// Grow the file so that at least `needed` bytes are allocated. It
+	// doubles, in steps between MIN_GROWTH and MAX_GROWTH of MappedPageFile,
+	// so that adding a page rarely costs a system call.
+	private void ensureAllocated(long needed) throws IOException {
+		synchronized (extents) {
+			extent.used = Math.max(extent.used, needed);
+			if (needed <= extent.allocated)
+				return;
+			long growth = Math.max(MappedPageFile.MIN_GROWTH, Math.min(extent.allocated, MappedPageFile.MAX_GROWTH));
+			long allocated = Math.max(needed, extent.allocated + growth);
+			allocated = (allocated + pageSize - 1) / pageSize * pageSize;
+			file.setLength(allocated);
+			extent.allocated = allocated;
+		}
+	}
+
+	/**
+	 * Read the page from disk into <code>data</code>. Pages past the end of
+	 * the file are read as zeros.
+	 */
+	void readPage(int pageNumber, byte[] data) throws IOException {
+		long pos = (long) pageNumber * pageSize;
+		int n = 0;
+		if (pos < file.length()) {
+			file.seek(pos);
+			int r;
+			while (n < data.length && (r = file.read(data, n, data.length - n)) > 0)
+				n += r;
+		}
+		for (; n < data.length; n++)
+			data[n] = 0;
+	}
+
+	/**
+	 * Write the page back to disk. Only the part of the page that lies inside
+	 * the file is written so the file never grows past {@link #length()}.
+	 */
+	void writePage(int pageNumber, byte[] data) throws IOException {
+		long pos = (long) pageNumber * pageSize;
+		if (pos >= length)
+			return;
+		file.seek(pos);
+		file.write(data, 0, (int) Math.min(data.length, length - pos));
+	}
+
+	private BufferPool.Frame frame(long pos) throws IOException {
+		int pageNumber = (int) (pos / pageSize);
+		BufferPool.Frame frame = current;
+		if (frame == null || frame.fileId != fileId || frame.pageNumber != pageNumber) {
+			frame = pool.pin(this, pageNumber);
+			pool.unpin(frame, false);
+			current = frame;
+		} else
+			frame.referenced = true;
+		return frame;
+	}
+
+	// Big endian read of n bytes, served straight from the frame when the
+	// value does not straddle a page boundary.
+	@Override
+	protected long getBits(long pos, int n) throws IOException {
+		checkBounds(pos, n);
+		int offset = (int) (pos % pageSize);
+		long value = 0;
+		if (offset + n <= pageSize) {
+			byte[] data = frame(pos).data;
+			for (int i = 0; i < n; i++)
+				value = (value << 8) | (data[offset + i] & 0xff);
+		} else
+			for (int i = 0; i < n; i++, pos++)
+				value = (value << 8) | (frame(pos).data[(int) (pos % pageSize)] & 0xff);
+		return value;
+	}
+
+	@Override
+	protected void putBits(long pos, long v, int n) throws IOException {
+		for (int i = n - 1; i >= 0; i--, pos++) {
+			BufferPool.Frame frame = frame(pos);
+			frame.data[(int) (pos % pageSize)] = (byte) (v >>> (8 * i));
+			frame.dirty = true;
+			frame.modified = true;
+			frame.owner = this;
+			if (pos >= length) {
+				ensureAllocated(pos + 1);
+				length = pos + 1;
+			}
+		}
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Returns a buffer over the frame of the page, which is not pinned: the
+	 * pool may evict the frame on the next miss.
+	 */
+	@Override
+	public ByteBuffer page(int pageNumber) throws IOException {
+		return ByteBuffer.wrap(frame((long) pageNumber * pageSize).data);
+	}
+
+	/**
+	 * Returns a buffer over the frame of the page, which stays in the pool
+	 * until it is unpinned. Changes made to the page show in the buffer.
+	 */
+	@Override
+	public ByteBuffer pin(int pageNumber) throws IOException {
+		return ByteBuffer.wrap(pool.pin(this, pageNumber).data);
+	}
+
+	@Override
+	public void unpin(int pageNumber) {
+		pool.unpin(this, pageNumber);
+	}
+
+	/**
+	 * Write a whole page straight to the file without logging it, for a page
+	 * past the end of the file when {@link #startUnlogged()} emptied the log.
+	 * The file is forced before the running statement commits.
+	 */
+	@Override
+	public void writeUnlogged(int pageNumber, byte[] data) throws IOException {
+		long pos = (long) pageNumber * pageSize;
+		if (pos + pageSize > length)
+			setLength(pos + pageSize);
+		pool.writtenUnlogged(this, pageNumber);
+		file.seek(pos);
+		file.write(data, 0, pageSize);
+	}
+
+	/**
+	 * Checkpoint the log of the file's database, see
+	 * {@link BufferPool#startUnlogged(CachedPageFile)}.
+	 */
+	@Override
+	public boolean startUnlogged() throws IOException {
+		return pool.startUnlogged(this);
+	}
+
+	/**
+	 * Truncate or extend the file. Cached pages past the new end are dropped.
+	 * The file is cut at once, so the truncation is logged first. Extending
+	 * it only allocates more room when the file is too small.
+	 */
+	@Override
+	public void setLength(long newLength) throws IOException {
+		if (newLength < length) {
+			WriteAheadLog.forFile(path).logTruncate(path, newLength);
+			pool.discard(fileId, (int) ((newLength + pageSize - 1) / pageSize));
+			synchronized (extents) {
+				file.setLength(newLength);
+				extent.allocated = newLength;
+				extent.used = newLength;
+			}
+		} else
+			ensureAllocated(newLength);
+		length = newLength;
+		current = null;
+	}
+
+	/**
+	 * Write the committed dirty pages of this file back to disk.
+	 */
+	@Override
+	public void flush() throws IOException {
+		pool.flush(this);
+	}
+
+	/**
+	 * Force what was written to the file to disk.
+	 */
+	void sync() throws IOException {
+		file.getFD().sync();
+	}
+
+	/**
+	 * Forget the extent of a file that is being deleted or recreated.
+	 */
+	static void discard(String path) {
+		synchronized (extents) {
+			extents.remove(path);
+		}
+	}
+
+	/**
+	 * Flush the pages of the file and close it. The last handle closed cuts
+	 * the room allocated past the pages in use.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		pool.release(this);
+		synchronized (extents) {
+			if (--extent.handles == 0 && extents.get(path) == extent) {
+				extents.remove(path);
+				if (extent.allocated > extent.used)
+					file.setLength(extent.used);
+			}
+		}
+		file.close();
+	}
+}
@@ -0,0 +1,348 @@
+package edu.arun;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory copy of davisbase_tables, davisbase_columns,
+ * davisbase_column_stats and davisbase_indexes. The catalog tables are read
+ * once, on first use, into a {@link TableSchema}, the
+ * {@link ColumnStatistics} and the {@link IndexSchema}s per table;
+ * statements then find their table with a hash lookup instead of scanning
+ * the catalog. DDL statements change the catalog tables and then the
+ * cache. Every change bumps the version, so that a schema cached elsewhere
+ * can tell it may be stale.
+ * <p>
+ * The catalog also keeps the size of every table, taken from the header of
+ * its file after each statement that changes it. The record_count column of
+ * davisbase_tables is brought up to date in batches rather than on every
+ * statement.
+ */
+class Catalog {
+
+	/**
+	 * Default number of row count changes collected before they are written
+	 * to davisbase_tables.
+	 */
+	static final int DEFAULT_STATS_BATCH = 32;
+
+	private static int statsBatch = DEFAULT_STATS_BATCH;
+
+	/**
+	 * Size of a table.
+	 */
+	static class TableStats {
+		/**
+		 * rowid of the row of the table in davisbase_tables.
+		 */
+		final int rowid;
+		long recordCount;
+		/**
+		 * Pages in the file, header page and free pages included. 0 until
+		 * the table file has been opened.
+		 */
+		int pageCount;
+		long pageSize;
+		/**
+		 * record_count as last written to davisbase_tables.
+		 */
+		private long savedCount;
+
+		private TableStats(int rowid, long recordCount) {
+			this.rowid = rowid;
+			this.recordCount = recordCount;
+			this.savedCount = recordCount;
+		}
+
+		/**
+		 * Bytes of the table file per row, not counting the header page.
+		 */
+		long getAverageRowSize() {
+			return recordCount == 0 ? 0 : Math.max(pageCount - 1, 0) * pageSize / recordCount;
+		}
+	}
+
+	private final BTree tablesTree;
+
+	private final BTree columnsTree;
+
+	private final BTree statisticsTree;
+
+	private final BTree indexesTree;
+
+	/**
+	 * Schemas keyed by database and table name, null until loaded.
+	 */
+	private Map<String, TableSchema> tables;
+
+	private Map<String, TableStats> stats;
+
+	/**
+	 * Statistics of the columns of the analyzed tables, by column name.
+	 */
+	private Map<String, Map<String, ColumnStatistics>> statistics;
+
+	/**
+	 * Indexes of the tables that have any, in the order they were created.
+	 */
+	private Map<String, List<IndexSchema>> indexes;
+
+	/**
+	 * Tables whose record_count in davisbase_tables is out of date.
+	 */
+	private final Set<TableStats> dirty = new LinkedHashSet<>();
+
+	private int pendingChanges = 0;
+
+	private long version = 0;
+
+	Catalog(BTree tablesTree, BTree columnsTree, BTree statisticsTree, BTree indexesTree) {
+		this.tablesTree = tablesTree;
+		this.columnsTree = columnsTree;
+		this.statisticsTree = statisticsTree;
+		this.indexesTree = indexesTree;
+	}
+
+	static synchronized void setStatsBatch(int changes) {
+		statsBatch = changes;
+	}
+
+	private static String key(String database, String tableName) {
+		return database + "\\" + tableName;
+	}
+
+	private void load() throws IOException {
+		if (tables != null)
+			return;
+		Map<String, List<List<Column>>> rows = new HashMap<>();
+		for (List<Column> row : columnsTree.selectTable(8))
+			rows.computeIfAbsent(key(row.get(7).column, row.get(1).column), k -> new ArrayList<>()).add(row);
+		tables = new HashMap<>();
+		stats = new HashMap<>();
+		for (List<Column> row : tablesTree.selectTable(4)) {
+			String database = row.get(3).column;
+			String tableName = row.get(1).column;
+			List<List<Column>> columns = rows.get(key(database, tableName));
+			if (columns != null)
+				tables.put(key(database, tableName), new TableSchema(database, tableName, columns));
+			stats.put(key(database, tableName),
+					new TableStats(Integer.parseInt(row.get(0).column), Long.parseLong(row.get(2).column)));
+		}
+		statistics = new HashMap<>();
+		for (List<Column> row : statisticsTree.selectTable(10)) {
+			TableSchema table = tables.get(key(row.get(3).column, row.get(1).column));
+			ColumnSchema column = table == null ? null : table.getColumn(row.get(2).column);
+			if (column != null)
+				statistics.computeIfAbsent(key(table.database, table.tableName), k -> new HashMap<>())
+						.put(column.name, readStatistics(column, row));
+		}
+		indexes = new HashMap<>();
+		for (List<Column> row : indexesTree.selectTable(6)) {
+			IndexSchema index = readIndex(tables.get(key(row.get(5).column, row.get(1).column)), row);
+			if (index != null)
+				indexes.computeIfAbsent(key(index.database, index.tableName), k -> new ArrayList<>()).add(index);
+		}
+	}
+
+	// Row layout of davisbase_indexes: rowid, table_name, index_name,
+	// column_name, is_unique and database_name. Returns null if the table or
+	// the column is gone.
+	private static IndexSchema readIndex(TableSchema table, List<Column> row) {
+		ColumnSchema column = table == null ? null : table.getColumn(row.get(3).column);
+		if (column == null)
+			return null;
+		return new IndexSchema(Integer.parseInt(row.get(0).column), row.get(2).column, table.database,
+				table.tableName, column, row.get(4).column.equals("YES"));
+	}
+
+	// Row layout of davisbase_column_stats: rowid, table_name, column_name,
+	// database_name, row_count, null_fraction, distinct_count, min_value,
+	// max_value and histogram
+	private static ColumnStatistics readStatistics(ColumnSchema column, List<Column> row) {
+		String min = row.get(7).column, max = row.get(8).column;
+		return new ColumnStatistics(column.name, column.type, Long.parseLong(row.get(4).column),
+				Double.parseDouble(row.get(5).column), Long.parseLong(row.get(6).column),
+				min.equals("NULL") ? null : min, max.equals("NULL") ? null : max,
+				ColumnStatistics.decodeHistogram(row.get(9).column));
+	}
+
+	/**
+	 * Returns the schema of the table, or null if the database has no such
+	 * table.
+	 */
+	synchronized TableSchema getTable(String database, String tableName) throws IOException {
+		load();
+		return tables.get(key(database, tableName));
+	}
+
+	/**
+	 * True if a table of that name exists in any database. DROP TABLE
+	 * removes the catalog rows of a table by name, so table names are kept
+	 * unique across databases.
+	 */
+	synchronized boolean containsTableName(String tableName) throws IOException {
+		load();
+		for (TableSchema table : tables.values())
+			if (table.tableName.equals(tableName))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Add a table whose rows have just been inserted in the catalog tables,
+	 * <code>rowid</code> being that of its row in davisbase_tables.
+	 */
+	synchronized void addTable(String database, String tableName, int rowid, List<List<Column>> columnRows)
+			throws IOException {
+		load();
+		tables.put(key(database, tableName), new TableSchema(database, tableName, columnRows));
+		stats.put(key(database, tableName), new TableStats(rowid, 0));
+		version++;
+	}
+
+	synchronized void removeTable(String database, String tableName) throws IOException {
+		load();
+		tables.remove(key(database, tableName));
+		TableStats removed = stats.remove(key(database, tableName));
+		if (removed != null)
+			dirty.remove(removed);
+		statistics.remove(key(database, tableName));
+		indexes.remove(key(database, tableName));
+		version++;
+	}
+
+	/**
+	 * Indexes of the table, empty if it has none.
+	 */
+	synchronized List<IndexSchema> getIndexes(String database, String tableName) throws IOException {
+		load();
+		return indexes.getOrDefault(key(database, tableName), Collections.emptyList());
+	}
+
+	/**
+	 * Returns the index of that name on a table of the database, or null if
+	 * there is none.
+	 */
+	synchronized IndexSchema findIndex(String database, String indexName) throws IOException {
+		load();
+		for (List<IndexSchema> tableIndexes : indexes.values())
+			for (IndexSchema index : tableIndexes)
+				if (index.database.equals(database) && index.name.equals(indexName))
+					return index;
+		return null;
+	}
+
+	/**
+	 * Add an index whose row has just been inserted in davisbase_indexes.
+	 */
+	synchronized void addIndex(IndexSchema index) throws IOException {
+		load();
+		indexes.computeIfAbsent(key(index.database, index.tableName), k -> new ArrayList<>()).add(index);
+		version++;
+	}
+
+	synchronized void removeIndex(IndexSchema index) throws IOException {
+		load();
+		List<IndexSchema> tableIndexes = indexes.get(key(index.database, index.tableName));
+		if (tableIndexes != null && tableIndexes.remove(index) && tableIndexes.isEmpty())
+			indexes.remove(key(index.database, index.tableName));
+		version++;
+	}
+
+	/**
+	 * Statistics of the columns of the table by column name, empty if the
+	 * table has not been analyzed.
+	 */
+	synchronized Map<String, ColumnStatistics> getStatistics(String database, String tableName) throws IOException {
+		load();
+		return statistics.getOrDefault(key(database, tableName), Collections.emptyMap());
+	}
+
+	/**
+	 * Replace the statistics of the table, once ANALYZE TABLE has written
+	 * them to davisbase_column_stats.
+	 */
+	synchronized void setStatistics(String database, String tableName, Map<String, ColumnStatistics> columns)
+			throws IOException {
+		load();
+		statistics.put(key(database, tableName), columns);
+	}
+
+	/**
+	 * Size of the table as of the last {@link #updateStats}, null if the
+	 * catalog has no such table.
+	 */
+	synchronized TableStats getStats(String database, String tableName) throws IOException {
+		load();
+		return stats.get(key(database, tableName));
+	}
+
+	/**
+	 * Take the size of the table from the header of its file, called after
+	 * a statement has changed the table. Writes the row counts that changed
+	 * to davisbase_tables once enough changes have been collected.
+	 */
+	synchronized TableStats updateStats(String database, String tableName, BTree tree) throws IOException {
+		load();
+		TableStats tableStats = stats.get(key(database, tableName));
+		if (tableStats == null)
+			return null;
+		tableStats.recordCount = tree.getRowCount();
+		tableStats.pageCount = tree.getPageCount();
+		tableStats.pageSize = tree.getPageSize();
+		if (tableStats.recordCount != tableStats.savedCount) {
+			dirty.add(tableStats);
+			if (++pendingChanges >= statsBatch)
+				flushStats();
+		}
+		return tableStats;
+	}
+
+	/**
+	 * Write the row counts that changed since the last flush to
+	 * davisbase_tables. The record_count values take as many bytes as
+	 * before, so every row is updated where it is.
+	 */
+	synchronized void flushStats() throws IOException {
+		for (TableStats tableStats : dirty) {
+			long count = Math.min(tableStats.recordCount, Integer.MAX_VALUE);
+			Payload payload = new Payload();
+			payload.noOfColumns = 1;
+			payload.serialTypeCodes = new byte[] { DavisBasePrompt.serialTypeCodes.get("INT").typeCode };
+			payload.columnData = new LinkedList<>();
+			payload.columnData.add(new Column(String.valueOf(count), "INT", "N", "NULL"));
+			tablesTree.update(1, Collections.singletonList(3), String.valueOf(tableStats.rowid), payload, 4, "=",
+					"INT");
+			tableStats.savedCount = tableStats.recordCount;
+		}
+		dirty.clear();
+		pendingChanges = 0;
+	}
+
+	synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Forget what was read from the catalog tables, after a statement that
+	 * may have changed them was rolled back. They are read again on next
+	 * use. Row counts not written to davisbase_tables yet are taken from the
+	 * table files again the next time the tables change.
+	 */
+	synchronized void reload() {
+		tables = null;
+		stats = null;
+		statistics = null;
+		indexes = null;
+		dirty.clear();
+		pendingChanges = 0;
+		version++;
+	}
+}
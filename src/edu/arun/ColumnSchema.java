@@ -0,0 +1,41 @@
+package edu.arun;
+
+/**
+ * A column of a table as described by davisbase_columns.
+ */
+class ColumnSchema {
+	final String name;
+	final String type;
+	/**
+	 * Position of the column in the table, 1 for the primary key.
+	 */
+	final int ordinalPosition;
+	final boolean nullable;
+	final boolean primaryKey;
+	/**
+	 * Serial type code of a value of the column, for TEXT the code of an
+	 * empty string.
+	 */
+	final byte serialTypeCode;
+
+	ColumnSchema(String name, String type, int ordinalPosition, boolean nullable, boolean primaryKey) {
+		this.name = name;
+		this.type = type;
+		this.ordinalPosition = ordinalPosition;
+		this.nullable = nullable;
+		this.primaryKey = primaryKey;
+		SerialTypeCode code = DavisBasePrompt.serialTypeCodes.get(type);
+		this.serialTypeCode = code == null ? -1 : code.typeCode;
+	}
+
+	boolean isText() {
+		return type.equals("TEXT");
+	}
+
+	/**
+	 * Serial type code of a value of the given length.
+	 */
+	byte serialTypeCode(int length) {
+		return isText() ? (byte) (serialTypeCode + length) : serialTypeCode;
+	}
+}
@@ -0,0 +1,230 @@
+package edu.arun;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Statistics of a column gathered by ANALYZE TABLE from a sample of the
+ * leaf pages: the fraction of NULLs, the smallest and largest value, an
+ * estimate of the number of distinct values and an equi-depth histogram,
+ * whose bounds split the values that are not NULL into buckets holding the
+ * same number of rows. They are kept in davisbase_column_stats and used to
+ * estimate how many rows a predicate selects.
+ */
+class ColumnStatistics {
+
+	/**
+	 * Number of histogram buckets, fewer if the bounds do not fit in a TEXT
+	 * value.
+	 */
+	static final int MAX_BUCKETS = 10;
+
+	/**
+	 * Longest TEXT value a cell can hold, the serial type code being a
+	 * signed byte.
+	 */
+	static final int MAX_TEXT = Byte.MAX_VALUE - 12;
+
+	/**
+	 * Longest histogram bound kept, longer TEXT values are cut.
+	 */
+	static final int MAX_BOUND = 16;
+
+	/**
+	 * Selectivity assumed for a comparison when the column has no
+	 * statistics.
+	 */
+	static final double DEFAULT_SELECTIVITY = 0.1;
+
+	/**
+	 * Default number of leaf pages read by ANALYZE TABLE.
+	 */
+	static final int DEFAULT_SAMPLE_PAGES = 64;
+
+	final String columnName;
+	final String type;
+	/**
+	 * Rows in the table when it was analyzed.
+	 */
+	final long rowCount;
+	final double nullFraction;
+	final long distinctCount;
+	/**
+	 * Smallest and largest value, null if every sampled value is NULL.
+	 */
+	final String min, max;
+	final List<String> bounds;
+
+	ColumnStatistics(String columnName, String type, long rowCount, double nullFraction, long distinctCount,
+			String min, String max, List<String> bounds) {
+		this.columnName = columnName;
+		this.type = type;
+		this.rowCount = rowCount;
+		this.nullFraction = nullFraction;
+		this.distinctCount = distinctCount;
+		this.min = min;
+		this.max = max;
+		this.bounds = bounds;
+	}
+
+	/**
+	 * Build the statistics of a column from its sampled values, "NULL"
+	 * standing for NULL. <code>rowCount</code> is the number of rows in the
+	 * table, more than the number of values if only part of it was sampled.
+	 */
+	static ColumnStatistics build(ColumnSchema column, List<String> values, long rowCount) {
+		Comparator<String> order = comparator(column.type);
+		List<String> sorted = new ArrayList<>(values.size());
+		HyperLogLog sketch = new HyperLogLog();
+		for (String value : values)
+			if (!value.equals("NULL")) {
+				sorted.add(value);
+				sketch.add(value);
+			}
+		sorted.sort(order);
+		int n = sorted.size();
+		double nullFraction = values.isEmpty() ? 0 : (double) (values.size() - n) / values.size();
+		long distinct = Math.min(sketch.estimate(), n);
+		if (values.size() < rowCount && n > 0) {
+			// Scale the distinct values of the sample up to the table with the
+			// Haas-Stokes estimator: values seen only once in the sample hint
+			// at many more that were not sampled at all
+			int once = 0;
+			for (int i = 0; i < n; i++)
+				if ((i == 0 || order.compare(sorted.get(i - 1), sorted.get(i)) != 0)
+						&& (i == n - 1 || order.compare(sorted.get(i), sorted.get(i + 1)) != 0))
+					once++;
+			double rows = rowCount * (1 - nullFraction);
+			double estimate = n * distinct / (n - once + once * n / rows);
+			distinct = Math.max(distinct, Math.min(Math.round(estimate), (long) rows));
+		}
+		List<String> bounds = new ArrayList<>();
+		int buckets = Math.min(MAX_BUCKETS, n);
+		for (int i = 0; n > 0 && i <= buckets; i++)
+			bounds.add(sorted.get((int) ((long) i * (n - 1) / buckets)));
+		return new ColumnStatistics(column.name, column.type, rowCount, nullFraction, distinct,
+				n == 0 ? null : sorted.get(0), n == 0 ? null : sorted.get(n - 1), bounds);
+	}
+
+	private static boolean isNumeric(String type) {
+		switch (type) {
+		case "TINYINT":
+		case "SMALLINT":
+		case "INT":
+		case "BIGINT":
+		case "REAL":
+		case "DOUBLE":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// Numbers compare by value, everything else as text. Dates are stored in
+	// ISO form, so their text order is their time order.
+	private static Comparator<String> comparator(String type) {
+		if (isNumeric(type))
+			return Comparator.comparingDouble(ColumnStatistics::toDouble);
+		return Comparator.naturalOrder();
+	}
+
+	private static double toDouble(String value) {
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Estimated fraction of the rows of the table for which
+	 * <code>column operator value</code> holds.
+	 */
+	double selectivity(String operator, String value) {
+		if (min == null)
+			return 0;
+		double notNull = 1 - nullFraction;
+		double equal = notNull / Math.max(distinctCount, 1);
+		switch (operator) {
+		case "=":
+			return outside(value) ? 0 : equal;
+		case "!=":
+		case "<>":
+			return outside(value) ? notNull : notNull - equal;
+		case "<":
+			return notNull * fractionBelow(value);
+		case "<=":
+			return Math.min(notNull, notNull * fractionBelow(value) + equal);
+		case ">":
+			return Math.max(0, notNull * (1 - fractionBelow(value)) - equal);
+		case ">=":
+			return notNull * (1 - fractionBelow(value));
+		default:
+			return DEFAULT_SELECTIVITY;
+		}
+	}
+
+	private boolean outside(String value) {
+		Comparator<String> order = comparator(type);
+		return order.compare(value, min) < 0 || order.compare(value, max) > 0;
+	}
+
+	// Fraction of the values that are not NULL which are smaller than the
+	// given one, interpolating inside the bucket it falls in
+	private double fractionBelow(String value) {
+		Comparator<String> order = comparator(type);
+		int buckets = bounds.size() - 1;
+		if (buckets < 1 || order.compare(value, bounds.get(0)) <= 0)
+			return 0;
+		if (order.compare(value, bounds.get(buckets)) > 0)
+			return 1;
+		int i = 0;
+		while (i < buckets - 1 && order.compare(value, bounds.get(i + 1)) > 0)
+			i++;
+		double within = 0.5;
+		if (isNumeric(type)) {
+			double low = toDouble(bounds.get(i)), high = toDouble(bounds.get(i + 1));
+			if (high > low)
+				within = (toDouble(value) - low) / (high - low);
+		}
+		return (i + Math.max(0, Math.min(1, within))) / buckets;
+	}
+
+	/**
+	 * The histogram bounds as stored in davisbase_column_stats, separated by
+	 * '|'. Long TEXT bounds are cut and buckets are merged until the whole
+	 * fits in a TEXT value.
+	 */
+	String encodeHistogram() {
+		List<String> kept = bounds;
+		while (true) {
+			StringBuilder histogram = new StringBuilder();
+			for (String bound : kept) {
+				if (histogram.length() > 0)
+					histogram.append('|');
+				histogram.append(truncate(bound.replace('|', ' '), MAX_BOUND));
+			}
+			if (histogram.length() <= MAX_TEXT || kept.size() <= 2)
+				return truncate(histogram.toString(), MAX_TEXT);
+			List<String> merged = new ArrayList<>();
+			for (int i = 0; i < kept.size(); i += 2)
+				merged.add(kept.get(i));
+			if ((kept.size() - 1) % 2 != 0)
+				merged.add(kept.get(kept.size() - 1));
+			kept = merged;
+		}
+	}
+
+	static List<String> decodeHistogram(String histogram) {
+		if (histogram.isEmpty() || histogram.equals("NULL"))
+			return Collections.emptyList();
+		return Arrays.asList(histogram.split("\\|", -1));
+	}
+
+	static String truncate(String value, int length) {
+		return value.length() <= length ? value : value.substring(0, length);
+	}
+}
@@ -0,0 +1,76 @@
+package edu.arun;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Rows read one at a time. A cursor is opened by one of the open methods of
+ * {@link BTree}, which read the rows leaf by leaf as {@link #next()} asks for
+ * them, so a result never has to fit in memory as a whole.
+ */
+interface Cursor extends Closeable {
+
+	/**
+	 * Returns the next row, or null when there is none.
+	 */
+	List<Column> next() throws IOException;
+
+	/**
+	 * Stop reading, {@link #next()} returns null from then on.
+	 */
+	@Override
+	void close();
+
+	/**
+	 * A cursor over rows already in memory.
+	 */
+	static Cursor of(List<List<Column>> rows) {
+		Iterator<List<Column>> iterator = rows.iterator();
+		return new Cursor() {
+			private boolean closed;
+
+			@Override
+			public List<Column> next() {
+				return !closed && iterator.hasNext() ? iterator.next() : null;
+			}
+
+			@Override
+			public void close() {
+				closed = true;
+			}
+		};
+	}
+
+	/**
+	 * A cursor over the rows of <code>rows</code> past the first
+	 * <code>offset</code>, up to <code>count</code> of them, for LIMIT.
+	 */
+	static Cursor limit(Cursor rows, long offset, long count) {
+		return new Cursor() {
+			private long skipped;
+
+			private long returned;
+
+			@Override
+			public List<Column> next() throws IOException {
+				List<Column> row;
+				while (skipped < offset) {
+					if (rows.next() == null)
+						return null;
+					skipped++;
+				}
+				if (returned == count || (row = rows.next()) == null)
+					return null;
+				returned++;
+				return row;
+			}
+
+			@Override
+			public void close() {
+				rows.close();
+			}
+		};
+	}
+}
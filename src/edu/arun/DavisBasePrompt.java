@@ -1,10 +1,18 @@
 package edu.arun;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
@@ -16,15 +24,30 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.expression.BinaryExpression;
 import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.Parenthesis;
+import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.expression.operators.conditional.OrExpression;
+import net.sf.jsqlparser.expression.operators.relational.Between;
 import net.sf.jsqlparser.expression.operators.relational.ComparisonOperator;
 import net.sf.jsqlparser.expression.operators.relational.ExpressionList;
+import net.sf.jsqlparser.expression.operators.relational.IsNullExpression;
+import net.sf.jsqlparser.expression.operators.relational.MultiExpressionList;
 import net.sf.jsqlparser.parser.CCJSqlParserManager;
 import net.sf.jsqlparser.schema.Table;
 import net.sf.jsqlparser.statement.Statement;
@@ -33,8 +56,11 @@ import net.sf.jsqlparser.statement.create.table.CreateTable;
 import net.sf.jsqlparser.statement.delete.Delete;
 import net.sf.jsqlparser.statement.drop.Drop;
 import net.sf.jsqlparser.statement.insert.Insert;
+import net.sf.jsqlparser.statement.select.Limit;
+import net.sf.jsqlparser.statement.select.OrderByElement;
 import net.sf.jsqlparser.statement.select.PlainSelect;
 import net.sf.jsqlparser.statement.select.Select;
+import net.sf.jsqlparser.statement.select.SelectExpressionItem;
 import net.sf.jsqlparser.statement.select.SelectItem;
 import net.sf.jsqlparser.statement.update.Update;
 
@@ -61,6 +87,8 @@ public class DavisBasePrompt {
 	static Map<String, SerialTypeCode> serialTypeCodes;
 	static Column[] davisTablesColumns = new Column[4];
 	static Column[] davisColumnsColumns = new Column[8];
+	static Column[] davisColumnStatsColumns = new Column[10];
+	static Column[] davisIndexesColumns = new Column[6];
 	static CCJSqlParserManager parser = new CCJSqlParserManager();
 	static String database = null;
 	static String genericError = "You have an error in your SQL syntax; check the manual that corresponds to your MySQL server version for the right syntax.";
@@ -96,16 +124,114 @@ public class DavisBasePrompt {
 		davisColumnsColumns[6] = new Column("column_key", "TEXT", "N", "NULL");
 		davisColumnsColumns[7] = new Column("database_name", "TEXT", "N", "NULL");
 
+		davisColumnStatsColumns[0] = new Column("rowid", "INT", "N", "PRI");
+		davisColumnStatsColumns[1] = new Column("table_name", "TEXT", "N", "NULL");
+		davisColumnStatsColumns[2] = new Column("column_name", "TEXT", "N", "NULL");
+		davisColumnStatsColumns[3] = new Column("database_name", "TEXT", "N", "NULL");
+		davisColumnStatsColumns[4] = new Column("row_count", "INT", "N", "NULL");
+		davisColumnStatsColumns[5] = new Column("null_fraction", "DOUBLE", "N", "NULL");
+		davisColumnStatsColumns[6] = new Column("distinct_count", "INT", "N", "NULL");
+		davisColumnStatsColumns[7] = new Column("min_value", "TEXT", "Y", "NULL");
+		davisColumnStatsColumns[8] = new Column("max_value", "TEXT", "Y", "NULL");
+		davisColumnStatsColumns[9] = new Column("histogram", "TEXT", "Y", "NULL");
+
+		davisIndexesColumns[0] = new Column("rowid", "INT", "N", "PRI");
+		davisIndexesColumns[1] = new Column("table_name", "TEXT", "N", "NULL");
+		davisIndexesColumns[2] = new Column("index_name", "TEXT", "N", "NULL");
+		davisIndexesColumns[3] = new Column("column_name", "TEXT", "N", "NULL");
+		davisIndexesColumns[4] = new Column("is_unique", "TEXT", "N", "NULL");
+		davisIndexesColumns[5] = new Column("database_name", "TEXT", "N", "NULL");
+
 	}
 
 	static BTree davisTablesTree;
 	static BTree davisColumnsTree;
+	static BTree davisColumnStatsTree;
+	static BTree davisIndexesTree;
+
+	/*
+	 * The schemas, statistics and indexes of all tables, read from the catalog
+	 * tables on first use
+	 */
+	static Catalog catalog;
+
+	/*
+	 * Page size for new databases and the catalog, 4 KB by default. It can be
+	 * overridden with -Ddavisbase.pageSize=<bytes>
+	 */
+	static long defaultPageSize = Long.getLong("davisbase.pageSize", 4096);
+
+	/*
+	 * Page size of the tables of the current database, chosen with CREATE
+	 * DATABASE <database_name> PAGE_SIZE <bytes>
+	 */
+	static long pageSize = defaultPageSize;
+
+	/*
+	 * Memory budget of the page cache shared by all open table files. It can
+	 * be overridden with -Ddavisbase.bufferPoolSize=<bytes>
+	 */
+	static long bufferPoolSize = Long.getLong("davisbase.bufferPoolSize", BufferPool.DEFAULT_MEMORY_BUDGET);
+
+	/*
+	 * Access table files through memory mappings instead of the page cache.
+	 * Enabled with -Ddavisbase.mmap=true
+	 */
+	static boolean memoryMapped = Boolean.getBoolean("davisbase.mmap");
+
+	/*
+	 * Size the write-ahead log of a database may reach before its committed
+	 * pages are checkpointed. It can be overridden with
+	 * -Ddavisbase.checkpointSize=<bytes>
+	 */
+	static long checkpointSize = Long.getLong("davisbase.checkpointSize", WriteAheadLog.DEFAULT_CHECKPOINT_SIZE);
+
+	/*
+	 * Number of table files kept open between statements. It can be
+	 * overridden with -Ddavisbase.tableCacheSize=<tables>
+	 */
+	static int tableCacheSize = Integer.getInteger("davisbase.tableCacheSize", TableCache.DEFAULT_CAPACITY);
+
+	static TableCache tableCache = TableCache.getInstance();
 
 	/*
-	 * Page size for alll files is 512 bytes by default. You may choose to make
-	 * it user modifiable
+	 * Number of row count changes collected before record_count is written
+	 * to davisbase_tables. It can be overridden with
+	 * -Ddavisbase.statsBatch=<changes>
 	 */
-	static long pageSize = 512;
+	static int statsBatch = Integer.getInteger("davisbase.statsBatch", Catalog.DEFAULT_STATS_BATCH);
+
+	/*
+	 * Number of leaf pages ANALYZE TABLE reads. It can be overridden with
+	 * -Ddavisbase.analyzeSamplePages=<pages>
+	 */
+	static int analyzeSamplePages = Integer.getInteger("davisbase.analyzeSamplePages",
+			ColumnStatistics.DEFAULT_SAMPLE_PAGES);
+
+	/*
+	 * Number of rows a scan reads and filters at a time. It can be overridden
+	 * with -Ddavisbase.batchSize=<rows>, 0 scans row at a time
+	 */
+	static int batchSize = Integer.getInteger("davisbase.batchSize", Batch.DEFAULT_SIZE);
+
+	/*
+	 * Number of threads an aggregate over a large table is split across. It
+	 * can be overridden with -Ddavisbase.parallelism=<threads>
+	 */
+	static int parallelism = Integer.getInteger("davisbase.parallelism", Runtime.getRuntime().availableProcessors());
+
+	/*
+	 * Memory the groups of a GROUP BY may take before they spill to files
+	 * under data. It can be overridden with -Ddavisbase.groupMemory=<bytes>
+	 */
+	static long groupMemory = Long.getLong("davisbase.groupMemory", GroupTable.DEFAULT_MEMORY_BUDGET);
+
+	/*
+	 * Memory the rows of an ORDER BY may take before they are sorted in runs
+	 * written under data. It can be overridden with
+	 * -Ddavisbase.sortMemory=<bytes>
+	 */
+	static long sortMemory = Long.getLong("davisbase.sortMemory", Sorter.DEFAULT_MEMORY_BUDGET);
 
 	/*
 	 * The Scanner class is used to collect user commands from the prompt There
@@ -129,6 +255,16 @@ public class DavisBasePrompt {
 		/* Variable to collect user input from the prompt */
 		String userCommand = "";
 
+		BufferPool.setMemoryBudget(bufferPoolSize);
+		PageFile.setMemoryMapped(memoryMapped);
+		WriteAheadLog.setCheckpointSize(checkpointSize);
+		TableCache.setCapacity(tableCacheSize);
+		Catalog.setStatsBatch(statsBatch);
+		BTree.setBatchSize(batchSize);
+		BTree.setParallelism(parallelism);
+		GroupTable.setMemoryBudget(groupMemory);
+		Sorter.setMemoryBudget(sortMemory);
+
 		// create the directories
 		Path path = Paths.get("data\\catalog");
 		if (!Files.exists(path)) {
@@ -149,15 +285,43 @@ public class DavisBasePrompt {
 			davisColumnsTree = new BTree("catalog\\davisbase_columns", pageSize);
 
 			if (firstTime) {
-				davisTablesTree.filePointer.setLength(0);
-				davisColumnsTree.filePointer.setLength(0);
+				davisTablesTree.clear();
+				davisColumnsTree.clear();
 
 				insertIntoDavisTableMetaData("davisbase_tables", "catalog");
 				insertIntoDavisTableMetaData("davisbase_columns", "catalog");
 
 				insertIntoDavisColumnsMetaData("davisbase_tables", davisTablesColumns, "catalog");
 				insertIntoDavisColumnsMetaData("davisbase_columns", davisColumnsColumns, "catalog");
+				BufferPool.getInstance().commit();
+			}
+			// Catalogs made before ANALYZE TABLE existed get the statistics
+			// table the first time they are opened
+			boolean newStatsTable = !Files.exists(Paths.get("data\\catalog\\davisbase_column_stats.tbl"),
+					LinkOption.NOFOLLOW_LINKS);
+			davisColumnStatsTree = new BTree("catalog\\davisbase_column_stats", pageSize);
+			if (newStatsTable) {
+				davisColumnStatsTree.clear();
+				insertIntoDavisTableMetaData("davisbase_column_stats", "catalog");
+				insertIntoDavisColumnsMetaData("davisbase_column_stats", davisColumnStatsColumns, "catalog");
+				BufferPool.getInstance().commit();
+			}
+			// and the index table likewise
+			boolean newIndexesTable = !Files.exists(Paths.get("data\\catalog\\davisbase_indexes.tbl"),
+					LinkOption.NOFOLLOW_LINKS);
+			davisIndexesTree = new BTree("catalog\\davisbase_indexes", pageSize);
+			if (newIndexesTable) {
+				davisIndexesTree.clear();
+				insertIntoDavisTableMetaData("davisbase_indexes", "catalog");
+				insertIntoDavisColumnsMetaData("davisbase_indexes", davisIndexesColumns, "catalog");
+				BufferPool.getInstance().commit();
 			}
+			catalog = new Catalog(davisTablesTree, davisColumnsTree, davisColumnStatsTree, davisIndexesTree);
+			// Statements on the catalog tables share the trees used for DDL
+			tableCache.register("catalog", "davisbase_tables", davisTablesTree);
+			tableCache.register("catalog", "davisbase_columns", davisColumnsTree);
+			tableCache.register("catalog", "davisbase_column_stats", davisColumnStatsTree);
+			tableCache.register("catalog", "davisbase_indexes", davisIndexesTree);
 		} catch (FileNotFoundException e) {
 			System.out.println("Unable to open Metadata tables..!");
 			return;
@@ -170,13 +334,39 @@ public class DavisBasePrompt {
 			System.out.print(prompt);
 			userCommand = scanner.next().replace("\n", "").replace("\r", "").trim();
 			// userCommand = userCommand.replace("\n", "").replace("\r", "");
-			parseUserCommand(userCommand);
+			try {
+				parseUserCommand(userCommand);
+			} catch (IOException | RuntimeException e) {
+				rollback();
+				createError("ERROR: " + e + ", the statement was rolled back");
+				continue;
+			}
+			// make the changes of the statement durable
+			BufferPool.getInstance().commit();
 		}
+		catalog.flushStats();
+		BufferPool.getInstance().commit();
+		BufferPool.getInstance().checkpointAll();
+		tableCache.closeAll();
 		System.out.println("Exiting...");
 
 	}
 
-	private static void insertIntoDavisTableMetaData(String tableName, String database) throws IOException {
+	// Undo a statement that failed halfway. Its pages are dropped from the
+	// buffer pool, then the trees and the catalog read again what they keep
+	// in memory from the pages as they were before it.
+	private static void rollback() throws IOException {
+		BufferPool.getInstance().rollback();
+		tableCache.closeUnused();
+		davisTablesTree.reloadHeader();
+		davisColumnsTree.reloadHeader();
+		davisColumnStatsTree.reloadHeader();
+		davisIndexesTree.reloadHeader();
+		catalog.reload();
+	}
+
+	// Returns the rowid of the row added to davisbase_tables
+	private static int insertIntoDavisTableMetaData(String tableName, String database) throws IOException {
 		Payload payload = new Payload();
 		short payloadLength;
 		int rowId = davisTablesTree.getLastRowId();
@@ -193,10 +383,12 @@ public class DavisBasePrompt {
 		payloadLength = (short) (1 + payload.noOfColumns + tableName.length() + 4 + database.length());
 
 		davisTablesTree.insert(++rowId, payload, payloadLength);
+		return rowId;
 	}
 
-	private static void insertIntoDavisColumnsMetaData(String tableName, Column[] tableColumns, String database)
-			throws IOException {
+	// Returns the rows added to davisbase_columns
+	private static List<List<Column>> insertIntoDavisColumnsMetaData(String tableName, Column[] tableColumns,
+			String database) throws IOException {
 		Payload payload = new Payload();
 		short payloadLength;
 		int rowId = davisColumnsTree.getLastRowId();
@@ -222,6 +414,7 @@ public class DavisBasePrompt {
 					+ tableColumns[i].type.length() + 1 + 1 + tableColumns[i].isPrimary.length() + database.length());
 			davisColumnsTree.insert(++rowId, payload, payloadLength);
 		}
+		return davisColumnsTree.selectRange(rowId - tableColumns.length + 1, rowId);
 	}
 
 	private static byte getSerialTypeCode(String typeName, int length) {
@@ -232,14 +425,6 @@ public class DavisBasePrompt {
 		}
 	}
 
-	private static short getLengthFromType(String typeName, String value) {
-		if (typeName.equals("TEXT")) {
-			return (short) value.length();
-		} else {
-			return serialTypeCodes.get(typeName).length;
-		}
-	}
-
 	/**
 	 * Display the splash screen
 	 */
@@ -279,15 +464,21 @@ public class DavisBasePrompt {
 		System.out.printf("\t%-65s %s\n", "USE <database_name>;",
 				"Uses the database for subsequent queries. You have to select the database before querying any table.");
 		System.out.printf("\t%-65s %s\n", "SHOW DATABASES;", "Displays a list of all databases in DavisBase.");
-		System.out.printf("\t%-65s %s\n", "SHOW TABLES", "Displays a list of all tables in the current database.");
-		System.out.printf("\t%-65s %s\n", "CREATE DATABASE <database_name>",
-				"Creates a new database schema, i.e. a new empty database.");
+		System.out.printf("\t%-65s %s\n", "SHOW TABLES", "Displays the tables of the current database and their sizes.");
+		System.out.printf("\t%-65s %s\n", "CREATE DATABASE <database_name> [PAGE_SIZE <bytes>]",
+				"Creates a new database schema, i.e. a new empty database. Page size is 4K, 8K, 16K or 64K.");
 		System.out.printf("\t%-65s %s\n", "CREATE TABLE table_name[columname type constraint]",
 				"Creates a new table schema, i.e. a new empty table.");
+		System.out.printf("\t%-65s %s\n", "CREATE [UNIQUE] INDEX index_name ON table_name (column_name)",
+				"Creates an index used by comparisons on the column.");
 		System.out.printf("\t%-65s %s\n", "INSERT INTO table_name VALUES value_list",
 				"Inserts a single record into a table (value_list size must be n).");
 		System.out.printf("\t%-65s %s\n", "INSERT INTO table_name [column_list] VALUES value_list",
 				"Inserts a single record into a table.");
+		System.out.printf("\t%-65s %s\n", "LOAD DATA INFILE 'file' INTO TABLE table_name [FILL_FACTOR n]",
+				"Loads an empty table from a comma separated file sorted by primary key.");
+		System.out.printf("\t%-65s %s\n", "ANALYZE TABLE table_name",
+				"Gathers the column statistics used to plan queries on the table.");
 		System.out.printf("\t%-65s %s\n", "DELETE FROM table_name [WHERE condition]",
 				"Deletes one or more records from the table.");
 		System.out.printf("\t%-65s %s\n", "UPDATE table_name SET column_name = value,...  [WHERE condition]",
@@ -295,11 +486,20 @@ public class DavisBasePrompt {
 		System.out.printf("\t%-65s %s\n", "SELECT * FROM table_name;", "Display all records in the table.");
 		System.out.printf("\t%-65s %s\n", "SELECT * FROM table_name WHERE rowid = <value>;",
 				"Display records whose rowid is <value>.");
+		System.out.printf("\t%-65s %s\n", "SELECT * FROM table_name WHERE rowid BETWEEN <low> AND <high>;",
+				"Display records whose rowid is in the range, <, <=, > and >= also use the range scan.");
 		System.out.printf("\t%-65s %s\n", "SELECT [column_list] FROM table_name WHERE rowid = <value>;",
 				"Display the specified column values for records whose rowid is <value>.");
 		System.out.printf("\t%-65s %s\n", "SELECT [column_list] FROM table_name WHERE columnname = <value>;",
 				"Display the specified column values for records whose attribute/field named columnname has the value <value>.");
+		System.out.printf("\t%-65s %s\n", "SELECT COUNT|SUM|MIN|MAX|AVG(column),... FROM table_name [WHERE condition];",
+				"Display aggregates of the records, COUNT(*) counts them all.");
+		System.out.printf("\t%-65s %s\n", "SELECT column_list, aggregates FROM table_name [WHERE condition] GROUP BY column_list;",
+				"Display the aggregates of each group of records with the same values in the columns.");
+		System.out.printf("\t%-65s %s\n", "SELECT ... ORDER BY column [ASC|DESC],... [LIMIT [offset,] n];",
+				"Display the records sorted on the columns, only the first n of them with LIMIT.");
 		System.out.printf("\t%-65s %s\n", "DROP TABLE table_name;", "Remove table data, its schema.and its metdadata");
+		System.out.printf("\t%-65s %s\n", "DROP INDEX index_name [ON table_name];", "Remove an index.");
 		System.out.printf("\t%-65s %s\n", "DROP DATABASE database_name;",
 				"Remove a database schema, and all of its contained tables.");
 		System.out.printf("\t%-65s %s\n", "VERSION;", "Show the program version.");
@@ -363,6 +563,12 @@ public class DavisBasePrompt {
 		case "insert":
 			parseInsertString(userCommand);
 			break;
+		case "load":
+			parseLoadString(userCommand);
+			break;
+		case "analyze":
+			parseAnalyzeString(userCommand);
+			break;
 		case "update":
 			parseUpdateString(userCommand);
 			break;
@@ -397,8 +603,11 @@ public class DavisBasePrompt {
 			dropTableQuery(userCommand);
 		else if (userCommand.toLowerCase().startsWith("drop database"))
 			dropDatabaseQuery(userCommand);
+		else if (userCommand.toLowerCase().startsWith("drop index"))
+			dropIndexQuery(userCommand);
 		else
-			createError("Error in SQL statement. Valid query can start with 'DROP TABLE' or 'DROP DATABASE'");
+			createError(
+					"Error in SQL statement. Valid query can start with 'DROP TABLE', 'DROP INDEX' or 'DROP DATABASE'");
 	}
 
 	private static void dropDatabaseQuery(String userCommand) throws IOException {
@@ -407,11 +616,24 @@ public class DavisBasePrompt {
 			createError("ERROR 1008 (HY000): Can't drop database '" + db + "'; database doesn't exist");
 		} else {
 			File f = new File("data\\" + db);
-			for (String name : f.list()) {
+			String[] tables = f.list((dir, file) -> file.endsWith(".tbl"));
+			for (String name : tables) {
 				davisColumnsTree.delete(2, name.replaceAll(".tbl", ""), 8, "=", "TEXT");
 				davisTablesTree.delete(2, name.replaceAll(".tbl", ""), 4, "=", "TEXT");
+				davisColumnStatsTree.delete(2, name.replaceAll(".tbl", ""), 10, "=", "TEXT");
+				davisIndexesTree.delete(2, name.replaceAll(".tbl", ""), 6, "=", "TEXT");
+				catalog.removeTable(db, name.replaceAll(".tbl", ""));
 			}
-			System.out.println("Query OK, " + f.list().length + " rows affected");
+			updateCatalogStats();
+			// The catalog no longer lists the tables before their files go
+			BufferPool.getInstance().commit();
+			tableCache.invalidateDatabase(db);
+			for (String name : tables)
+				PageFile.discard("data\\" + db + "\\" + name);
+			for (String name : f.list((dir, file) -> file.endsWith(".ndx")))
+				PageFile.discard("data\\" + db + "\\" + name);
+			WriteAheadLog.drop("data\\" + db);
+			System.out.println("Query OK, " + tables.length + " rows affected");
 			Path directory = Paths.get("data\\" + db);
 			Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
 				@Override
@@ -426,35 +648,92 @@ public class DavisBasePrompt {
 					return FileVisitResult.CONTINUE;
 				}
 			});
-			if (database.equals(db))
+			if (db.equals(database)) {
 				database = null;
+				pageSize = defaultPageSize;
+			}
 		}
 	}
 
-	private static void parseUseQuery(String userCommand) {
+	private static void parseUseQuery(String userCommand) throws IOException {
 		String db = Arrays.asList(userCommand.split(" ")).get(1);
 		if (Files.exists(Paths.get("data\\" + db), LinkOption.NOFOLLOW_LINKS)) {
 			database = db;
+			pageSize = readDatabasePageSize(db);
 			System.out.println("Database changed");
 		} else
 			createError("ERROR 1049 (42000): Unknown database '" + db + "'");
 	}
 
+	// The settings of a database are kept in database.properties in its
+	// directory. Databases created without one use the default page size.
+	private static long readDatabasePageSize(String db) throws IOException {
+		File file = new File("data\\" + db + "\\database.properties");
+		if (!file.exists())
+			return defaultPageSize;
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		}
+		return Long.parseLong(properties.getProperty("page_size", String.valueOf(defaultPageSize)));
+	}
+
+	private static void writeDatabasePageSize(String db, long size) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("page_size", String.valueOf(size));
+		try (OutputStream out = new FileOutputStream("data\\" + db + "\\database.properties")) {
+			properties.store(out, "DavisBase database settings");
+		}
+	}
+
+	// Parse a page size given in bytes or with a K suffix, e.g. 8192 or 8K.
+	// Returns -1 if it is not a supported page size.
+	private static long parsePageSize(String value) {
+		long size;
+		try {
+			if (value.toUpperCase().endsWith("K"))
+				size = Long.parseLong(value.substring(0, value.length() - 1)) * 1024;
+			else
+				size = Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+		return BTree.isValidPageSize(size) ? size : -1;
+	}
+
 	private static void parseCreateQuery(String userCommand) throws IOException {
 		if (userCommand.toLowerCase().startsWith("create database"))
 			createDatabaseQuery(userCommand);
 		else if (userCommand.toLowerCase().startsWith("create table"))
 			createTableQuery(userCommand);
+		else if (CREATE_INDEX.matcher(userCommand).lookingAt())
+			createIndexQuery(userCommand);
 		else
-			createError("Error in SQL statement. Valid query can start with 'CREATE TABLE' or 'CREATE DATABASE'");
+			createError(
+					"Error in SQL statement. Valid query can start with 'CREATE TABLE', 'CREATE INDEX' or 'CREATE DATABASE'");
 	}
 
 	private static void createDatabaseQuery(String userCommand) throws IOException {
-		String db = Arrays.asList(userCommand.split(" ")).get(2);
+		List<String> tokens = Arrays.asList(userCommand.replace("=", " ").trim().split("\\s+"));
+		String db = tokens.get(2);
+		long size = defaultPageSize;
+		if (tokens.size() > 3) {
+			if (tokens.size() != 5 || !tokens.get(3).equalsIgnoreCase("page_size")) {
+				createError("Error in SQL statement. Valid query is 'CREATE DATABASE <database_name> [PAGE_SIZE <bytes>]'");
+				return;
+			}
+			size = parsePageSize(tokens.get(4));
+			if (size == -1) {
+				createError("ERROR: Invalid page size '" + tokens.get(4) + "', it must be a power of two between "
+						+ BTree.MIN_PAGE_SIZE + " and " + BTree.MAX_PAGE_SIZE + " bytes");
+				return;
+			}
+		}
 		if (Files.exists(Paths.get("data\\" + db), LinkOption.NOFOLLOW_LINKS)) {
 			createError("ERROR 1007 (HY000): Can't create database '" + db + "'; database exists");
 		} else {
 			Files.createDirectories(Paths.get("data\\" + db));
+			writeDatabasePageSize(db, size);
 			System.out.println("Query OK, 1 row affected");
 		}
 	}
@@ -468,7 +747,7 @@ public class DavisBasePrompt {
 			createError("Error in SQL statement. Valid query can either be 'SHOW TABLES' or 'SHOW DATABASES'");
 	}
 
-	private static void showDatabases() {
+	private static void showDatabases() throws IOException {
 		File f = new File("data");
 		List<List<Column>> names = new LinkedList<>();
 		for (File dir : f.listFiles()) {
@@ -484,24 +763,52 @@ public class DavisBasePrompt {
 		columnName.add(new Column("Database", "", "", ""));
 		column.add(columnName);
 
-		QueryResultPrinter.printQueryResult(names, column, "DATABASES", null);
+		QueryResultPrinter.printQueryResult(Cursor.of(names), column, "DATABASES", null);
 	}
 
+	// Lists the tables with their number of rows, pages and bytes per row.
+	// The sizes are read from the file headers, no table is scanned.
 	private static void showTables() throws IOException {
 		File f = new File("data\\" + database);
 		List<List<Column>> names = new LinkedList<>();
-		for (String name : f.list()) {
+		for (String name : f.list((dir, file) -> file.endsWith(".tbl"))) {
+			String tableName = name.replaceAll(".tbl", "");
+			TableCache.Handle table = tableCache.acquire(database, tableName, pageSize);
+			Catalog.TableStats stats;
+			try {
+				stats = catalog.updateStats(database, tableName, table.tree);
+			} finally {
+				tableCache.release(table);
+			}
 			List<Column> nameList = new LinkedList<>();
-			nameList.add(new Column(name.replaceAll(".tbl", ""), "", "", ""));
+			nameList.add(new Column(tableName, "", "", ""));
+			nameList.add(new Column(stats == null ? null : String.valueOf(stats.recordCount), "", "", ""));
+			nameList.add(new Column(stats == null ? null : String.valueOf(stats.pageCount), "", "", ""));
+			nameList.add(new Column(stats == null ? null : String.valueOf(stats.getAverageRowSize()), "", "", ""));
 			names.add(nameList);
 		}
 
 		List<List<Column>> column = new LinkedList<>();
-		List<Column> columnName = new LinkedList<>();
-		columnName.add(new Column("Tables_in_" + database, "", "", ""));
-		column.add(columnName);
+		column.add(resultColumn("Tables_in_" + database, "TEXT"));
+		column.add(resultColumn("Rows", "BIGINT"));
+		column.add(resultColumn("Pages", "INT"));
+		column.add(resultColumn("Avg_row_length", "BIGINT"));
 
-		QueryResultPrinter.printQueryResult(names, column, "TABLES", null);
+		QueryResultPrinter.printQueryResult(Cursor.of(names), column, "TABLES", null);
+	}
+
+	// A column of a result that is not read from a table, given the way
+	// rows of davisbase_columns describe one: name third, type fourth
+	private static List<Column> resultColumn(String name, String type) {
+		return Arrays.asList(null, null, new Column(name, "", "", ""), new Column(type, "", "", ""));
+	}
+
+	// Take the sizes of the catalog tables after a DDL statement changed them
+	private static void updateCatalogStats() throws IOException {
+		catalog.updateStats("catalog", "davisbase_tables", davisTablesTree);
+		catalog.updateStats("catalog", "davisbase_columns", davisColumnsTree);
+		catalog.updateStats("catalog", "davisbase_column_stats", davisColumnStatsTree);
+		catalog.updateStats("catalog", "davisbase_indexes", davisIndexesTree);
 	}
 
 	private static void parseDeleteString(String userCommand) throws IOException {
@@ -519,30 +826,82 @@ public class DavisBasePrompt {
 						+ "' doesn't exist");
 				return;
 			}
-			ComparisonOperator e = (ComparisonOperator) deleteStat.getWhere();
+			// No WHERE clause deletes every row, through Predicate.TRUE
+			Expression where = deleteStat.getWhere();
+			if (!isSingleComparison(where)) {
+				deleteWhere(tabName, where);
+				return;
+			}
+			ComparisonOperator e = (ComparisonOperator) where;
 			String whereColumn = e.getLeftExpression().toString().toLowerCase();
-			String whereValue = e.getRightExpression().toString().toLowerCase().replaceAll("^('|\")|('|\")$", "");
+			String whereValue = e.getRightExpression().toString().replaceAll("^('|\")|('|\")$", "");
 			String operator = e.getStringExpression();
-			List<List<Column>> columns = davisColumnsTree.select(2, tabName, 5, "=", "TEXT");
-			int wherePosition = 0;
-			String whereType = null;
-			for (List<Column> colTuple : columns) {
-				if (colTuple.get(2).column.equals(whereColumn)) {
-					wherePosition = Integer.parseInt(colTuple.get(4).column);
-					whereType = colTuple.get(3).type;
-					break;
+			TableCache.Handle table = tableCache.acquire(database, tabName, pageSize);
+			try {
+				TableSchema schema = getSchema(table);
+				if (schema == null)
+					return;
+				List<List<Column>> columns = schema.rows;
+				// rowid names the primary key
+				int wherePosition = schema.getOrdinalPosition(whereColumn);
+				if (wherePosition == 0) {
+					createError("ERROR 1054 (42S22): Unknown column '" + whereColumn + "' in 'where clause'");
+					return;
 				}
+				String whereType = schema.columns.get(wherePosition - 1).type;
+
+				QueryPlan plan = QueryPlan.choose(schema, catalog.getStatistics(database, tabName), table.indexes,
+						table.tree, whereColumn, operator, whereValue);
+				// The rows are read first if their entries have to be taken out
+				// of the indexes
+				List<List<Column>> rows = table.indexes.isEmpty() ? null
+						: selectWhere(table.tree, plan, wherePosition, whereValue, columns.size(), operator, whereType,
+								null);
+				int numberOfRows;
+				if (plan.access == QueryPlan.Access.INDEX_RANGE)
+					numberOfRows = table.tree.deleteRows(rowids(rows),
+							Predicate.compile(wherePosition, whereType, operator, whereValue));
+				else if (plan.access == QueryPlan.Access.ROWID_RANGE)
+					numberOfRows = table.tree.deletePrimary(whereValue, operator);
+				else
+					numberOfRows = table.tree.delete(wherePosition, whereValue, columns.size(), operator, whereType);
+				if (rows != null)
+					removeFromIndexes(table.indexes, rows);
+				System.out.println("Query OK, " + numberOfRows + " rows affected");
+			} finally {
+				catalog.updateStats(table.database, table.tableName, table.tree);
+				tableCache.release(table);
 			}
-
-			BTree tableTree = new BTree(database + "\\" + tabName, pageSize);
-			System.out.println(
-					"Query OK, " + tableTree.delete(wherePosition, whereValue, columns.size(), operator, whereType)
-							+ " rows affected");
 		} else {
 			createError(genericError);
 		}
 	}
 
+	// Delete the rows matching a WHERE clause of more than one comparison,
+	// or every row if there is no WHERE clause
+	private static void deleteWhere(String tabName, Expression where) throws IOException {
+		TableCache.Handle table = tableCache.acquire(database, tabName, pageSize);
+		try {
+			TableSchema schema = getSchema(table);
+			if (schema == null)
+				return;
+			Predicate predicate = compileWhere(table, schema, where);
+			if (predicate == null)
+				return;
+			// The rows are read first if their entries have to be taken out of
+			// the indexes
+			List<List<Column>> rows = table.indexes.isEmpty() ? null
+					: BTree.readAll(openWhere(table, schema, where, predicate, null));
+			int numberOfRows = table.tree.delete(predicate);
+			if (rows != null)
+				removeFromIndexes(table.indexes, rows);
+			System.out.println("Query OK, " + numberOfRows + " rows affected");
+		} finally {
+			catalog.updateStats(table.database, table.tableName, table.tree);
+			tableCache.release(table);
+		}
+	}
+
 	// Parses the Update query and updates the corresponding record using update
 	private static void parseUpdateString(String userCommand) throws IOException {
 		Statement statement = null;
@@ -568,38 +927,119 @@ public class DavisBasePrompt {
 			for (Expression exp : expressions)
 				updateValues.add(exp.toString().replaceAll("^('|\")|('|\")$", ""));
 			String whereColumn = "", whereValue = "", operator = "";
-			ComparisonOperator e = (ComparisonOperator) updateStat.getWhere();
-			if (e != null) {
+			Expression where = updateStat.getWhere();
+			if (where != null && isSingleComparison(where)) {
+				ComparisonOperator e = (ComparisonOperator) where;
 				whereColumn = e.getLeftExpression().toString();
 				whereValue = e.getRightExpression().toString();
 				operator = e.getStringExpression();
 			}
-			List<List<Column>> columns = davisColumnsTree.select(2, tabName, 5, "=", "TEXT");
-			int wherePosition = 0;
-			String whereType = null, updateType = null;
-			List<Integer> updatePositions = new LinkedList<>();
-			for (List<Column> colTuple : columns) {
-				if (colTuple.get(2).column.equals(whereColumn.toLowerCase())) {
-					wherePosition = Integer.parseInt(colTuple.get(4).column);
-					whereType = colTuple.get(3).type;
+			TableCache.Handle table = tableCache.acquire(database, tabName, pageSize);
+			try {
+				TableSchema schema = getSchema(table);
+				if (schema == null)
+					return;
+				List<List<Column>> columns = schema.rows;
+				// rowid names the primary key
+				int wherePosition = schema.getOrdinalPosition(whereColumn);
+				String whereType = wherePosition == 0 ? null : schema.columns.get(wherePosition - 1).type;
+
+				// The positions follow the order of the SET list, like the values
+				List<Integer> updatePositions = new LinkedList<>();
+				Payload updates = new Payload();
+				updates.noOfColumns = (byte) colNames.size();
+				updates.serialTypeCodes = new byte[colNames.size()];
+				updates.columnData = new LinkedList<>();
+				for (int i = 0; i < colNames.size(); i++) {
+					ColumnSchema column = schema.getColumn(colNames.get(i));
+					if (column == null) {
+						createError("ERROR 1054 (42S22): Unknown column '" + colNames.get(i) + "' in 'field list'");
+						return;
+					}
+					if (column.primaryKey) {
+						createError("Error: Primary key cannot be updated");
+						return;
+					}
+					String value = updateValues.get(i);
+					if (value.equalsIgnoreCase("null") && !column.isText()) {
+						if (!column.nullable) {
+							createError("ERROR 1048 (23000): Column '" + colNames.get(i) + "' cannot be null");
+							return;
+						}
+						getNULLSerialTypeCode(updates, serialTypeCodes.get(column.type), i + 1);
+					} else {
+						updates.serialTypeCodes[i] = column.serialTypeCode(value.length());
+						updates.columnData.add(new Column(value, column.type, column.nullable ? "Y" : "N", "NULL"));
+					}
+					updatePositions.add(column.ordinalPosition);
 				}
-				if (colNames.contains(colTuple.get(2).column)) {
-					updatePositions.add(Integer.parseInt(colTuple.get(4).column));
+				if (updatePositions.isEmpty()) {
+					createError("Error: The given column(s) are not present in the table '" + tabName + "'.");
+					return;
 				}
+				whereValue = whereValue.replaceAll("^('|\")|('|\")$", "");
+				// A WHERE clause other than a single comparison, or none, is
+				// compiled whole
+				Predicate predicate = null;
+				if (!isSingleComparison(where)) {
+					predicate = compileWhere(table, schema, where);
+					if (predicate == null)
+						return;
+				} else if (wherePosition == 0) {
+					createError("ERROR 1054 (42S22): Unknown column '" + whereColumn + "' in 'where clause'");
+					return;
+				}
+				QueryPlan plan = QueryPlan.choose(schema, catalog.getStatistics(database, tabName), table.indexes,
+						table.tree, whereColumn, operator, whereValue);
+				// The indexes of the updated columns, whose entries change
+				List<IndexTree> changed = new ArrayList<>();
+				for (IndexTree index : table.indexes)
+					if (updatePositions.contains(index.index.column.ordinalPosition))
+						changed.add(index);
+				List<List<Column>> rows = null;
+				if (plan.access == QueryPlan.Access.INDEX_RANGE || !changed.isEmpty()) {
+					if (predicate != null)
+						rows = BTree.readAll(openWhere(table, schema, where, predicate, null));
+					else
+						rows = selectWhere(table.tree, plan, wherePosition, whereValue, columns.size(), operator,
+								whereType, null);
+					if (!checkUniqueUpdate(changed, rows, colNames, updateValues))
+						return;
+				}
+				int numberOfRows = 0;
+				try {
+					if (predicate != null)
+						numberOfRows = table.tree.update(predicate, updatePositions, updates);
+					else if (plan.access == QueryPlan.Access.INDEX_RANGE)
+						for (int rowid : rowids(rows))
+							numberOfRows += table.tree.update(1, updatePositions, String.valueOf(rowid), updates,
+									columns.size(), "=", "INT");
+					else
+						numberOfRows = table.tree.update(wherePosition, updatePositions, whereValue, updates,
+								columns.size(), operator, whereType);
+				} catch (NumberFormatException ex) {
+					createError("ERROR 1366 (HY000): Incorrect value for column in the SET list");
+					return;
+				}
+				for (IndexTree index : changed) {
+					ColumnSchema column = index.index.column;
+					byte[] value = IndexTree.encodeValue(column.type, updateValues.get(colNames.indexOf(column.name)));
+					for (List<Column> row : rows) {
+						byte[] old = indexValue(index, row);
+						if (old != null && value != null && Arrays.equals(old, value))
+							continue;
+						int rowid = Integer.parseInt(row.get(0).column);
+						if (old != null)
+							index.delete(old, rowid);
+						if (value != null)
+							index.insert(value, rowid);
+					}
+				}
+				System.out.println("Query OK, " + numberOfRows + " rows affected");
+			} finally {
+				catalog.updateStats(table.database, table.tableName, table.tree);
+				tableCache.release(table);
 			}
-
-			if (updatePositions.contains(1)) {
-				createError("Error: Primary key cannot be updated");
-				return;
-			} else if (updatePositions.isEmpty()) {
-				createError("Error: The given column(s) are not present in the table '" + tabName + "'.");
-				return;
-			}
-			BTree tableTree = new BTree(database + "\\" + tabName, pageSize);
-			System.out.println("Query OK, "
-					+ tableTree.update(wherePosition, updatePositions, whereValue.replaceAll("^('|\")|('|\")$", ""),
-							updateValues, columns.size(), operator, whereType, updateType)
-					+ " rows affected");
 		} else {
 			createError(genericError);
 		}
@@ -614,7 +1054,6 @@ public class DavisBasePrompt {
 		List<net.sf.jsqlparser.schema.Column> colList = null;
 		List<String> colNames = new LinkedList<>();
 		String tabName = null;
-		Integer key;
 		if (statement instanceof Insert) {
 			Insert insertStat = (Insert) statement;
 			tabName = insertStat.getTable().getName().toLowerCase();
@@ -627,70 +1066,316 @@ public class DavisBasePrompt {
 			if (colList != null)
 				for (net.sf.jsqlparser.schema.Column c : colList)
 					colNames.add(c.getColumnName().toLowerCase());
-			List<Expression> expressionList = ((ExpressionList) insertStat.getItemsList()).getExpressions();
-			List<String> values = new LinkedList<>();
-
-			for (Expression exp : expressionList)
-				values.add(exp.toString().replaceAll("^'|'$", ""));
-			BTree tableTree = new BTree(database + "\\" + tabName, pageSize);
-			List<List<Column>> columns = davisColumnsTree.select(2, tabName, 7, "=", "TEXT");
-			Payload payload = new Payload();
-			payload.noOfColumns = (byte) (columns.size() - 1);
-			payload.columnData = new LinkedList<>();
-			payload.serialTypeCodes = new byte[payload.noOfColumns];
-			short payloadLength = (short) (1 + payload.noOfColumns);
-			if (values.size() == columns.size()) {
-				for (int i = 1; i <= payload.noOfColumns; i++) {
-					payload.serialTypeCodes[i - 1] = getSerialTypeCode(columns.get(i).get(3).column,
-							values.get(i).length());
+			// INSERT ... VALUES (...), (...) gives one expression list per row
+			List<ExpressionList> rows;
+			if (insertStat.getItemsList() instanceof MultiExpressionList)
+				rows = ((MultiExpressionList) insertStat.getItemsList()).getExprList();
+			else if (insertStat.getItemsList() instanceof ExpressionList)
+				rows = Collections.singletonList((ExpressionList) insertStat.getItemsList());
+			else {
+				createError(genericError);
+				return;
+			}
+
+			TableCache.Handle table = tableCache.acquire(database, tabName, pageSize);
+			try {
+				// The schema is looked up once for the whole statement
+				TableSchema schema = getSchema(table);
+				if (schema == null)
+					return;
+				List<Integer> keys = new ArrayList<>(rows.size());
+				List<Payload> payloads = new ArrayList<>(rows.size());
+				for (ExpressionList row : rows) {
+					List<String> values = new LinkedList<>();
+					for (Expression exp : row.getExpressions())
+						values.add(exp.toString().replaceAll("^'|'$", ""));
+					Payload payload = buildInsertPayload(schema, colNames, values);
+					if (payload == null)
+						return;
+					int keyPosition = colNames.isEmpty() ? 0 : colNames.indexOf(schema.columns.get(0).name);
+					try {
+						keys.add(Integer.valueOf(values.get(keyPosition)));
+					} catch (NumberFormatException e) {
+						createError("ERROR: Invalid Primary Key");
+						return;
+					}
+					payloads.add(payload);
 				}
-				for (int i = 1; i < columns.size(); i++) {
-					payload.columnData.add(new Column(values.get(i), columns.get(i).get(3).column,
-							columns.get(i).get(5).column, "NULL"));
-					payloadLength += getLengthFromType(columns.get(i).get(3).column, values.get(i));
+
+				// The rows as they will be read back, for their index entries
+				List<List<Column>> newRows = new ArrayList<>();
+				if (!table.indexes.isEmpty()) {
+					for (int i = 0; i < keys.size(); i++) {
+						List<Column> row = new ArrayList<>();
+						row.add(new Column(String.valueOf(keys.get(i)), "INT", "N", "Y"));
+						row.addAll(payloads.get(i).columnData);
+						newRows.add(row);
+					}
+					if (!checkUnique(table.indexes, newRows))
+						return;
 				}
-			} else {
-				int i = -1;
-				for (List<Column> colAttributes : columns) {
-					if (!colNames.contains(colAttributes.get(2).column)) {
-						if (colAttributes.get(6).column.equals("PRI")) {
-							createError("ERROR 1364 (HY000): Primary Key not provided in the statement: Field '"
-									+ colAttributes.get(2).column + "' doesn't have a default value");
-							return;
-						} else if (colAttributes.get(5).column.equals("N")) {
-							createError("ERROR 1364 (HY000): Field '" + colAttributes.get(2).column
-									+ "' doesn't have a default value. It has a NOT NULL constraint.");
-							return;
+				int numberOfRows = table.tree.insertBatch(keys, payloads);
+				if (numberOfRows != 0)
+					addToIndexes(table.indexes, newRows);
+				if (numberOfRows != 0)
+					System.out.println(
+							"Query OK, " + numberOfRows + (numberOfRows == 1 ? " row" : " rows") + " affected");
+			} finally {
+				catalog.updateStats(table.database, table.tableName, table.tree);
+				tableCache.release(table);
+			}
+		} else {
+			createError(genericError);
+		}
+	}
+
+	// Build the payload of a row of an INSERT. Returns null, after reporting
+	// the error, if a column without a default value is left out.
+	private static Payload buildInsertPayload(TableSchema schema, List<String> colNames, List<String> values) {
+		if (values.size() == schema.size())
+			return buildPayload(schema, values);
+		Payload payload = new Payload();
+		payload.noOfColumns = (byte) (schema.size() - 1);
+		payload.columnData = new LinkedList<>();
+		payload.serialTypeCodes = new byte[payload.noOfColumns];
+		int i = -1;
+		for (ColumnSchema column : schema.columns) {
+			if (!colNames.contains(column.name)) {
+				if (column.primaryKey) {
+					createError("ERROR 1364 (HY000): Primary Key not provided in the statement: Field '"
+							+ column.name + "' doesn't have a default value");
+					return null;
+				} else if (!column.nullable) {
+					createError("ERROR 1364 (HY000): Field '" + column.name
+							+ "' doesn't have a default value. It has a NOT NULL constraint.");
+					return null;
+				}
+				if (column.isText()) {
+					payload.serialTypeCodes[i] = column.serialTypeCode(4);
+					payload.columnData.add(new Column("NULL", "TEXT", "Y", "NULL"));
+				} else
+					getNULLSerialTypeCode(payload, serialTypeCodes.get(column.type), i + 1);
+			} else if (i != -1) {
+				int j = colNames.indexOf(column.name);
+				payload.serialTypeCodes[i] = column.serialTypeCode(values.get(j).length());
+				payload.columnData.add(new Column(values.get(j), column.type, column.nullable ? "Y" : "N", "NULL"));
+			}
+			i++;
+		}
+		return payload;
+	}
+
+	// Build the payload of a row that has a value for every column
+	private static Payload buildPayload(TableSchema schema, List<String> values) {
+		Payload payload = new Payload();
+		payload.noOfColumns = (byte) (schema.size() - 1);
+		payload.columnData = new LinkedList<>();
+		payload.serialTypeCodes = new byte[payload.noOfColumns];
+		for (int i = 1; i < schema.size(); i++) {
+			ColumnSchema column = schema.columns.get(i);
+			payload.serialTypeCodes[i - 1] = column.serialTypeCode(values.get(i).length());
+			payload.columnData.add(new Column(values.get(i), column.type, column.nullable ? "Y" : "N", "NULL"));
+		}
+		return payload;
+	}
+
+	static final Pattern LOAD_DATA = Pattern.compile(
+			"load\\s+data\\s+infile\\s+'([^']*)'\\s+into\\s+table\\s+(\\w+)(\\s+fill_factor\\s+(\\d+))?",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * LOAD DATA INFILE 'file' INTO TABLE table_name [FILL_FACTOR percent]
+	 * <p>
+	 * Loads an empty table from a comma separated file with one row per line
+	 * and a value for every column, sorted by primary key. The tree is built
+	 * bottom-up instead of inserting the rows one by one.
+	 */
+	private static void parseLoadString(String userCommand) throws IOException {
+		Matcher matcher = LOAD_DATA.matcher(userCommand);
+		if (!matcher.matches()) {
+			createError(genericError);
+			return;
+		}
+		String fileName = matcher.group(1);
+		String tabName = matcher.group(2).toLowerCase();
+		int fillFactor = matcher.group(4) == null ? BTree.DEFAULT_FILL_FACTOR : Integer.parseInt(matcher.group(4));
+		if (Files.notExists(Paths.get("data\\" + database + "\\" + tabName + ".tbl"), LinkOption.NOFOLLOW_LINKS)) {
+			createError("ERROR 1146 (42S02): Table '" + database + "." + tabName + "' doesn't exist");
+			return;
+		}
+		if (!new File(fileName).exists()) {
+			createError("ERROR 29 (HY000): File '" + fileName + "' not found");
+			return;
+		}
+		if (fillFactor < 10 || fillFactor > 100) {
+			createError("ERROR: FILL_FACTOR must be between 10 and 100");
+			return;
+		}
+		TableCache.Handle table = tableCache.acquire(database, tabName, pageSize);
+		try {
+			BTree tableTree = table.tree;
+			if (tableTree.getRowCount() != 0) {
+				createError("ERROR: Table '" + tabName + "' must be empty to be loaded");
+				return;
+			}
+			TableSchema schema = getSchema(table);
+			if (schema == null)
+				return;
+			// A table whose rows were all deleted still has its pages. Emptying
+			// it is committed on its own, so that the loader finds a log it can
+			// empty and writes the pages it builds straight to the file.
+			tableTree.clear();
+			BufferPool.getInstance().commit();
+			BTree.BulkLoader loader = tableTree.new BulkLoader(fillFactor);
+			try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+				String line;
+				int lineNumber = 0;
+				while ((line = reader.readLine()) != null) {
+					lineNumber++;
+					if (line.trim().isEmpty())
+						continue;
+					List<String> values = splitCsvLine(line);
+					String err = null;
+					if (values.size() != schema.size())
+						err = "Line " + lineNumber + " has " + values.size() + " values, table '" + tabName + "' has "
+								+ schema.size() + " columns";
+					else
+						try {
+							if (!loader.add(Integer.parseInt(values.get(0)), buildPayload(schema, values)))
+								err = "Line " + lineNumber + " is not sorted by primary key";
+						} catch (NumberFormatException e) {
+							err = "Line " + lineNumber + " has an invalid value";
 						}
-						if (colAttributes.get(3).column.equals("TEXT")) {
-							payload.serialTypeCodes[i] = getSerialTypeCode(colAttributes.get(3).column, 4);
-							payload.columnData.add(new Column("NULL", "TEXT", "Y", "NULL"));
-							payloadLength += 4;
-						} else
-							payloadLength += getNULLSerialTypeCode(payload,
-									serialTypeCodes.get(colAttributes.get(3).column), i);
-					} else if (i != -1) {
-						int j = colNames.indexOf(colAttributes.get(2).column);
-						payload.serialTypeCodes[i] = getSerialTypeCode(colAttributes.get(3).column,
-								values.get(j).length());
-						payload.columnData.add(new Column(values.get(j), columns.get(i).get(3).column,
-								columns.get(i).get(5).column, "NULL"));
-						payloadLength += getLengthFromType(columns.get(i).get(3).column, values.get(j));
+					if (err != null) {
+						// Leave the table empty rather than half loaded
+						tableTree.clear();
+						createError("ERROR: " + err + ", nothing was loaded");
+						return;
 					}
-					i++;
 				}
 			}
+			int numberOfRows = loader.finish();
+			for (IndexTree index : table.indexes) {
+				String duplicate = buildIndex(index, tableTree);
+				if (duplicate != null) {
+					tableTree.clear();
+					for (IndexTree built : table.indexes)
+						built.clear();
+					createError("ERROR 1062 (23000): Duplicate entry '" + duplicate + "' for key '" + index.index.name
+							+ "', nothing was loaded");
+					return;
+				}
+			}
+			System.out.println("Query OK, " + numberOfRows + " rows affected");
+		} finally {
+			catalog.updateStats(table.database, table.tableName, table.tree);
+			tableCache.release(table);
+		}
+	}
 
-			if ((key = (Integer.valueOf(values.get(0)))) != null) {
-				if (tableTree.insert(key, payload, payloadLength) != 0)
-					System.out.println("Query OK, 1 row affected");
+	// Split a line of a comma separated file. Values may be quoted with ' or "
+	private static List<String> splitCsvLine(String line) {
+		List<String> values = new ArrayList<>();
+		StringBuilder value = new StringBuilder();
+		char quote = 0;
+		for (char c : line.toCharArray()) {
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+				else
+					value.append(c);
+			} else if (c == '\'' || c == '"')
+				quote = c;
+			else if (c == ',') {
+				values.add(value.toString().trim());
+				value.setLength(0);
 			} else
-				createError("ERROR: Invalid Primary Key");
-		} else {
+				value.append(c);
+		}
+		values.add(value.toString().trim());
+		return values;
+	}
+
+	static final Pattern ANALYZE_TABLE = Pattern.compile("analyze\\s+table\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * ANALYZE TABLE table_name
+	 * <p>
+	 * Reads a random sample of the leaf pages of the table and replaces its
+	 * rows in davisbase_column_stats with the statistics of every column.
+	 */
+	private static void parseAnalyzeString(String userCommand) throws IOException {
+		Matcher matcher = ANALYZE_TABLE.matcher(userCommand);
+		if (!matcher.matches()) {
 			createError(genericError);
+			return;
+		}
+		String tabName = matcher.group(1).toLowerCase();
+		if (Files.notExists(Paths.get("data\\" + database + "\\" + tabName + ".tbl"), LinkOption.NOFOLLOW_LINKS)) {
+			createError("ERROR 1146 (42S02): Table '" + database + "." + tabName + "' doesn't exist");
+			return;
+		}
+		TableCache.Handle table = tableCache.acquire(database, tabName, pageSize);
+		try {
+			TableSchema schema = getSchema(table);
+			if (schema == null)
+				return;
+			List<List<Column>> sample = table.tree.sampleRows(analyzeSamplePages, new Random());
+			Map<String, ColumnStatistics> statistics = new HashMap<>();
+			davisColumnStatsTree.delete(2, tabName, 10, "=", "TEXT");
+			for (ColumnSchema column : schema.columns) {
+				List<String> values = new ArrayList<>(sample.size());
+				for (List<Column> row : sample)
+					values.add(row.get(column.ordinalPosition - 1).column);
+				ColumnStatistics columnStatistics = ColumnStatistics.build(column, values, table.tree.getRowCount());
+				insertIntoDavisColumnStats(database, tabName, columnStatistics);
+				statistics.put(column.name, columnStatistics);
+			}
+			catalog.setStatistics(database, tabName, statistics);
+			updateCatalogStats();
+			System.out.println("Query OK, " + sample.size() + " of " + table.tree.getRowCount() + " rows sampled");
+		} finally {
+			catalog.updateStats(table.database, table.tableName, table.tree);
+			tableCache.release(table);
 		}
 	}
 
+	private static void insertIntoDavisColumnStats(String database, String tableName, ColumnStatistics statistics)
+			throws IOException {
+		String[] text = { tableName, statistics.columnName, database,
+				statistics.min == null ? "" : ColumnStatistics.truncate(statistics.min, ColumnStatistics.MAX_TEXT),
+				statistics.max == null ? "" : ColumnStatistics.truncate(statistics.max, ColumnStatistics.MAX_TEXT),
+				statistics.encodeHistogram() };
+		Payload payload = new Payload();
+		payload.noOfColumns = (byte) (davisColumnStatsColumns.length - 1);
+		payload.serialTypeCodes = new byte[payload.noOfColumns];
+		payload.serialTypeCodes[0] = getSerialTypeCode("TEXT", text[0].length());
+		payload.serialTypeCodes[1] = getSerialTypeCode("TEXT", text[1].length());
+		payload.serialTypeCodes[2] = getSerialTypeCode("TEXT", text[2].length());
+		payload.serialTypeCodes[3] = getSerialTypeCode("INT", 0);
+		payload.serialTypeCodes[4] = getSerialTypeCode("DOUBLE", 0);
+		payload.serialTypeCodes[5] = getSerialTypeCode("INT", 0);
+		payload.serialTypeCodes[6] = getSerialTypeCode("TEXT", text[3].length());
+		payload.serialTypeCodes[7] = getSerialTypeCode("TEXT", text[4].length());
+		payload.serialTypeCodes[8] = getSerialTypeCode("TEXT", text[5].length());
+		payload.columnData = new LinkedList<>();
+		payload.columnData.add(new Column(text[0], "TEXT", "N", "NULL"));
+		payload.columnData.add(new Column(text[1], "TEXT", "N", "NULL"));
+		payload.columnData.add(new Column(text[2], "TEXT", "N", "NULL"));
+		payload.columnData.add(
+				new Column(String.valueOf(Math.min(statistics.rowCount, Integer.MAX_VALUE)), "INT", "N", "NULL"));
+		payload.columnData.add(new Column(String.valueOf(statistics.nullFraction), "DOUBLE", "N", "NULL"));
+		payload.columnData.add(
+				new Column(String.valueOf(Math.min(statistics.distinctCount, Integer.MAX_VALUE)), "INT", "N", "NULL"));
+		payload.columnData.add(new Column(text[3], "TEXT", "Y", "NULL"));
+		payload.columnData.add(new Column(text[4], "TEXT", "Y", "NULL"));
+		payload.columnData.add(new Column(text[5], "TEXT", "Y", "NULL"));
+		short payloadLength = (short) (1 + payload.noOfColumns);
+		for (byte code : payload.serialTypeCodes)
+			payloadLength += BTree.dataLength(code);
+		davisColumnStatsTree.insert(davisColumnStatsTree.getLastRowId() + 1, payload, payloadLength);
+	}
+
 	private static byte getNULLSerialTypeCode(Payload payload, SerialTypeCode serialTypeCode, int i) {
 		switch (serialTypeCode.length) {
 		case 1:
@@ -731,9 +1416,22 @@ public class DavisBasePrompt {
 			Drop dropStat = (Drop) statement;
 			tabName = dropStat.getName();
 			File tableFile = new File("data\\" + database + "\\" + tabName.getName().toLowerCase() + ".tbl");
-			tableFile.delete();
 			davisColumnsTree.delete(2, tabName.getName().toLowerCase(), 8, "=", "TEXT");
 			davisTablesTree.delete(2, tabName.getName().toLowerCase(), 4, "=", "TEXT");
+			davisColumnStatsTree.delete(2, tabName.getName().toLowerCase(), 10, "=", "TEXT");
+			davisIndexesTree.delete(2, tabName.getName().toLowerCase(), 6, "=", "TEXT");
+			// The catalog no longer lists the table before its file goes
+			BufferPool.getInstance().commit();
+			tableCache.invalidate(database, tabName.getName().toLowerCase());
+			List<IndexSchema> indexes = catalog.getIndexes(database, tabName.getName().toLowerCase());
+			catalog.removeTable(database, tabName.getName().toLowerCase());
+			updateCatalogStats();
+			PageFile.discard(tableFile.getPath());
+			tableFile.delete();
+			for (IndexSchema index : indexes) {
+				PageFile.discard(index.getPath());
+				new File(index.getPath()).delete();
+			}
 
 		} else {
 			createError(genericError);
@@ -767,42 +1465,790 @@ public class DavisBasePrompt {
 			}
 			List<SelectItem> se = selectBody.getSelectItems();
 			List<Integer> ordinalPostions = null;
-			ComparisonOperator e = (ComparisonOperator) selectBody.getWhere();
-			List<List<Column>> columns = davisColumnsTree.select(2, tableName, 5, "=", "TEXT");
-			List<String> columnNames;
-			if (!se.isEmpty() && !se.get(0).toString().equals("*")) {
-				columnNames = new LinkedList<>();
-				ordinalPostions = new LinkedList<>();
-				for (SelectItem s : se)
-					columnNames.add(s.toString().toLowerCase());
-				for (List<Column> colTuple : columns) {
-					if (columnNames.contains(colTuple.get(2).column))
-						ordinalPostions.add(Integer.valueOf(colTuple.get(4).column));
+			Expression where = selectBody.getWhere();
+			List<OrderByElement> orderBy = selectBody.getOrderByElements();
+			Limit limit = selectBody.getLimit();
+			TableCache.Handle table = tableCache.acquire(database, tableName, pageSize);
+			try {
+				TableSchema schema = getSchema(table);
+				if (schema == null)
+					return;
+				List<Expression> groupBy = selectBody.getGroupByColumnReferences();
+				boolean grouped = groupBy != null && !groupBy.isEmpty();
+				if (where == null && limit == null && !grouped && selectBody.getHaving() == null
+						&& isCountAll(se)) {
+					// The file header keeps the number of rows
+					printCount(table, se.get(0).toString(), table.tree.getRowCount());
+					return;
 				}
-			}
-			List<List<Column>> queryData;
-			BTree tableTree = new BTree(database + "\\" + tableName, pageSize);
-			if (e != null) {
-				String whereColumn = e.getLeftExpression().toString();
-				String whereValue = e.getRightExpression().toString().replaceAll("^('|\")|('|\")$", "");
-				String operator = e.getStringExpression();
-				int wherePosition = 0;
-				String whereType = null;
-				for (List<Column> colTuple : columns)
-					if (colTuple.get(2).column.equals(whereColumn.toLowerCase())) {
-						wherePosition = Integer.parseInt(colTuple.get(4).column);
-						whereType = colTuple.get(3).type;
-						break;
+				if (selectBody.getHaving() != null) {
+					createError(genericError);
+					return;
+				}
+				if (grouped) {
+					selectGroups(table, schema, se, where, groupBy, orderBy, limit);
+					return;
+				}
+				if (hasAggregates(se)) {
+					selectAggregates(table, schema, se, where, orderBy, limit);
+					return;
+				}
+				List<List<Column>> columns = schema.rows;
+				List<String> columnNames;
+				// Only the selected columns are decoded from the rows
+				if (!se.isEmpty() && !se.get(0).toString().equals("*")) {
+					columnNames = new LinkedList<>();
+					ordinalPostions = new LinkedList<>();
+					for (SelectItem s : se)
+						columnNames.add(s.toString().toLowerCase());
+					for (List<Column> colTuple : columns) {
+						if (columnNames.contains(colTuple.get(2).column))
+							ordinalPostions.add(Integer.valueOf(colTuple.get(4).column));
 					}
-				queryData = tableTree.select(wherePosition, whereValue, columns.size(), operator, whereType);
-			} else
-				queryData = tableTree.selectTable(columns.size());
-			QueryResultPrinter.printQueryResult(queryData, columns, tableName, ordinalPostions);
+				}
+				// Rows come in rowid order, ORDER BY rowid needs no sort. Other
+				// columns sorted on are read after the selected ones.
+				int[] sortKeys = null;
+				List<Integer> readPositions = ordinalPostions;
+				if (orderBy != null) {
+					int[] positions = orderPositions(orderBy, schema, ordinalPostions);
+					if (positions == null)
+						return;
+					if (positions.length > 1 || positions[0] != 1 || !orderBy.get(0).isAsc()) {
+						sortKeys = new int[positions.length];
+						for (int k = 0; k < positions.length; k++) {
+							if (readPositions != null && !readPositions.contains(positions[k])) {
+								if (readPositions == ordinalPostions)
+									readPositions = new ArrayList<>(ordinalPostions);
+								readPositions.add(positions[k]);
+							}
+							sortKeys[k] = readPositions == null ? positions[k] - 1
+									: readPositions.indexOf(positions[k]);
+						}
+					}
+				}
+				Cursor queryData;
+				BTree tableTree = table.tree;
+				if (where != null && !isSingleComparison(where)) {
+					Predicate predicate = compileWhere(where, schema, catalog.getStatistics(database, tableName),
+							tableTree.getRowCount());
+					if (predicate == null)
+						return;
+					queryData = openWhere(table, schema, where, predicate, readPositions);
+				} else if (where != null) {
+					ComparisonOperator e = (ComparisonOperator) where;
+					String whereColumn = e.getLeftExpression().toString();
+					String whereValue = e.getRightExpression().toString().replaceAll("^('|\")|('|\")$", "");
+					String operator = e.getStringExpression();
+					int wherePosition = schema.getOrdinalPosition(whereColumn);
+					if (wherePosition == 0) {
+						createError("ERROR 1054 (42S22): Unknown column '" + whereColumn + "' in 'where clause'");
+						return;
+					}
+					String whereType = schema.columns.get(wherePosition - 1).type;
+					QueryPlan plan = QueryPlan.choose(schema, catalog.getStatistics(database, tableName),
+							table.indexes, tableTree, whereColumn, operator, whereValue);
+					queryData = openWhere(tableTree, plan, wherePosition, whereValue, operator, whereType,
+							readPositions);
+				} else
+					queryData = tableTree.openTable(readPositions);
+				queryData = orderBy(queryData, orderBy, sortKeys,
+						ordinalPostions == null ? schema.size() : ordinalPostions.size(), limit);
+				QueryResultPrinter.printQueryResult(queryData, columns, tableName, ordinalPostions);
+			} finally {
+				tableCache.release(table);
+			}
 		} else {
 			createError(genericError);
 		}
 	}
 
+	// True for a select list that is only COUNT(*)
+	private static boolean isCountAll(List<SelectItem> se) {
+		if (se.size() != 1 || !(se.get(0) instanceof SelectExpressionItem))
+			return false;
+		Expression expression = ((SelectExpressionItem) se.get(0)).getExpression();
+		return expression instanceof Function && ((Function) expression).isAllColumns()
+				&& ((Function) expression).getName().equalsIgnoreCase("count");
+	}
+
+	// True if the select list holds an aggregate function
+	private static boolean hasAggregates(List<SelectItem> se) {
+		for (SelectItem item : se)
+			if (item instanceof SelectExpressionItem
+					&& ((SelectExpressionItem) item).getExpression() instanceof Function && Aggregate.function(
+							((Function) ((SelectExpressionItem) item).getExpression()).getName()) >= 0)
+				return true;
+		return false;
+	}
+
+	// Work out the aggregates of the select list over the rows the WHERE
+	// clause keeps, while they are read, and print them as one row
+	private static void selectAggregates(TableCache.Handle table, TableSchema schema, List<SelectItem> se,
+			Expression where, List<OrderByElement> orderBy, Limit limit) throws IOException {
+		Aggregate[] aggregates = new Aggregate[se.size()];
+		List<List<Column>> columns = new ArrayList<>();
+		for (int i = 0; i < aggregates.length; i++) {
+			aggregates[i] = compileAggregate(se.get(i), schema);
+			if (aggregates[i] == null)
+				return;
+			columns.add(resultColumn(table, se.get(i).toString(), aggregates[i].resultType()));
+		}
+		BTree tableTree = table.tree;
+		Predicate predicate = compileWhere(table, schema, where);
+		if (predicate == null)
+			return;
+		List<Integer> rowids = where == null ? null : indexRowids(table, schema, where);
+		if (rowids != null)
+			tableTree.aggregate(rowids, predicate, aggregates);
+		else
+			tableTree.aggregate(predicate, aggregates);
+		List<Column> row = new ArrayList<>(aggregates.length);
+		for (Aggregate aggregate : aggregates)
+			row.add(aggregate.result());
+		// A single row needs no sort
+		Cursor result = orderBy(Cursor.of(Collections.singletonList(row)), orderBy, null, aggregates.length, limit);
+		QueryResultPrinter.printQueryResult(result, columns, table.tableName, null);
+	}
+
+	// Work out the aggregates of the select list for each group of rows the
+	// WHERE clause keeps, and print a row per group
+	private static void selectGroups(TableCache.Handle table, TableSchema schema, List<SelectItem> se,
+			Expression where, List<Expression> groupBy, List<OrderByElement> orderBy, Limit limit)
+			throws IOException {
+		int[] groupPositions = new int[groupBy.size()];
+		for (int j = 0; j < groupPositions.length; j++) {
+			if (!(groupBy.get(j) instanceof net.sf.jsqlparser.schema.Column)) {
+				createError(genericError);
+				return;
+			}
+			String name = ((net.sf.jsqlparser.schema.Column) groupBy.get(j)).getColumnName();
+			ColumnSchema column = schema.getColumn(name);
+			if (column == null) {
+				createError("ERROR 1054 (42S22): Unknown column '" + name + "' in 'group statement'");
+				return;
+			}
+			groupPositions[j] = column.ordinalPosition;
+		}
+		List<Aggregate> aggregates = new ArrayList<>();
+		int[] outputs = new int[se.size()];
+		List<List<Column>> columns = new ArrayList<>();
+		for (int i = 0; i < outputs.length; i++) {
+			SelectItem item = se.get(i);
+			Expression expression = item instanceof SelectExpressionItem
+					? ((SelectExpressionItem) item).getExpression() : null;
+			if (expression instanceof net.sf.jsqlparser.schema.Column) {
+				String name = ((net.sf.jsqlparser.schema.Column) expression).getColumnName();
+				ColumnSchema column = schema.getColumn(name);
+				if (column == null) {
+					createError("ERROR 1054 (42S22): Unknown column '" + name + "' in 'field list'");
+					return;
+				}
+				outputs[i] = -1;
+				for (int j = 0; j < groupPositions.length; j++)
+					if (groupPositions[j] == column.ordinalPosition)
+						outputs[i] = j;
+				if (outputs[i] < 0) {
+					createError("ERROR 1055 (42000): '" + database + "." + table.tableName + "." + column.name
+							+ "' isn't in GROUP BY");
+					return;
+				}
+				columns.add(resultColumn(table, item.toString(), column.type));
+			} else {
+				Aggregate aggregate = compileAggregate(item, schema);
+				if (aggregate == null)
+					return;
+				outputs[i] = -1 - aggregates.size();
+				aggregates.add(aggregate);
+				columns.add(resultColumn(table, item.toString(), aggregate.resultType()));
+			}
+		}
+		int[] sortKeys = null;
+		if (orderBy != null) {
+			sortKeys = orderItems(orderBy, se);
+			if (sortKeys == null)
+				return;
+		}
+		Predicate predicate = compileWhere(table, schema, where);
+		if (predicate == null)
+			return;
+		GroupTable groups = new GroupTable(groupPositions, aggregates.toArray(new Aggregate[0]), outputs);
+		List<Integer> rowids = where == null ? null : indexRowids(table, schema, where);
+		if (rowids != null)
+			table.tree.group(rowids, predicate, groups);
+		else
+			table.tree.group(predicate, groups);
+		QueryResultPrinter.printQueryResult(orderBy(groups.open(), orderBy, sortKeys, outputs.length, limit),
+				columns, table.tableName, null);
+	}
+
+	// The ordinal positions of the columns of ORDER BY, a number standing
+	// for that column of the result. Reports the error and returns null if
+	// one is not a column of the table.
+	private static int[] orderPositions(List<OrderByElement> orderBy, TableSchema schema, List<Integer> columns) {
+		int[] positions = new int[orderBy.size()];
+		for (int k = 0; k < positions.length; k++) {
+			Expression expression = orderBy.get(k).getExpression();
+			if (expression instanceof LongValue) {
+				long n = ((LongValue) expression).getValue();
+				int count = columns == null ? schema.size() : columns.size();
+				if (n >= 1 && n <= count)
+					positions[k] = columns == null ? (int) n : columns.get((int) n - 1);
+			} else if (expression instanceof net.sf.jsqlparser.schema.Column)
+				positions[k] = schema
+						.getOrdinalPosition(((net.sf.jsqlparser.schema.Column) expression).getColumnName());
+			else {
+				createError(genericError);
+				return null;
+			}
+			if (positions[k] == 0) {
+				createError("ERROR 1054 (42S22): Unknown column '" + expression + "' in 'order clause'");
+				return null;
+			}
+		}
+		return positions;
+	}
+
+	// The index in the select list of each item of ORDER BY, written the same
+	// way or by its number. Reports the error and returns null if one is not
+	// in the select list.
+	private static int[] orderItems(List<OrderByElement> orderBy, List<SelectItem> se) {
+		int[] items = new int[orderBy.size()];
+		for (int k = 0; k < items.length; k++) {
+			Expression expression = orderBy.get(k).getExpression();
+			items[k] = -1;
+			if (expression instanceof LongValue) {
+				long n = ((LongValue) expression).getValue();
+				if (n >= 1 && n <= se.size())
+					items[k] = (int) n - 1;
+			} else
+				for (int i = 0; i < se.size() && items[k] < 0; i++)
+					if (se.get(i).toString().equalsIgnoreCase(expression.toString()))
+						items[k] = i;
+			if (items[k] < 0) {
+				createError("ERROR 1054 (42S22): Unknown column '" + expression + "' in 'order clause'");
+				return null;
+			}
+		}
+		return items;
+	}
+
+	// The rows sorted on the columns at the sort keys, after ORDER BY, with
+	// only their first width columns, and cut after LIMIT. Rows already in
+	// order have no sort keys. A LIMIT keeps only that many rows while
+	// sorting.
+	private static Cursor orderBy(Cursor rows, List<OrderByElement> orderBy, int[] sortKeys, int width,
+			Limit limit) throws IOException {
+		long offset = limit == null ? 0 : limit.getOffset();
+		long count = limit == null || limit.isLimitAll() || limit.isLimitNull() ? Long.MAX_VALUE
+				: limit.getRowCount();
+		if (sortKeys == null)
+			return limit == null ? rows : Cursor.limit(rows, offset, count);
+		boolean[] ascending = new boolean[sortKeys.length];
+		for (int k = 0; k < ascending.length; k++)
+			ascending[k] = orderBy.get(k).isAsc();
+		Sorter sorter = new Sorter(sortKeys, ascending, width);
+		return count == Long.MAX_VALUE ? sorter.sort(rows) : sorter.top(rows, offset, count);
+	}
+
+	// The predicate of the WHERE clause, TRUE if there is none. Reports the
+	// error and returns null if it does not compile.
+	private static Predicate compileWhere(TableCache.Handle table, TableSchema schema, Expression where)
+			throws IOException {
+		if (where == null)
+			return Predicate.TRUE;
+		return compileWhere(where, schema, catalog.getStatistics(database, table.tableName),
+				table.tree.getRowCount());
+	}
+
+	// A column of a result computed by the query, laid out like the rows of
+	// davisbase_columns. The printer takes the label from the first column
+	// when there is only one.
+	private static List<Column> resultColumn(TableCache.Handle table, String label, String type) {
+		return Arrays.asList(new Column(label, "", "", ""), new Column(table.tableName, "", "", ""),
+				new Column(label, "", "", ""), new Column(type, "", "", ""));
+	}
+
+	// The aggregate of an item of the select list. Reports the error and
+	// returns null if it is not one.
+	private static Aggregate compileAggregate(SelectItem item, TableSchema schema) {
+		Expression expression = item instanceof SelectExpressionItem ? ((SelectExpressionItem) item).getExpression()
+				: null;
+		if (!(expression instanceof Function) || ((Function) expression).isDistinct()) {
+			createError(genericError);
+			return null;
+		}
+		Function f = (Function) expression;
+		int function = Aggregate.function(f.getName());
+		if (function == Aggregate.COUNT && f.isAllColumns())
+			return new Aggregate(function, 0, "INT");
+		List<Expression> parameters = f.getParameters() == null ? null : f.getParameters().getExpressions();
+		if (function < 0 || parameters == null || parameters.size() != 1
+				|| !(parameters.get(0) instanceof net.sf.jsqlparser.schema.Column)) {
+			createError(genericError);
+			return null;
+		}
+		String name = ((net.sf.jsqlparser.schema.Column) parameters.get(0)).getColumnName();
+		ColumnSchema column = schema.getColumn(name);
+		if (column == null) {
+			createError("ERROR 1054 (42S22): Unknown column '" + name + "' in 'field list'");
+			return null;
+		}
+		if (!Aggregate.accepts(function, column.type)) {
+			createError(genericError);
+			return null;
+		}
+		return new Aggregate(function, column.ordinalPosition, column.type);
+	}
+
+	// Print a count as an INT result column, like the aggregates print it
+	private static void printCount(TableCache.Handle table, String label, long count) throws IOException {
+		List<Column> row = Collections.singletonList(new Column(String.valueOf(count), "INT", "", "N"));
+		QueryResultPrinter.printQueryResult(Cursor.of(Collections.singletonList(row)),
+				Collections.singletonList(resultColumn(table, label, "INT")), table.tableName, null);
+	}
+
+	// Schema of the table, kept with its handle until the catalog changes.
+	// Reports the error and returns null if the catalog has no such table.
+	private static TableSchema getSchema(TableCache.Handle table) throws IOException {
+		if (table.schema == null || table.schemaVersion != catalog.getVersion()) {
+			table.schema = catalog.getTable(table.database, table.tableName);
+			table.schemaVersion = catalog.getVersion();
+			openIndexes(table);
+		}
+		if (table.schema == null)
+			createError("ERROR 1146 (42S02): Table '" + table.database + "." + table.tableName + "' doesn't exist");
+		return table.schema;
+	}
+
+	// Open the indexes the catalog lists for the table, closing the ones
+	// opened before. An index written by an older version is built again.
+	private static void openIndexes(TableCache.Handle table) throws IOException {
+		for (IndexTree index : table.indexes)
+			index.close();
+		List<IndexTree> indexes = new ArrayList<>();
+		for (IndexSchema index : catalog.getIndexes(table.database, table.tableName)) {
+			IndexTree tree = new IndexTree(index, table.tree.getPageSize());
+			if (tree.isOutdated() && table.schema != null) {
+				String duplicate = buildIndex(tree, table.tree);
+				if (duplicate != null)
+					createError("ERROR 1062 (23000): Duplicate entry '" + duplicate + "' for key '" + index.name + "'");
+			}
+			indexes.add(tree);
+		}
+		table.indexes = indexes;
+	}
+
+	// True for a WHERE clause of one comparison, which is planned on its own
+	private static boolean isSingleComparison(Expression where) {
+		return where instanceof ComparisonOperator && !((BinaryExpression) where).isNot();
+	}
+
+	/*
+	 * Compile a WHERE clause of comparisons, BETWEEN and IS [NOT] NULL joined
+	 * by AND, OR and NOT into one Predicate. The selectivity of every
+	 * comparison is estimated like QueryPlan does, for AND and OR to try the
+	 * cheapest and most telling parts first. Reports the error and returns
+	 * null if a part does not compile.
+	 */
+	private static Predicate compileWhere(Expression where, TableSchema schema,
+			Map<String, ColumnStatistics> statistics, long rows) {
+		if (where instanceof Parenthesis) {
+			Predicate predicate = compileWhere(((Parenthesis) where).getExpression(), schema, statistics, rows);
+			return predicate == null || !((Parenthesis) where).isNot() ? predicate : predicate.negate();
+		}
+		List<Predicate> parts = new ArrayList<>();
+		Predicate predicate;
+		if (where instanceof AndExpression || where instanceof OrExpression) {
+			BinaryExpression e = (BinaryExpression) where;
+			for (Expression side : Arrays.asList(e.getLeftExpression(), e.getRightExpression())) {
+				Predicate part = compileWhere(side, schema, statistics, rows);
+				if (part == null)
+					return null;
+				parts.add(part);
+			}
+			predicate = where instanceof AndExpression ? Predicate.and(parts) : Predicate.or(parts);
+			return e.isNot() ? predicate.negate() : predicate;
+		}
+		if (where instanceof ComparisonOperator) {
+			ComparisonOperator e = (ComparisonOperator) where;
+			predicate = compileComparison(e.getLeftExpression().toString(), e.getStringExpression(),
+					e.getRightExpression().toString(), schema, statistics, rows);
+			return predicate == null || !e.isNot() ? predicate : predicate.negate();
+		}
+		if (where instanceof Between) {
+			// NOT BETWEEN is the negation, a NULL value is in neither
+			Between between = (Between) where;
+			String column = between.getLeftExpression().toString();
+			Predicate low = compileComparison(column, ">=", between.getBetweenExpressionStart().toString(), schema,
+					statistics, rows);
+			Predicate high = low == null ? null
+					: compileComparison(column, "<=", between.getBetweenExpressionEnd().toString(), schema,
+							statistics, rows);
+			if (high == null)
+				return null;
+			predicate = Predicate.and(Arrays.asList(low, high));
+			return between.isNot() ? predicate.negate() : predicate;
+		}
+		if (where instanceof IsNullExpression) {
+			IsNullExpression isNull = (IsNullExpression) where;
+			return compileComparison(isNull.getLeftExpression().toString(), isNull.isNot() ? "!=" : "=", "NULL",
+					schema, statistics, rows);
+		}
+		createError(genericError);
+		return null;
+	}
+
+	private static Predicate compileComparison(String column, String operator, String value, TableSchema schema,
+			Map<String, ColumnStatistics> statistics, long rows) {
+		int position = schema.getOrdinalPosition(column);
+		if (position == 0) {
+			createError("ERROR 1054 (42S22): Unknown column '" + column + "' in 'where clause'");
+			return null;
+		}
+		value = value.replaceAll("^('|\")|('|\")$", "");
+		ColumnSchema columnSchema = schema.columns.get(position - 1);
+		Predicate predicate = Predicate.compile(position, columnSchema.type, operator, value);
+		if (predicate != null)
+			predicate.selectivity = QueryPlan.selectivity(statistics.get(columnSchema.name), position, rows,
+					operator, value);
+		return predicate;
+	}
+
+	/*
+	 * A cursor over the rows the compiled WHERE clause keeps. If one of the
+	 * comparisons ANDed at the top of the clause is best answered by an
+	 * index, only the rows it finds are tested; otherwise the leaves of the
+	 * rowid range the clause allows are scanned.
+	 */
+	private static Cursor openWhere(TableCache.Handle table, TableSchema schema, Expression where,
+			Predicate predicate, List<Integer> columns) throws IOException {
+		List<Integer> rowids = indexRowids(table, schema, where);
+		if (rowids == null)
+			return table.tree.openWhere(predicate, columns);
+		return table.tree.openRows(rowids, predicate, columns);
+	}
+
+	// The sorted rowids an index finds for the cheapest comparison ANDed at
+	// the top of the WHERE clause, or null if no index is worth reading
+	private static List<Integer> indexRowids(TableCache.Handle table, TableSchema schema, Expression where)
+			throws IOException {
+		QueryPlan best = null;
+		if (!table.indexes.isEmpty())
+			for (Expression conjunct : conjuncts(where)) {
+				if (!isSingleComparison(conjunct))
+					continue;
+				ComparisonOperator e = (ComparisonOperator) conjunct;
+				QueryPlan plan = QueryPlan.choose(schema, catalog.getStatistics(table.database, table.tableName),
+						table.indexes, table.tree, e.getLeftExpression().toString(), e.getStringExpression(),
+						e.getRightExpression().toString().replaceAll("^('|\")|('|\")$", ""));
+				if (plan.access == QueryPlan.Access.INDEX_RANGE && (best == null || plan.cost < best.cost))
+					best = plan;
+			}
+		if (best == null)
+			return null;
+		List<Integer> rowids = new ArrayList<>(best.rowids);
+		Collections.sort(rowids);
+		return rowids;
+	}
+
+	// The expressions ANDed at the top of a WHERE clause
+	private static List<Expression> conjuncts(Expression where) {
+		List<Expression> conjuncts = new ArrayList<>();
+		if (where instanceof Parenthesis && !((Parenthesis) where).isNot())
+			conjuncts.addAll(conjuncts(((Parenthesis) where).getExpression()));
+		else if (where instanceof AndExpression && !((AndExpression) where).isNot()) {
+			conjuncts.addAll(conjuncts(((AndExpression) where).getLeftExpression()));
+			conjuncts.addAll(conjuncts(((AndExpression) where).getRightExpression()));
+		} else
+			conjuncts.add(where);
+		return conjuncts;
+	}
+
+	// The rows matching a single comparison, read the way the plan chose,
+	// with the columns at the given ordinal positions or all of them if
+	// columns is null
+	private static List<List<Column>> selectWhere(BTree tree, QueryPlan plan, int wherePosition, String whereValue,
+			int noOfColumns, String operator, String whereType, List<Integer> columns) throws IOException {
+		return BTree.readAll(openWhere(tree, plan, wherePosition, whereValue, operator, whereType, columns));
+	}
+
+	// A cursor over these rows. Rows found through an index are read in
+	// rowid order, like a scan, and the comparison is tested on each of
+	// them: the index only narrows down the rows to read.
+	private static Cursor openWhere(BTree tree, QueryPlan plan, int wherePosition, String whereValue,
+			String operator, String whereType, List<Integer> columns) throws IOException {
+		switch (plan.access) {
+		case ROWID_RANGE:
+			return tree.openPrimary(whereValue, operator, columns);
+		case INDEX_RANGE:
+			Predicate predicate = Predicate.compile(wherePosition, whereType, operator, whereValue);
+			if (predicate == null)
+				return Cursor.of(Collections.emptyList());
+			List<Integer> rowids = new ArrayList<>(plan.rowids);
+			Collections.sort(rowids);
+			return tree.openRows(rowids, predicate, columns);
+		default:
+			return tree.openSelect(wherePosition, whereValue, operator, whereType, columns);
+		}
+	}
+
+	private static List<Integer> rowids(List<List<Column>> rows) {
+		List<Integer> rowids = new ArrayList<>(rows.size());
+		for (List<Column> row : rows)
+			rowids.add(Integer.parseInt(row.get(0).column));
+		return rowids;
+	}
+
+	// The value of the indexed column of a row, as kept in the index
+	private static byte[] indexValue(IndexTree index, List<Column> row) {
+		ColumnSchema column = index.index.column;
+		return IndexTree.encodeValue(column.type, row.get(column.ordinalPosition - 1).column);
+	}
+
+	private static void addToIndexes(List<IndexTree> indexes, List<List<Column>> rows) throws IOException {
+		for (IndexTree index : indexes)
+			for (List<Column> row : rows) {
+				byte[] value = indexValue(index, row);
+				if (value != null)
+					index.insert(value, Integer.parseInt(row.get(0).column));
+			}
+	}
+
+	private static void removeFromIndexes(List<IndexTree> indexes, List<List<Column>> rows) throws IOException {
+		for (IndexTree index : indexes)
+			for (List<Column> row : rows) {
+				byte[] value = indexValue(index, row);
+				if (value != null)
+					index.delete(value, Integer.parseInt(row.get(0).column));
+			}
+	}
+
+	// Reports the error and returns false if new rows would repeat a value
+	// of a unique index, among themselves or with the rows of the table
+	private static boolean checkUnique(List<IndexTree> indexes, List<List<Column>> rows) throws IOException {
+		for (IndexTree index : indexes) {
+			if (!index.index.unique)
+				continue;
+			Set<ByteBuffer> values = new HashSet<>();
+			for (List<Column> row : rows) {
+				byte[] value = indexValue(index, row);
+				if (value != null && (!values.add(ByteBuffer.wrap(value)) || index.contains(value))) {
+					createError("ERROR 1062 (23000): Duplicate entry '"
+							+ row.get(index.index.column.ordinalPosition - 1).column + "' for key '" + index.index.name
+							+ "'");
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// Same for an UPDATE that sets the column of a unique index: the value
+	// may only go to one row, and no other row may have it
+	private static boolean checkUniqueUpdate(List<IndexTree> indexes, List<List<Column>> rows, List<String> colNames,
+			List<String> updateValues) throws IOException {
+		for (IndexTree index : indexes) {
+			String update = updateValues.get(colNames.indexOf(index.index.column.name));
+			byte[] value = IndexTree.encodeValue(index.index.column.type, update);
+			if (!index.index.unique || value == null || rows.isEmpty())
+				continue;
+			boolean duplicate = rows.size() > 1;
+			for (int rowid : index.search("=", value, 2))
+				duplicate |= rowid != Integer.parseInt(rows.get(0).get(0).column);
+			if (duplicate) {
+				createError("ERROR 1062 (23000): Duplicate entry '" + update + "' for key '" + index.index.name + "'");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Fill the index with the entries of the rows of the table. The rowid and
+	// the column are read from a cursor and their entries go through a
+	// Sorter, which writes them to runs when they do not fit in memory, into
+	// the bulk build of the index. Returns the first value found twice if the
+	// index is unique, null once the index is built.
+	private static String buildIndex(IndexTree index, BTree tree) throws IOException {
+		ColumnSchema column = index.index.column;
+		Cursor rows = tree.openTable(Arrays.asList(1, column.ordinalPosition));
+		// Each row becomes its entry, as a string of one char per byte so that
+		// it sorts like the bytes, followed by the value for the error
+		Cursor entries = new Cursor() {
+			public List<Column> next() throws IOException {
+				List<Column> row;
+				while ((row = rows.next()) != null) {
+					byte[] value = IndexTree.encodeValue(column.type, row.get(1).column);
+					if (value == null)
+						continue;
+					byte[] entry = IndexTree.entry(value, Integer.parseInt(row.get(0).column));
+					return Arrays.asList(new Column(new String(entry, StandardCharsets.ISO_8859_1), "TEXT", "", ""),
+							row.get(1));
+				}
+				return null;
+			}
+
+			public void close() {
+				rows.close();
+			}
+		};
+		Cursor sorted = new Sorter(new int[] { 0 }, new boolean[] { true }, 2) {
+			@Override
+			Comparable<?> key(Column entry) {
+				return entry.column;
+			}
+		}.sort(entries);
+		// Stops at the first value found twice in a unique index
+		class Entries implements IndexTree.Entries {
+			byte[] previous;
+			String duplicate;
+
+			public byte[] next() throws IOException {
+				List<Column> row = sorted.next();
+				if (row == null)
+					return null;
+				byte[] entry = row.get(0).column.getBytes(StandardCharsets.ISO_8859_1);
+				if (index.index.unique && previous != null && IndexTree.sameValue(previous, entry)) {
+					duplicate = row.get(1).column;
+					return null;
+				}
+				previous = entry;
+				return entry;
+			}
+		}
+		Entries source = new Entries();
+		try {
+			index.clear();
+			index.build(source);
+		} finally {
+			sorted.close();
+		}
+		if (source.duplicate != null) {
+			index.clear();
+			return source.duplicate;
+		}
+		return null;
+	}
+
+	static final Pattern CREATE_INDEX = Pattern.compile(
+			"create\\s+(unique\\s+)?index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * CREATE [UNIQUE] INDEX index_name ON table_name (column_name)
+	 * <p>
+	 * Builds an index file mapping the values of the column to the rowids of
+	 * the rows. The entries of all rows are sorted and the tree is built
+	 * bottom-up. Index names are unique within a database.
+	 */
+	private static void createIndexQuery(String userCommand) throws IOException {
+		Matcher matcher = CREATE_INDEX.matcher(userCommand);
+		if (!matcher.matches()) {
+			createError(genericError);
+			return;
+		}
+		boolean unique = matcher.group(1) != null;
+		String indexName = matcher.group(2).toLowerCase();
+		String tabName = matcher.group(3).toLowerCase();
+		String columnName = matcher.group(4).toLowerCase();
+		if (Files.notExists(Paths.get("data\\" + database + "\\" + tabName + ".tbl"), LinkOption.NOFOLLOW_LINKS)) {
+			createError("ERROR 1146 (42S02): Table '" + database + "." + tabName + "' doesn't exist");
+			return;
+		}
+		if (catalog.findIndex(database, indexName) != null) {
+			createError("ERROR 1061 (42000): Duplicate key name '" + indexName + "'");
+			return;
+		}
+		TableCache.Handle table = tableCache.acquire(database, tabName, pageSize);
+		try {
+			TableSchema schema = getSchema(table);
+			if (schema == null)
+				return;
+			ColumnSchema column = schema.getColumn(columnName);
+			if (column == null) {
+				createError("ERROR 1072 (42000): Key column '" + columnName + "' doesn't exist in table");
+				return;
+			}
+			if (column.primaryKey) {
+				createError("ERROR: Column '" + columnName + "' is the primary key, the table is already ordered by it");
+				return;
+			}
+			IndexSchema index = new IndexSchema(davisIndexesTree.getLastRowId() + 1, indexName, database, tabName,
+					column, unique);
+			PageFile.discard(index.getPath());
+			new File(index.getPath()).delete();
+			IndexTree tree = new IndexTree(index, table.tree.getPageSize());
+			String duplicate;
+			try {
+				duplicate = buildIndex(tree, table.tree);
+				if (duplicate == null) {
+					insertIntoDavisIndexes(index);
+					// The pages of the new index are committed before its file
+					// is closed
+					BufferPool.getInstance().commit();
+				}
+			} finally {
+				tree.close();
+			}
+			if (duplicate != null) {
+				PageFile.discard(index.getPath());
+				new File(index.getPath()).delete();
+				createError("ERROR 1062 (23000): Duplicate entry '" + duplicate + "' for key '" + indexName + "'");
+				return;
+			}
+			catalog.addIndex(index);
+			updateCatalogStats();
+			System.out.println("Query OK, 0 rows affected");
+		} finally {
+			tableCache.release(table);
+		}
+	}
+
+	private static void insertIntoDavisIndexes(IndexSchema index) throws IOException {
+		String[] text = { index.tableName, index.name, index.column.name, index.unique ? "YES" : "NO",
+				index.database };
+		Payload payload = new Payload();
+		payload.noOfColumns = (byte) (davisIndexesColumns.length - 1);
+		payload.serialTypeCodes = new byte[payload.noOfColumns];
+		payload.columnData = new LinkedList<>();
+		short payloadLength = (short) (1 + payload.noOfColumns);
+		for (int i = 0; i < text.length; i++) {
+			payload.serialTypeCodes[i] = getSerialTypeCode("TEXT", text[i].length());
+			payload.columnData.add(new Column(text[i], "TEXT", "N", "NULL"));
+			payloadLength += text[i].length();
+		}
+		davisIndexesTree.insert(index.rowid, payload, payloadLength);
+	}
+
+	static final Pattern DROP_INDEX = Pattern.compile("drop\\s+index\\s+(\\w+)(\\s+on\\s+(\\w+))?",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * DROP INDEX index_name [ON table_name]
+	 */
+	private static void dropIndexQuery(String userCommand) throws IOException {
+		Matcher matcher = DROP_INDEX.matcher(userCommand);
+		if (!matcher.matches()) {
+			createError(genericError);
+			return;
+		}
+		String indexName = matcher.group(1).toLowerCase();
+		IndexSchema index = catalog.findIndex(database, indexName);
+		if (index == null || matcher.group(3) != null && !index.tableName.equals(matcher.group(3).toLowerCase())) {
+			createError("ERROR 1091 (42000): Can't DROP '" + indexName + "'; check that column/key exists");
+			return;
+		}
+		davisIndexesTree.deletePrimary(String.valueOf(index.rowid), "=");
+		catalog.removeIndex(index);
+		updateCatalogStats();
+		// The catalog no longer lists the index before its file goes
+		BufferPool.getInstance().commit();
+		tableCache.invalidate(database, index.tableName);
+		PageFile.discard(index.getPath());
+		new File(index.getPath()).delete();
+		System.out.println("Query OK, 0 rows affected");
+	}
+
 	/**
 	 * Stub method for creating new tables
 	 *
@@ -842,7 +2288,7 @@ public class DavisBasePrompt {
 			String tableName = tabName.getFullyQualifiedName().toLowerCase();
 			Column[] tableColumns = new Column[colList.size()];
 
-			if (!davisTablesTree.select(2, tableName, 4, "=", "TEXT").isEmpty()) {
+			if (catalog.containsTableName(tableName)) {
 				createError("ERROR 1146 (42S02): Table '" + tableName + "' already exist");
 				return;
 			}
@@ -868,13 +2314,17 @@ public class DavisBasePrompt {
 				 * that this doesn't create the table file in the correct
 				 * directory structure
 				 */
+				tableCache.invalidate(database, tableName);
+				PageFile.discard("data\\" + database + "\\" + tableName + ".tbl");
 				tableFile = new RandomAccessFile("data\\" + database + "\\" + tableName + ".tbl", "rw");
 				tableFile.setLength(0);
 				// Code to insert a row in the davisbase_tables table
-				insertIntoDavisTableMetaData(tableName, database);
+				int rowid = insertIntoDavisTableMetaData(tableName, database);
 
 				// Code to insert rows in the davisbase_columns table
-				insertIntoDavisColumnsMetaData(tableName, tableColumns, database);
+				catalog.addTable(database, tableName, rowid,
+						insertIntoDavisColumnsMetaData(tableName, tableColumns, database));
+				updateCatalogStats();
 				System.out.println("Query OK, 0 rows affected");
 			} catch (Exception e) {
 				System.out.println(e);
@@ -0,0 +1,30 @@
+package edu.arun;
+
+/**
+ * The header stored at the start of page 0 of a table file. It is written
+ * through the same page cache as the tree, so it is committed together with
+ * the statement that changed it.
+ */
+class FileHeader {
+	int formatVersion;
+	int pageSize;
+	int rootPage;
+	/**
+	 * First page of the free page list, 0 if the list is empty.
+	 */
+	int freeListHead;
+	/**
+	 * Last leaf of the leaf chain, where rows with a new highest rowid go.
+	 */
+	int rightmostLeaf;
+	/**
+	 * Number of pages in the file, the header page included.
+	 */
+	int pageCount;
+	long rowCount;
+	/**
+	 * Highest rowid ever inserted. It does not go down when rows are
+	 * deleted, so rowids handed out from it are never reused.
+	 */
+	int maxRowid;
+}
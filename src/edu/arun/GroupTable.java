@@ -0,0 +1,377 @@
+package edu.arun;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The groups of a GROUP BY, found by hashing. The values of the group
+ * columns of a row are encoded into a key laid out like a leaf cell, serial
+ * type codes first, which an open addressing table maps to a group number.
+ * The keys are packed one after the other in a single byte array and the
+ * aggregates keep the values of each group in slots of their own arrays, so
+ * a group costs no object of its own.
+ * <p>
+ * Once the table takes more than the memory budget, its groups are written
+ * with what the aggregates hold for them to one of {@link #PARTITIONS} files
+ * under data, picked by the hash of the key, and the table starts over
+ * empty. A key may then be found in the table and in several runs of the
+ * same file. When the result is read every partition is aggregated again
+ * on its own, with the next bits of the hash splitting it further if it
+ * does not fit either.
+ */
+class GroupTable {
+
+	/**
+	 * Memory a GROUP BY may take before it spills, unless
+	 * -Ddavisbase.groupMemory says otherwise.
+	 */
+	static final long DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+	private static long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+	/**
+	 * Files the groups are spilled to, chosen by 4 bits of the hash.
+	 */
+	static final int PARTITIONS = 16;
+
+	// Partitions are split again until the bits of the hash run out, past
+	// that the table grows beyond the budget
+	private static final int MAX_LEVEL = 32 / 4 - 1;
+
+	// Bytes in front of the serial type codes of a key, where a leaf cell has
+	// its payload length, rowid and number of columns
+	private static final int KEY_HEADER_SIZE = 7;
+
+	/**
+	 * Ordinal positions of the group columns.
+	 */
+	private final int[] groupBy;
+
+	private final Aggregate[] aggregates;
+
+	/**
+	 * What each column of the result is: the group column at the index if it
+	 * is 0 or more, the aggregate at -1 - output if it is negative.
+	 */
+	private final int[] outputs;
+
+	/**
+	 * Number of times the groups of this table were split by their hash.
+	 */
+	private final int level;
+
+	/**
+	 * Group number + 1 in each slot of the hash table, 0 for an empty slot.
+	 */
+	private int[] slots = new int[64];
+
+	private int[] hashes = new int[32];
+
+	/**
+	 * The key of group g runs from <code>keyStarts[g]</code> to
+	 * <code>keyStarts[g + 1]</code> in {@link #keys}.
+	 */
+	private int[] keyStarts = new int[33];
+
+	private byte[] keys = new byte[1024];
+
+	int groups;
+
+	// Key of the row being looked up
+	private byte[] key = new byte[64];
+
+	// Group of each row selected in the batch being added
+	private int[] rowGroups = new int[0];
+
+	private File[] files;
+
+	private DataOutputStream[] partitions;
+
+	GroupTable(int[] groupBy, Aggregate[] aggregates, int[] outputs) {
+		this(groupBy, aggregates, outputs, 0);
+	}
+
+	private GroupTable(int[] groupBy, Aggregate[] aggregates, int[] outputs, int level) {
+		this.groupBy = groupBy;
+		this.aggregates = aggregates;
+		this.outputs = outputs;
+		this.level = level;
+	}
+
+	static void setMemoryBudget(long bytes) {
+		memoryBudget = bytes;
+	}
+
+	/**
+	 * Add the rows selected in the batch to their groups.
+	 */
+	void add(Batch batch) throws IOException {
+		spillIfFull();
+		if (rowGroups.length < batch.capacity)
+			rowGroups = new int[batch.capacity];
+		for (int k = 0; k < batch.selected; k++)
+			rowGroups[k] = group(batch.row(batch.selection[k]));
+		for (Aggregate aggregate : aggregates)
+			aggregate.add(batch, rowGroups);
+	}
+
+	/**
+	 * Add one row to its group.
+	 */
+	void add(RowView row) throws IOException {
+		spillIfFull();
+		int group = group(row);
+		for (Aggregate aggregate : aggregates)
+			aggregate.add(row, group);
+	}
+
+	// The group of the row, a new one if its key is not in the table yet
+	private int group(RowView row) {
+		int length = encode(row);
+		int hash = hash(key, length);
+		int found = find(hash, length);
+		return found >= 0 ? found : insert(-1 - found, hash, length);
+	}
+
+	// Encode the values of the group columns of the row into key, like a
+	// leaf cell with only these columns. Every NULL is written the same way,
+	// as an empty TEXT. Returns the length of the key.
+	private int encode(RowView row) {
+		int columns = groupBy.length;
+		int length = KEY_HEADER_SIZE + columns;
+		for (int j = 0; j < columns; j++) {
+			int position = groupBy[j];
+			boolean isNull = row.isNull(position);
+			int valueLength = isNull ? 0 : row.getLength(position);
+			if (length + valueLength > key.length)
+				key = Arrays.copyOf(key, Math.max(2 * key.length, length + valueLength));
+			// The rowid is an INT
+			key[KEY_HEADER_SIZE + j] = position == 1 ? 6 : isNull ? 12 : row.getSerialTypeCode(position);
+			if (!isNull)
+				row.copyBytes(position, key, length);
+			length += valueLength;
+		}
+		key[6] = (byte) columns;
+		return length;
+	}
+
+	private static int hash(byte[] bytes, int length) {
+		int h = 1;
+		for (int i = 0; i < length; i++)
+			h = 31 * h + bytes[i];
+		// Spread the bits, the low ones pick the slot and the high ones the
+		// partition
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		return h ^ (h >>> 16);
+	}
+
+	// The group whose key is the first length bytes of key, or -1 - slot
+	// for the empty slot where it would go
+	private int find(int hash, int length) {
+		int mask = slots.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int group = slots[slot] - 1;
+			if (group < 0)
+				return -1 - slot;
+			if (hashes[group] == hash && isKey(group, length))
+				return group;
+		}
+	}
+
+	// True if the key of the group is the first length bytes of key
+	private boolean isKey(int group, int length) {
+		int start = keyStarts[group];
+		if (keyStarts[group + 1] - start != length)
+			return false;
+		for (int i = 0; i < length; i++)
+			if (keys[start + i] != key[i])
+				return false;
+		return true;
+	}
+
+	private int insert(int slot, int hash, int length) {
+		int group = groups++;
+		if (groups == hashes.length) {
+			hashes = Arrays.copyOf(hashes, 2 * groups);
+			keyStarts = Arrays.copyOf(keyStarts, 2 * groups + 1);
+		}
+		int start = keyStarts[group];
+		if (start + length > keys.length)
+			keys = Arrays.copyOf(keys, Math.max(2 * keys.length, start + length));
+		System.arraycopy(key, 0, keys, start, length);
+		keyStarts[group + 1] = start + length;
+		hashes[group] = hash;
+		slots[slot] = group + 1;
+		for (Aggregate aggregate : aggregates)
+			aggregate.ensureGroups(groups);
+		// Kept at most half full
+		if (2 * groups > slots.length)
+			rehash(2 * slots.length);
+		return group;
+	}
+
+	private void rehash(int capacity) {
+		slots = new int[capacity];
+		int mask = capacity - 1;
+		for (int group = 0; group < groups; group++) {
+			int slot = hashes[group] & mask;
+			while (slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			slots[slot] = group + 1;
+		}
+	}
+
+	// Bytes taken by the keys, the hash table and the slots of the
+	// aggregates
+	private long memoryUsed() {
+		return keyStarts[groups] + 4L * slots.length + (long) groups * (8 + 24 * aggregates.length);
+	}
+
+	private void spillIfFull() throws IOException {
+		if (level < MAX_LEVEL && memoryUsed() > memoryBudget)
+			spill();
+	}
+
+	// Write every group to the file of its partition and empty the table
+	private void spill() throws IOException {
+		if (files == null) {
+			files = new File[PARTITIONS];
+			partitions = new DataOutputStream[PARTITIONS];
+		}
+		int shift = 32 - 4 * (level + 1);
+		for (int group = 0; group < groups; group++) {
+			int partition = (hashes[group] >>> shift) & (PARTITIONS - 1);
+			DataOutputStream out = partitions[partition];
+			if (out == null) {
+				File data = new File("data");
+				data.mkdirs();
+				files[partition] = File.createTempFile("group", ".tmp", data);
+				files[partition].deleteOnExit();
+				out = partitions[partition] = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(files[partition])));
+			}
+			int start = keyStarts[group];
+			out.writeInt(keyStarts[group + 1] - start);
+			out.write(keys, start, keyStarts[group + 1] - start);
+			for (Aggregate aggregate : aggregates)
+				aggregate.write(group, out);
+		}
+		groups = 0;
+		Arrays.fill(slots, 0);
+		for (Aggregate aggregate : aggregates)
+			aggregate.clear();
+	}
+
+	// Fold in the groups of a spilled file
+	private void read(DataInputStream in) throws IOException {
+		while (true) {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return;
+			}
+			spillIfFull();
+			if (length > key.length)
+				key = new byte[Math.max(2 * key.length, length)];
+			in.readFully(key, 0, length);
+			int hash = hash(key, length);
+			int found = find(hash, length);
+			int group = found >= 0 ? found : insert(-1 - found, hash, length);
+			for (Aggregate aggregate : aggregates)
+				aggregate.read(group, in);
+		}
+	}
+
+	/**
+	 * Open a cursor over the result, a row per group, and stop adding rows.
+	 * If the table spilled, its groups are read back from the files a
+	 * partition at a time, each file deleted once read.
+	 */
+	Cursor open() throws IOException {
+		if (files != null) {
+			spill();
+			for (DataOutputStream out : partitions)
+				if (out != null)
+					out.close();
+		}
+		return new Cursor() {
+			private final RowView view = new RowView();
+
+			private final ByteBuffer page = ByteBuffer.wrap(keys);
+
+			private int next;
+
+			private int partition;
+
+			// Cursor over the groups of the partition being read
+			private Cursor part;
+
+			@Override
+			public List<Column> next() throws IOException {
+				while (true) {
+					if (part != null) {
+						List<Column> row = part.next();
+						if (row != null)
+							return row;
+						part = null;
+					}
+					if (next < groups)
+						return row(view.at(page, keyStarts[next]), next++);
+					if (files == null || partition == PARTITIONS)
+						return null;
+					part = readPartition(partition++);
+				}
+			}
+
+			@Override
+			public void close() {
+				if (part != null)
+					part.close();
+				part = null;
+				next = groups;
+				if (files != null)
+					for (; partition < PARTITIONS; partition++)
+						if (files[partition] != null)
+							files[partition].delete();
+			}
+		};
+	}
+
+	private List<Column> row(RowView key, int group) {
+		List<Column> row = new ArrayList<>(outputs.length);
+		for (int output : outputs)
+			row.add(output >= 0 ? key.getColumn(output + 2) : aggregates[-1 - output].result(group));
+		return row;
+	}
+
+	// A cursor over the groups spilled to the partition, or null if none
+	// were
+	private Cursor readPartition(int partition) throws IOException {
+		File file = files[partition];
+		if (file == null)
+			return null;
+		GroupTable table = new GroupTable(groupBy, Aggregate.copy(aggregates), outputs, level + 1);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			table.read(in);
+		} finally {
+			file.delete();
+			files[partition] = null;
+		}
+		return table.open();
+	}
+}
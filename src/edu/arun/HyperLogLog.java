@@ -0,0 +1,63 @@
+package edu.arun;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct values added to it
+ * in a fixed amount of memory, 2^{@link #PRECISION} one byte registers.
+ * Each value is hashed to 64 bits; the first bits pick a register, which
+ * keeps the longest run of leading zeros seen in the remaining bits.
+ */
+class HyperLogLog {
+
+	static final int PRECISION = 12;
+
+	private static final int REGISTERS = 1 << PRECISION;
+
+	private final byte[] registers = new byte[REGISTERS];
+
+	void add(String value) {
+		long hash = hash(value);
+		int register = (int) (hash >>> (64 - PRECISION));
+		// The sentinel bit bounds the run when the remaining bits are all 0
+		int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+		if (rank > registers[register])
+			registers[register] = (byte) rank;
+	}
+
+	/**
+	 * Estimated number of distinct values added so far. Small counts use
+	 * linear counting on the empty registers, where the raw estimate is
+	 * biased.
+	 */
+	long estimate() {
+		double sum = 0;
+		int empty = 0;
+		for (byte rank : registers) {
+			sum += 1.0 / (1L << rank);
+			if (rank == 0)
+				empty++;
+		}
+		double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+		double estimate = alpha * REGISTERS * REGISTERS / sum;
+		if (estimate <= 2.5 * REGISTERS && empty > 0)
+			estimate = REGISTERS * Math.log((double) REGISTERS / empty);
+		return Math.round(estimate);
+	}
+
+	// 64 bit FNV-1a of the UTF-8 bytes, finished with the MurmurHash3 mix so
+	// that the high bits used for the register depend on every byte
+	private static long hash(String value) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
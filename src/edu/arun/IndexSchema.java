@@ -0,0 +1,36 @@
+package edu.arun;
+
+/**
+ * A secondary index as described by davisbase_indexes: an index file that
+ * maps the values of one column of a table to the rowids of its rows.
+ */
+class IndexSchema {
+	/**
+	 * rowid of the row of the index in davisbase_indexes.
+	 */
+	final int rowid;
+	final String name;
+	final String database;
+	final String tableName;
+	final ColumnSchema column;
+	/**
+	 * No two rows may have the same value in the column, NULLs aside.
+	 */
+	final boolean unique;
+
+	IndexSchema(int rowid, String name, String database, String tableName, ColumnSchema column, boolean unique) {
+		this.rowid = rowid;
+		this.name = name;
+		this.database = database;
+		this.tableName = tableName;
+		this.column = column;
+		this.unique = unique;
+	}
+
+	/**
+	 * Path of the index file, next to the file of its table.
+	 */
+	String getPath() {
+		return "data\\" + database + "\\" + tableName + "." + name + ".ndx";
+	}
+}
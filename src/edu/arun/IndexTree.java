@@ -0,0 +1,613 @@
+package edu.arun;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The file of a secondary index, a B+tree of entries made of a column value
+ * and the rowid of its row. Entries are ordered by value and then by rowid,
+ * so every entry is unique and the entries of one value are contiguous.
+ * Values are encoded so that their byte order is their order as column
+ * values, see {@link #encodeValue(String, String)}; NULLs are not indexed.
+ * <p>
+ * Page 0 holds the header: magic, format version, page size, root page,
+ * number of pages and number of entries. The other pages use the page
+ * header of table pages, followed by the cell offsets. A leaf cell is the
+ * length of the entry (short) and the entry; an interior cell is the left
+ * child (int), the length of the entry and the highest entry of that child.
+ * The root stays on page 1 and leaves are chained through their right
+ * pointer. Removing an entry does not merge leaves; dropping and creating
+ * the index again packs it.
+ */
+class IndexTree {
+
+	static final byte[] MAGIC = "DavisBase index\0".getBytes();
+
+	/**
+	 * Version 1 kept integers, dates and times as doubles, so integers past
+	 * 2^53 could share a key. Indexes of that version are built again.
+	 */
+	static final int FORMAT_VERSION = 2;
+
+	static final int HEADER_PAGE = 0;
+
+	static final int ROOT_PAGE = 1;
+
+	static final int PAGE_HEADER_SIZE = 12;
+
+	/**
+	 * Dates and times of the tables are in the time zone of Dallas.
+	 */
+	private static final ZoneId ZONE = ZoneId.of("America/Chicago");
+
+	final IndexSchema index;
+
+	private final PageFile filePointer;
+
+	private final long pageSize;
+
+	private int pageCount;
+
+	private long entryCount;
+
+	// Format version of the file as opened
+	private int formatVersion = FORMAT_VERSION;
+
+	/**
+	 * A page of the tree decoded into lists.
+	 */
+	private static class Node {
+		final int pageNumber;
+		final byte pageType;
+		final List<byte[]> keys = new ArrayList<>();
+		/**
+		 * Interior pages: the left child of every cell, then the right
+		 * pointer.
+		 */
+		final List<Integer> children = new ArrayList<>();
+		/**
+		 * Leaves: the next leaf, -1 for the last one.
+		 */
+		int next = -1;
+
+		Node(int pageNumber, byte pageType) {
+			this.pageNumber = pageNumber;
+			this.pageType = pageType;
+		}
+
+		boolean isLeaf() {
+			return pageType == BTree.LEAF_PAGE;
+		}
+	}
+
+	/**
+	 * Open the index file, creating an empty index if there is none. An
+	 * existing file keeps the page size recorded in its header.
+	 */
+	IndexTree(IndexSchema index, long pageSize) throws IOException {
+		this.index = index;
+		String path = index.getPath();
+		// Replays the log of the database if it was not shut down cleanly
+		WriteAheadLog.forFile(path);
+		ByteBuffer header = readHeader(path);
+		if (header != null)
+			pageSize = header.getInt(MAGIC.length + 4);
+		filePointer = PageFile.open(path, pageSize);
+		this.pageSize = pageSize;
+		if (header == null)
+			clear();
+		else {
+			formatVersion = header.getInt(MAGIC.length);
+			pageCount = header.getInt(MAGIC.length + 12);
+			entryCount = header.getLong(MAGIC.length + 16);
+		}
+	}
+
+	// Read the header page of an existing index file, from the buffer pool
+	// if it is there. Returns null for a new file.
+	private static ByteBuffer readHeader(String path) throws IOException {
+		byte[] page = BufferPool.getInstance().peek(path, HEADER_PAGE);
+		if (page == null) {
+			if (!new File(path).exists())
+				return null;
+			try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+				page = new byte[(int) Math.min(file.length(), BTree.MIN_PAGE_SIZE)];
+				file.readFully(page);
+			}
+		}
+		if (page.length == 0 || page[0] == 0)
+			return null;
+		if (page.length < MAGIC.length + 24 || !Arrays.equals(Arrays.copyOf(page, MAGIC.length), MAGIC))
+			throw new IOException("File " + path + " is not a DavisBase index file");
+		ByteBuffer header = ByteBuffer.wrap(page);
+		if (header.getInt(MAGIC.length) > FORMAT_VERSION)
+			throw new IOException("File " + path + " uses index format version " + header.getInt(MAGIC.length)
+					+ ", this version of DavisBase reads up to version " + FORMAT_VERSION);
+		return header;
+	}
+
+	private void writeHeader() throws IOException {
+		filePointer.seek(0);
+		filePointer.write(MAGIC);
+		formatVersion = FORMAT_VERSION;
+		filePointer.writeInt(FORMAT_VERSION);
+		filePointer.writeInt((int) pageSize);
+		filePointer.writeInt(ROOT_PAGE);
+		filePointer.writeInt(pageCount);
+		filePointer.writeLong(entryCount);
+	}
+
+	/**
+	 * Remove every entry, leaving the header and an empty root leaf.
+	 */
+	void clear() throws IOException {
+		filePointer.setLength(0);
+		filePointer.setLength((ROOT_PAGE + 1) * pageSize);
+		pageCount = ROOT_PAGE + 1;
+		entryCount = 0;
+		writeNode(new Node(ROOT_PAGE, BTree.LEAF_PAGE));
+		writeHeader();
+	}
+
+	/**
+	 * True if the file was written by an older version whose entries have to
+	 * be built again from the rows of the table.
+	 */
+	boolean isOutdated() {
+		return formatVersion < FORMAT_VERSION;
+	}
+
+	long getEntryCount() {
+		return entryCount;
+	}
+
+	int getPageCount() {
+		return pageCount;
+	}
+
+	long getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Add the entry of a row. Nothing changes if it is already there.
+	 */
+	void insert(byte[] value, int rowid) throws IOException {
+		byte[] key = entry(value, rowid);
+		List<Node> path = new ArrayList<>();
+		Node node = descend(key, path);
+		int i = lowerBound(node.keys, key);
+		if (i < node.keys.size() && compare(node.keys.get(i), key) == 0)
+			return;
+		node.keys.add(i, key);
+		store(path, node);
+		entryCount++;
+		writeHeader();
+	}
+
+	/**
+	 * Remove the entry of a row. Returns false if it is not there.
+	 */
+	boolean delete(byte[] value, int rowid) throws IOException {
+		byte[] key = entry(value, rowid);
+		Node node = descend(key, null);
+		int i = lowerBound(node.keys, key);
+		if (i == node.keys.size() || compare(node.keys.get(i), key) != 0)
+			return false;
+		node.keys.remove(i);
+		writeNode(node);
+		entryCount--;
+		writeHeader();
+		return true;
+	}
+
+	/**
+	 * True if a row has the value.
+	 */
+	boolean contains(byte[] value) throws IOException {
+		return !search("=", value, 1).isEmpty();
+	}
+
+	/**
+	 * The rowids of the rows for which <code>column operator value</code>
+	 * holds, in index order, at most <code>limit</code> of them. Only =, &lt;,
+	 * &lt;=, &gt; and &gt;= are supported. The walk starts at the leaf of the
+	 * lower bound and stops at the first entry past the upper bound.
+	 */
+	List<Integer> search(String operator, byte[] value, long limit) throws IOException {
+		List<Integer> rowids = new ArrayList<>();
+		boolean fromStart = operator.equals("<") || operator.equals("<=");
+		byte[] start = fromStart ? new byte[0] : entry(value,
+				operator.equals(">") ? Integer.MAX_VALUE : Integer.MIN_VALUE);
+		Node node = descend(start, null);
+		int i = lowerBound(node.keys, start);
+		while (rowids.size() < limit) {
+			if (i == node.keys.size()) {
+				if (node.next == -1)
+					break;
+				node = readNode(node.next);
+				i = 0;
+				continue;
+			}
+			byte[] key = node.keys.get(i++);
+			int c = compare(key, key.length - 4, value, value.length);
+			boolean match;
+			switch (operator) {
+			case "=":
+				match = c == 0;
+				break;
+			case "<":
+				match = c < 0;
+				break;
+			case "<=":
+				match = c <= 0;
+				break;
+			case ">":
+				match = c > 0;
+				break;
+			case ">=":
+				match = c >= 0;
+				break;
+			default:
+				throw new IllegalArgumentException("Operator " + operator + " cannot use an index");
+			}
+			if (!match) {
+				// Past the upper bound, the lower bound was skipped by the descent
+				if (c > 0 || operator.equals("<") && c == 0)
+					break;
+				continue;
+			}
+			rowids.add(rowid(key));
+		}
+		return rowids;
+	}
+
+	/**
+	 * Entries in order, one at a time.
+	 */
+	interface Entries {
+		/**
+		 * Returns the next entry, or null when there is none.
+		 */
+		byte[] next() throws IOException;
+	}
+
+	/**
+	 * Fill an empty index with the given entries, sorted with
+	 * {@link #compare(byte[], byte[])}. The leaves are packed from left to
+	 * right and written as they fill, so only the highest entry of each leaf
+	 * stays in memory, then each level of interior pages is built over the
+	 * one below until a level fits in the root.
+	 */
+	void build(Entries entries) throws IOException {
+		List<Integer> pages = new ArrayList<>();
+		List<byte[]> highest = new ArrayList<>();
+		List<byte[]> leaf = new ArrayList<>();
+		int bytes = PAGE_HEADER_SIZE;
+		long count = 0;
+		byte[] key;
+		while ((key = entries.next()) != null) {
+			if (!leaf.isEmpty() && bytes + key.length + 6 > pageSize) {
+				// Nothing else is allocated while the leaves are written, so
+				// the next leaf goes on the page after this one
+				int pageNumber = allocatePage();
+				writeLeaf(pageNumber, leaf, pageNumber + 1, pages, highest);
+				leaf = new ArrayList<>();
+				bytes = PAGE_HEADER_SIZE;
+			}
+			leaf.add(key);
+			bytes += key.length + 6;
+			count++;
+		}
+		entryCount = count;
+		if (pages.isEmpty()) {
+			Node root = new Node(ROOT_PAGE, BTree.LEAF_PAGE);
+			root.keys.addAll(leaf);
+			writeNode(root);
+			writeHeader();
+			return;
+		}
+		writeLeaf(allocatePage(), leaf, -1, pages, highest);
+		while (true) {
+			int size = PAGE_HEADER_SIZE;
+			for (int i = 0; i < highest.size() - 1; i++)
+				size += highest.get(i).length + 10;
+			if (size <= pageSize) {
+				writeNode(interior(ROOT_PAGE, pages, highest, 0, pages.size()));
+				break;
+			}
+			List<Integer> parentPages = new ArrayList<>();
+			List<byte[]> parentHighest = new ArrayList<>();
+			int from = 0;
+			while (from < pages.size()) {
+				int to = from + 1;
+				size = PAGE_HEADER_SIZE;
+				// The last child of a page is its right pointer and takes no cell
+				while (to < pages.size() && size + highest.get(to - 1).length + 10 <= pageSize)
+					size += highest.get(to++ - 1).length + 10;
+				Node node = interior(allocatePage(), pages, highest, from, to);
+				writeNode(node);
+				parentPages.add(node.pageNumber);
+				parentHighest.add(highest.get(to - 1));
+				from = to;
+			}
+			pages = parentPages;
+			highest = parentHighest;
+		}
+		writeHeader();
+	}
+
+	// Write a leaf of the bulk build and note its page and highest entry for
+	// the level above
+	private void writeLeaf(int pageNumber, List<byte[]> keys, int next, List<Integer> pages, List<byte[]> highest)
+			throws IOException {
+		Node leaf = new Node(pageNumber, BTree.LEAF_PAGE);
+		leaf.keys.addAll(keys);
+		leaf.next = next;
+		writeNode(leaf);
+		pages.add(pageNumber);
+		highest.add(keys.get(keys.size() - 1));
+	}
+
+	// An interior page over the children from..to-1
+	private static Node interior(int pageNumber, List<Integer> pages, List<byte[]> highest, int from, int to) {
+		Node node = new Node(pageNumber, BTree.INTERIOR_PAGE);
+		for (int i = from; i < to; i++) {
+			if (i < to - 1)
+				node.keys.add(highest.get(i));
+			node.children.add(pages.get(i));
+		}
+		return node;
+	}
+
+	// Walk down to the leaf that holds (or would hold) the key, adding the
+	// interior pages on the way to the path if one is given
+	private Node descend(byte[] key, List<Node> path) throws IOException {
+		Node node = readNode(ROOT_PAGE);
+		while (!node.isLeaf()) {
+			if (path != null)
+				path.add(node);
+			node = readNode(node.children.get(lowerBound(node.keys, key)));
+		}
+		return node;
+	}
+
+	// Write the page back, splitting it first if it no longer fits in one
+	// page. The lower half stays in place and the separator, its highest
+	// entry, goes to the parent, the last page of the path, which may have
+	// to be split in turn. The root never moves: when it splits both halves
+	// move to new pages and it points to them.
+	private void store(List<Node> path, Node node) throws IOException {
+		if (size(node) <= pageSize) {
+			writeNode(node);
+			return;
+		}
+		boolean leaf = node.isLeaf();
+		int n = node.keys.size();
+		int half = size(node) / 2, mid = 0;
+		for (int bytes = PAGE_HEADER_SIZE; mid < n - 1 && bytes < half; mid++)
+			bytes += cellSize(node, node.keys.get(mid));
+		mid = Math.max(1, Math.min(mid, leaf ? n - 1 : n - 2));
+		boolean root = node.pageNumber == ROOT_PAGE;
+		Node lower = new Node(root ? allocatePage() : node.pageNumber, node.pageType);
+		Node upper = new Node(allocatePage(), node.pageType);
+		byte[] separator;
+		if (leaf) {
+			lower.keys.addAll(node.keys.subList(0, mid));
+			upper.keys.addAll(node.keys.subList(mid, n));
+			separator = node.keys.get(mid - 1);
+			upper.next = node.next;
+			lower.next = upper.pageNumber;
+		} else {
+			// The middle cell moves up, its child becomes the right pointer of
+			// the lower half
+			lower.keys.addAll(node.keys.subList(0, mid));
+			lower.children.addAll(node.children.subList(0, mid + 1));
+			upper.keys.addAll(node.keys.subList(mid + 1, n));
+			upper.children.addAll(node.children.subList(mid + 1, n + 1));
+			separator = node.keys.get(mid);
+		}
+		writeNode(upper);
+		writeNode(lower);
+		if (root) {
+			Node newRoot = new Node(ROOT_PAGE, BTree.INTERIOR_PAGE);
+			newRoot.keys.add(separator);
+			newRoot.children.add(lower.pageNumber);
+			newRoot.children.add(upper.pageNumber);
+			writeNode(newRoot);
+		} else {
+			Node parent = path.remove(path.size() - 1);
+			int i = parent.children.indexOf(node.pageNumber);
+			parent.keys.add(i, separator);
+			parent.children.add(i + 1, upper.pageNumber);
+			store(path, parent);
+		}
+	}
+
+	private static int cellSize(Node node, byte[] key) {
+		return (node.isLeaf() ? 2 : 6) + key.length + 4;
+	}
+
+	private static int size(Node node) {
+		int size = PAGE_HEADER_SIZE;
+		for (byte[] key : node.keys)
+			size += cellSize(node, key);
+		return size;
+	}
+
+	private int allocatePage() throws IOException {
+		int pageNumber = pageCount++;
+		filePointer.setLength(pageCount * pageSize);
+		return pageNumber;
+	}
+
+	private Node readNode(int pageNumber) throws IOException {
+		ByteBuffer page = filePointer.page(pageNumber);
+		Node node = new Node(pageNumber, page.get(0));
+		int cells = page.getShort(2) & 0xffff;
+		int rightPointer = page.getInt(8);
+		for (int i = 0; i < cells; i++) {
+			int offset = page.getInt(PAGE_HEADER_SIZE + i * 4);
+			if (!node.isLeaf()) {
+				node.children.add(page.getInt(offset));
+				offset += 4;
+			}
+			byte[] key = new byte[page.getShort(offset) & 0xffff];
+			for (int j = 0; j < key.length; j++)
+				key[j] = page.get(offset + 2 + j);
+			node.keys.add(key);
+		}
+		if (node.isLeaf())
+			node.next = rightPointer;
+		else
+			node.children.add(rightPointer);
+		return node;
+	}
+
+	// Write the whole page: the header, the offset array and the cells
+	// packed from the end of the page
+	private void writeNode(Node node) throws IOException {
+		ByteBuffer page = ByteBuffer.allocate((int) pageSize);
+		int offset = (int) pageSize;
+		for (int i = 0; i < node.keys.size(); i++) {
+			byte[] key = node.keys.get(i);
+			offset -= cellSize(node, key) - 4;
+			page.position(offset);
+			if (!node.isLeaf())
+				page.putInt(node.children.get(i));
+			page.putShort((short) key.length);
+			page.put(key);
+			page.putInt(PAGE_HEADER_SIZE + i * 4, offset);
+		}
+		page.put(0, node.pageType);
+		page.putShort(2, (short) node.keys.size());
+		page.putInt(4, offset);
+		page.putInt(8, node.isLeaf() ? node.next : node.children.get(node.keys.size()));
+		filePointer.seek(node.pageNumber * pageSize);
+		filePointer.write(page.array());
+	}
+
+	// Index of the first key that is greater than or equal to the given one
+	private static int lowerBound(List<byte[]> keys, byte[] key) {
+		int lo = 0, hi = keys.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(keys.get(mid), key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Compare two entries, or two values, byte by byte as unsigned bytes.
+	 */
+	static int compare(byte[] a, byte[] b) {
+		return compare(a, a.length, b, b.length);
+	}
+
+	/**
+	 * True if two entries hold the same value, whatever their rowids.
+	 */
+	static boolean sameValue(byte[] a, byte[] b) {
+		return compare(a, a.length - 4, b, b.length - 4) == 0;
+	}
+
+	private static int compare(byte[] a, int aLength, byte[] b, int bLength) {
+		for (int i = 0; i < Math.min(aLength, bLength); i++)
+			if (a[i] != b[i])
+				return (a[i] & 0xff) - (b[i] & 0xff);
+		return aLength - bLength;
+	}
+
+	/**
+	 * The entry of a row: its encoded value followed by its rowid, whose
+	 * sign bit is flipped so that negative rowids come first.
+	 */
+	static byte[] entry(byte[] value, int rowid) {
+		byte[] key = Arrays.copyOf(value, value.length + 4);
+		ByteBuffer.wrap(key).putInt(value.length, rowid ^ Integer.MIN_VALUE);
+		return key;
+	}
+
+	private static int rowid(byte[] key) {
+		return ByteBuffer.wrap(key).getInt(key.length - 4) ^ Integer.MIN_VALUE;
+	}
+
+	/**
+	 * The value of a column of the given type as it is kept in an index, or
+	 * null for NULL and for a value the column cannot hold. Integers, dates
+	 * and times become 8 bytes ordered like the numbers, the number of days
+	 * or the number of seconds since the epoch, as longs so that no two of
+	 * them share a key; REAL and DOUBLE values are kept as doubles. An
+	 * integer column compared to a fraction gets null and is not looked up
+	 * in the index. Text is compared ignoring case, like = in a WHERE
+	 * clause, and ends with a 0 byte so that a value comes before the longer
+	 * values it is a prefix of.
+	 */
+	static byte[] encodeValue(String type, String value) {
+		if (value == null || value.equalsIgnoreCase("NULL"))
+			return null;
+		long number;
+		try {
+			switch (type) {
+			case "TINYINT":
+			case "SMALLINT":
+			case "INT":
+			case "BIGINT":
+				number = Long.parseLong(value.trim());
+				break;
+			case "REAL":
+			case "DOUBLE":
+				return encodeDouble(Double.parseDouble(value));
+			case "DATE":
+				String[] date = value.split("-");
+				number = LocalDate.of(Integer.parseInt(date[0]), Integer.parseInt(date[1]), Integer.parseInt(date[2]))
+						.toEpochDay();
+				break;
+			case "DATETIME":
+				// As written in statements, or as read back from a table
+				if (value.indexOf('T') != -1)
+					number = ZonedDateTime.parse(value).toEpochSecond();
+				else
+					number = LocalDateTime.parse(value.trim().replace(' ', 'T')).atZone(ZONE).toEpochSecond();
+				break;
+			default:
+				return (value.toLowerCase() + "\0").getBytes(StandardCharsets.UTF_8);
+			}
+		} catch (NumberFormatException | DateTimeException | ArrayIndexOutOfBoundsException e) {
+			return null;
+		}
+		// With the sign bit flipped, negative numbers come first
+		return ByteBuffer.allocate(8).putLong(number ^ Long.MIN_VALUE).array();
+	}
+
+	private static byte[] encodeDouble(double number) {
+		if (Double.isNaN(number))
+			return null;
+		// Flip the sign bit of positive numbers and every bit of negative
+		// ones, then the bits compare like the numbers. 0.0 and -0.0 are one
+		long bits = Double.doubleToLongBits(number + 0.0);
+		bits ^= bits < 0 ? -1L : Long.MIN_VALUE;
+		return ByteBuffer.allocate(8).putLong(bits).array();
+	}
+
+	/**
+	 * Close the index file.
+	 */
+	void close() throws IOException {
+		filePointer.close();
+	}
+}
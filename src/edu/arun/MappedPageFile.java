@@ -0,0 +1,245 @@
+package edu.arun;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A table file read and written through a {@link MappedByteBuffer}. Values
+ * are decoded straight from the mapping, so reads cost no system call and
+ * no copy, and the OS page cache is the only cache involved.
+ * <p>
+ * All handles opened on the same path share one mapping, which is grown in
+ * large chunks. While the file is open its physical size is the size of the
+ * mapping and {@link #length()} tracks the logical end of the table; the
+ * file is truncated back when the last handle is closed. Trailing unused
+ * pages left behind by a crash are trimmed when the file is first mapped. A
+ * single mapping can address at most 2 GB.
+ */
+class MappedPageFile extends PageFile {
+
+	/**
+	 * Smallest chunk the mapping grows by, 1 MB.
+	 */
+	static final long MIN_GROWTH = 1L << 20;
+
+	/**
+	 * Largest chunk the mapping grows by, 64 MB.
+	 */
+	static final long MAX_GROWTH = 64L << 20;
+
+	/**
+	 * The mapping of a file and its logical length, shared by every handle
+	 * open on the file.
+	 */
+	private static class Mapping {
+		RandomAccessFile file;
+		FileChannel channel;
+		MappedByteBuffer buffer;
+		long length;
+		int handles;
+	}
+
+	private static final Map<String, Mapping> mappings = new HashMap<>();
+
+	private final Mapping mapping;
+
+	private boolean closed = false;
+
+	public MappedPageFile(String path, long pageSize) throws IOException {
+		super(path, pageSize);
+		synchronized (mappings) {
+			Mapping m = mappings.get(path);
+			if (m == null) {
+				m = new Mapping();
+				m.file = new RandomAccessFile(path, "rw");
+				m.channel = m.file.getChannel();
+				m.length = m.channel.size();
+				mappings.put(path, m);
+				this.mapping = m;
+				if (m.length > 0) {
+					map(m.length);
+					trimUnusedPages();
+				}
+			} else
+				this.mapping = m;
+			m.handles++;
+		}
+	}
+
+	// Every page in use starts with a non zero page type, so all zero pages
+	// at the end of the file are left over from a mapping that was not
+	// truncated on close.
+	private void trimUnusedPages() {
+		while (mapping.length >= pageSize && mapping.length % pageSize == 0
+				&& mapping.buffer.get((int) (mapping.length - pageSize)) == 0)
+			mapping.length -= pageSize;
+	}
+
+	private void map(long capacity) throws IOException {
+		if (capacity > Integer.MAX_VALUE)
+			throw new IOException("Table file " + path + " is too large to be memory mapped");
+		mapping.buffer = mapping.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	private long capacity() {
+		return mapping.buffer == null ? 0 : mapping.buffer.capacity();
+	}
+
+	// Remap the file so that at least `needed` bytes are addressable. The
+	// mapping doubles, in steps between MIN_GROWTH and MAX_GROWTH.
+	private void ensureCapacity(long needed) throws IOException {
+		long capacity = capacity();
+		if (needed <= capacity)
+			return;
+		long growth = Math.max(MIN_GROWTH, Math.min(capacity, MAX_GROWTH));
+		long newCapacity = Math.max(needed, capacity + growth);
+		newCapacity = (newCapacity + pageSize - 1) / pageSize * pageSize;
+		map(Math.min(newCapacity, (long) Integer.MAX_VALUE / pageSize * pageSize));
+		if (needed > capacity())
+			throw new IOException("Table file " + path + " is too large to be memory mapped");
+	}
+
+	@Override
+	public long length() {
+		return mapping.length;
+	}
+
+	@Override
+	protected long getBits(long pos, int n) throws IOException {
+		checkBounds(pos, n);
+		MappedByteBuffer buffer = mapping.buffer;
+		int index = (int) pos;
+		switch (n) {
+		case 1:
+			return buffer.get(index) & 0xff;
+		case 2:
+			return buffer.getShort(index) & 0xffff;
+		case 4:
+			return buffer.getInt(index) & 0xffffffffL;
+		default:
+			return buffer.getLong(index);
+		}
+	}
+
+	@Override
+	protected void putBits(long pos, long v, int n) throws IOException {
+		ensureCapacity(pos + n);
+		MappedByteBuffer buffer = mapping.buffer;
+		int index = (int) pos;
+		switch (n) {
+		case 1:
+			buffer.put(index, (byte) v);
+			break;
+		case 2:
+			buffer.putShort(index, (short) v);
+			break;
+		case 4:
+			buffer.putInt(index, (int) v);
+			break;
+		default:
+			buffer.putLong(index, v);
+		}
+		if (pos + n > mapping.length)
+			mapping.length = pos + n;
+	}
+
+	@Override
+	public ByteBuffer page(int pageNumber) throws IOException {
+		ByteBuffer page = mapping.buffer.duplicate();
+		page.position(pageNumber * pageSize);
+		page.limit(pageNumber * pageSize + pageSize);
+		return page.slice();
+	}
+
+	/**
+	 * The mapping is never unmapped while the file is open, a page needs no
+	 * pin to stay readable.
+	 */
+	@Override
+	public ByteBuffer pin(int pageNumber) throws IOException {
+		return page(pageNumber);
+	}
+
+	@Override
+	public void unpin(int pageNumber) {
+	}
+
+	/**
+	 * Writes to the mapping are never logged, there is no faster way to
+	 * write new pages.
+	 */
+	@Override
+	public boolean startUnlogged() {
+		return false;
+	}
+
+	@Override
+	public void writeUnlogged(int pageNumber, byte[] data) throws IOException {
+		long pos = (long) pageNumber * pageSize;
+		if (pos + pageSize > mapping.length)
+			setLength(pos + pageSize);
+		ByteBuffer page = mapping.buffer.duplicate();
+		page.position((int) pos);
+		page.put(data, 0, pageSize);
+	}
+
+	/**
+	 * Extending the file only remaps when the mapping is too small.
+	 * Shrinking it zeroes the dropped bytes; the file is cut to its logical
+	 * length when it is closed, since a mapped region must not be truncated
+	 * while it may still be accessed.
+	 */
+	@Override
+	public void setLength(long newLength) throws IOException {
+		if (newLength > mapping.length)
+			ensureCapacity(newLength);
+		else
+			for (long pos = newLength; pos < mapping.length; pos++)
+				mapping.buffer.put((int) pos, (byte) 0);
+		mapping.length = newLength;
+	}
+
+	/**
+	 * Writes to the mapping are already visible to every reader of the file,
+	 * there is nothing to flush before the file is closed.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Forget the mapping of a file that is being deleted or recreated.
+	 */
+	static void discard(String path) throws IOException {
+		synchronized (mappings) {
+			Mapping m = mappings.remove(path);
+			if (m != null) {
+				m.buffer = null;
+				m.length = 0;
+				m.file.close();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		synchronized (mappings) {
+			if (--mapping.handles > 0 || mappings.get(path) != mapping)
+				return;
+			mappings.remove(path);
+			if (mapping.buffer != null)
+				mapping.buffer.force();
+			mapping.buffer = null;
+			mapping.channel.truncate(mapping.length);
+			mapping.file.close();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package edu.arun;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * A table file divided into fixed size pages. It keeps the seek/read/write
+ * interface of {@link RandomAccessFile} so the BTree code can address the
+ * file by byte position, while the storage backend decides how the bytes
+ * are actually fetched: through the shared {@link BufferPool}
+ * ({@link CachedPageFile}) or straight from a memory mapping of the file
+ * ({@link MappedPageFile}).
+ */
+abstract class PageFile {
+
+	/**
+	 * Open table files with {@link MappedPageFile} instead of going through
+	 * the buffer pool.
+	 */
+	private static boolean memoryMapped = false;
+
+	protected final String path;
+
+	protected final int pageSize;
+
+	protected long position = 0;
+
+	protected PageFile(String path, long pageSize) {
+		this.path = path;
+		this.pageSize = (int) pageSize;
+	}
+
+	/**
+	 * Open the file with the storage backend currently selected.
+	 */
+	static PageFile open(String path, long pageSize) throws IOException {
+		if (memoryMapped)
+			return new MappedPageFile(path, pageSize);
+		return new CachedPageFile(path, pageSize);
+	}
+
+	static void setMemoryMapped(boolean mapped) {
+		memoryMapped = mapped;
+	}
+
+	static boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Drop everything cached for the file at the given path. Called before a
+	 * table file is deleted or recreated, which is logged as a truncation so
+	 * that recovery does not bring back its old pages.
+	 */
+	static void discard(String path) throws IOException {
+		if (!memoryMapped)
+			WriteAheadLog.forFile(path).logTruncate(path, 0);
+		BufferPool.getInstance().discard(path);
+		CachedPageFile.discard(path);
+		MappedPageFile.discard(path);
+	}
+
+	/**
+	 * Read <code>n</code> bytes (1, 2, 4 or 8) at <code>pos</code> as a big
+	 * endian value.
+	 */
+	protected abstract long getBits(long pos, int n) throws IOException;
+
+	/**
+	 * Write the low <code>n</code> bytes of <code>v</code> at
+	 * <code>pos</code> in big endian order.
+	 */
+	protected abstract void putBits(long pos, long v, int n) throws IOException;
+
+	/**
+	 * Returns a buffer over the bytes of the given page, to be read right
+	 * away: the page may leave memory on the next access to the file. Index 0
+	 * of the buffer is the first byte of the page.
+	 */
+	public abstract ByteBuffer page(int pageNumber) throws IOException;
+
+	/**
+	 * Returns a buffer over the bytes of the given page like
+	 * {@link #page(int)}, which stays valid until the page is unpinned. Every
+	 * pin must be matched by an {@link #unpin(int)}.
+	 */
+	public abstract ByteBuffer pin(int pageNumber) throws IOException;
+
+	/**
+	 * Release a page pinned with {@link #pin(int)}.
+	 */
+	public abstract void unpin(int pageNumber);
+
+	/**
+	 * Prepare to write the pages past the current end of the file with
+	 * {@link #writeUnlogged(int, byte[])} for the rest of the running
+	 * statement. Returns false if that is not possible, the pages must then
+	 * be written the usual way.
+	 */
+	public abstract boolean startUnlogged() throws IOException;
+
+	/**
+	 * Write a whole page past the end the file had when
+	 * {@link #startUnlogged()} returned true, bypassing whatever makes the
+	 * usual writes durable.
+	 */
+	public abstract void writeUnlogged(int pageNumber, byte[] data) throws IOException;
+
+	/**
+	 * Truncate or extend the file.
+	 */
+	public abstract void setLength(long newLength) throws IOException;
+
+	/**
+	 * Make the changes done through this handle visible to the file.
+	 */
+	public abstract void flush() throws IOException;
+
+	public abstract void close() throws IOException;
+
+	/**
+	 * Returns the logical length of the file.
+	 */
+	public abstract long length();
+
+	protected void checkBounds(long pos, int n) throws EOFException {
+		if (pos + n > length())
+			throw new EOFException();
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public void seek(long pos) {
+		position = pos;
+	}
+
+	public long getFilePointer() {
+		return position;
+	}
+
+	public byte readByte() throws IOException {
+		return (byte) getBits(position++, 1);
+	}
+
+	public short readShort() throws IOException {
+		short v = (short) getBits(position, 2);
+		position += 2;
+		return v;
+	}
+
+	public int readInt() throws IOException {
+		int v = (int) getBits(position, 4);
+		position += 4;
+		return v;
+	}
+
+	public long readLong() throws IOException {
+		long v = getBits(position, 8);
+		position += 8;
+		return v;
+	}
+
+	public float readFloat() throws IOException {
+		return Float.intBitsToFloat(readInt());
+	}
+
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	public int read(byte[] b) throws IOException {
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) getBits(position++, 1);
+		return b.length;
+	}
+
+	public void write(byte[] b) throws IOException {
+		for (int i = 0; i < b.length; i++)
+			putBits(position++, b[i], 1);
+	}
+
+	public void write(int b) throws IOException {
+		putBits(position++, b, 1);
+	}
+
+	public void writeByte(int b) throws IOException {
+		putBits(position++, b, 1);
+	}
+
+	public void writeShort(int v) throws IOException {
+		putBits(position, v, 2);
+		position += 2;
+	}
+
+	public void writeInt(int v) throws IOException {
+		putBits(position, v, 4);
+		position += 4;
+	}
+
+	public void writeLong(long v) throws IOException {
+		putBits(position, v, 8);
+		position += 8;
+	}
+
+	public void writeFloat(float v) throws IOException {
+		writeInt(Float.floatToIntBits(v));
+	}
+
+	public void writeDouble(double v) throws IOException {
+		writeLong(Double.doubleToLongBits(v));
+	}
+
+	public void writeBytes(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++)
+			putBits(position++, s.charAt(i), 1);
+	}
+}
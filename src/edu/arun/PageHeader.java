@@ -7,10 +7,11 @@ public class PageHeader implements Serializable {
 	 *
 	 */
 	private static final long serialVersionUID = -4926523570908806110L;
+	int pageNumber;
 	byte pageType;
-	byte numberOfCells;
-	short offset;
+	int numberOfCells;
+	int offset;
 	int rightPointer;
-	short[] cellLocations;
+	int[] cellLocations;
 	int lengthOfHeader;
 }
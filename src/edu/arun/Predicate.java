@@ -0,0 +1,702 @@
+package edu.arun;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * A comparison of a WHERE clause, compiled once per statement for the type
+ * of its column. The value is parsed up front and every row is tested
+ * straight on the bytes of its leaf cell: numbers, dates and rowids as
+ * primitives, TEXT byte by byte, so a scan decodes only the rows it keeps.
+ * <p>
+ * The comparisons follow the indexes: numbers compare by value, DATE and
+ * DATETIME in time order and TEXT ignoring the case of ASCII letters. NULL
+ * never compares with a value, but <code>= NULL</code> and
+ * <code>!= NULL</code> select the rows that are and are not NULL.
+ * <p>
+ * Comparisons combine with {@link #and(List)} and {@link #or(List)}, which
+ * stop at the first part that settles the outcome and try the parts that
+ * settle it most often for the least work first. NOT is pushed down to the
+ * comparisons by {@link #negate()}, so a NULL value fails a comparison
+ * whether or not it is negated.
+ * <p>
+ * A predicate tests one {@link RowView} at a time, or narrows the selection
+ * of a whole {@link Batch} with a loop over the vector of its column.
+ */
+abstract class Predicate {
+
+	private static final int EQUAL = 0, NOT_EQUAL = 1, LESS = 2, LESS_EQUAL = 3, GREATER = 4, GREATER_EQUAL = 5;
+
+	/**
+	 * The operator holding exactly when each operator does not.
+	 */
+	private static final int[] NEGATION = { NOT_EQUAL, EQUAL, GREATER_EQUAL, GREATER, LESS_EQUAL, LESS };
+
+	private static final ZoneId ZONE = ZoneId.of("America/Chicago");
+
+	/**
+	 * Every row, for a statement without a WHERE clause.
+	 */
+	static final Predicate TRUE = new Predicate(EQUAL, 0) {
+		@Override
+		boolean test(RowView row) {
+			return true;
+		}
+
+		@Override
+		void filter(Batch batch) {
+		}
+
+		@Override
+		Predicate negate() {
+			return or(new ArrayList<>());
+		}
+
+		@Override
+		double cost() {
+			return 0;
+		}
+	};
+
+	final int operator;
+
+	/**
+	 * Ordinal position of the column compared, 0 if none.
+	 */
+	final int position;
+
+	/**
+	 * Bit 0, 1 and 2 are set if the operator holds when the row is less
+	 * than, equal to and greater than the value.
+	 */
+	private final int outcomes;
+
+	/**
+	 * Estimated fraction of the rows that match, which orders the parts of
+	 * AND and OR. Guessed from the operator, and replaced by an estimate from
+	 * the statistics of the column when there are some.
+	 */
+	double selectivity;
+
+	private Predicate(int operator, int position) {
+		this.operator = operator;
+		this.position = position;
+		outcomes = (holds(operator, -1) ? 1 : 0) | (holds(operator, 0) ? 2 : 0) | (holds(operator, 1) ? 4 : 0);
+		switch (operator) {
+		case EQUAL:
+			selectivity = ColumnStatistics.DEFAULT_SELECTIVITY;
+			break;
+		case NOT_EQUAL:
+			selectivity = 1 - ColumnStatistics.DEFAULT_SELECTIVITY;
+			break;
+		default:
+			selectivity = QueryPlan.DEFAULT_RANGE_SELECTIVITY;
+		}
+	}
+
+	/**
+	 * True if the row matches.
+	 */
+	abstract boolean test(RowView row);
+
+	/**
+	 * Drop the rows that do not match from the selection of the batch.
+	 */
+	abstract void filter(Batch batch);
+
+	/**
+	 * The predicate matching the rows this one does not, except for the rows
+	 * where the column compared is NULL, which match neither.
+	 */
+	abstract Predicate negate();
+
+	/**
+	 * Rough work of testing a row, in comparisons of numbers.
+	 */
+	abstract double cost();
+
+	/**
+	 * Lowest rowid a matching row may have. The rows outside
+	 * {@link #lowKey()} and {@link #highKey()} never match, so only the
+	 * leaves in between have to be read.
+	 */
+	long lowKey() {
+		return Long.MIN_VALUE;
+	}
+
+	/**
+	 * Highest rowid a matching row may have.
+	 */
+	long highKey() {
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * The rows matching every one of the predicates.
+	 */
+	static Predicate and(List<Predicate> parts) {
+		List<Predicate> flat = new ArrayList<>();
+		for (Predicate part : parts)
+			if (part instanceof And)
+				flat.addAll(Arrays.asList(((And) part).parts));
+			else if (part != TRUE)
+				flat.add(part);
+		if (flat.size() == 1)
+			return flat.get(0);
+		// The parts that drop the most rows for the least work go first
+		flat.sort(Comparator.comparingDouble(part -> part.cost() / Math.max(1 - part.selectivity, 1e-6)));
+		return new And(flat.toArray(new Predicate[flat.size()]));
+	}
+
+	/**
+	 * The rows matching any of the predicates.
+	 */
+	static Predicate or(List<Predicate> parts) {
+		List<Predicate> flat = new ArrayList<>();
+		for (Predicate part : parts) {
+			if (part == TRUE)
+				return TRUE;
+			if (part instanceof Or)
+				flat.addAll(Arrays.asList(((Or) part).parts));
+			else
+				flat.add(part);
+		}
+		if (flat.size() == 1)
+			return flat.get(0);
+		// The parts that keep the most rows for the least work go first
+		flat.sort(Comparator.comparingDouble(part -> part.cost() / Math.max(part.selectivity, 1e-6)));
+		return new Or(flat.toArray(new Predicate[flat.size()]));
+	}
+
+	/**
+	 * The row with the given rowid.
+	 */
+	static Predicate rowid(long rowid) {
+		return new Rowid(EQUAL, rowid);
+	}
+
+	/**
+	 * Compile <code>column operator value</code> for the column at
+	 * <code>position</code>, whose data type is <code>type</code>. The
+	 * column has to exist, a statement without a WHERE clause uses
+	 * {@link #TRUE}. Reports the error and returns null if the operator is
+	 * unknown or the value does not fit the column.
+	 */
+	static Predicate compile(int position, String type, String operator, String value) {
+		if (position < 1)
+			throw new IllegalArgumentException("No column at position " + position);
+		int op = operator(operator);
+		if (op == -1) {
+			BTree.createError("Error in parsing relational operator: " + operator);
+			return null;
+		}
+		if (position == 1) {
+			try {
+				return new Rowid(op, Long.parseLong(value));
+			} catch (NumberFormatException e) {
+				BTree.createError("Primary Key must be an integer");
+				return null;
+			}
+		}
+		if (value.equalsIgnoreCase("NULL"))
+			return new Null(op, position);
+		try {
+			switch (type) {
+			case "TINYINT":
+			case "SMALLINT":
+			case "INT":
+			case "BIGINT":
+				if (value.matches("-?\\d+"))
+					return new Integral(op, position, Long.parseLong(value));
+				return new Real(op, position, Double.parseDouble(value));
+			case "REAL":
+				// Floats compare at their own precision, 1.1 matches the float
+				// stored for 1.1
+				return new Real(op, position, (float) Double.parseDouble(value));
+			case "DOUBLE":
+				return new Real(op, position, Double.parseDouble(value));
+			case "DATE":
+				String[] date = value.split("-");
+				return new Integral(op, position,
+						LocalDate.of(Integer.parseInt(date[0]), Integer.parseInt(date[1]), Integer.parseInt(date[2]))
+								.atStartOfDay(ZONE).toEpochSecond());
+			case "DATETIME":
+				// As written in statements, or as read back from a table
+				if (value.indexOf('T') != -1)
+					return new Integral(op, position, ZonedDateTime.parse(value).toEpochSecond());
+				return new Integral(op, position,
+						LocalDateTime.parse(value.trim().replace(' ', 'T')).atZone(ZONE).toEpochSecond());
+			default:
+				return new Text(op, position, value);
+			}
+		} catch (NumberFormatException | DateTimeException | ArrayIndexOutOfBoundsException e) {
+			BTree.createError("ERROR 1292 (22007): Incorrect " + type + " value: '" + value + "'");
+			return null;
+		}
+	}
+
+	private static int operator(String operator) {
+		switch (operator) {
+		case "=":
+			return EQUAL;
+		case "!=":
+		case "<>":
+			return NOT_EQUAL;
+		case "<":
+			return LESS;
+		case "<=":
+			return LESS_EQUAL;
+		case ">":
+			return GREATER;
+		case ">=":
+			return GREATER_EQUAL;
+		default:
+			return -1;
+		}
+	}
+
+	// True if the outcome of comparing the row with the value satisfies the
+	// operator, without a branch on the operator
+	final boolean holds(int comparison) {
+		return (outcomes >> Integer.signum(comparison) + 1 & 1) != 0;
+	}
+
+	private static boolean holds(int operator, int comparison) {
+		switch (operator) {
+		case EQUAL:
+			return comparison == 0;
+		case NOT_EQUAL:
+			return comparison != 0;
+		case LESS:
+			return comparison < 0;
+		case LESS_EQUAL:
+			return comparison <= 0;
+		case GREATER:
+			return comparison > 0;
+		default:
+			return comparison >= 0;
+		}
+	}
+
+	private static class Rowid extends Predicate {
+		private final long value;
+
+		Rowid(int operator, long value) {
+			super(operator, 1);
+			this.value = value;
+		}
+
+		@Override
+		boolean test(RowView row) {
+			return holds(Long.compare(row.getRowid(), value));
+		}
+
+		@Override
+		Predicate negate() {
+			return negated(new Rowid(NEGATION[operator], value));
+		}
+
+		@Override
+		double cost() {
+			return 1;
+		}
+
+		@Override
+		long lowKey() {
+			switch (operator) {
+			case EQUAL:
+			case GREATER_EQUAL:
+				return value;
+			case GREATER:
+				return value == Long.MAX_VALUE ? value : value + 1;
+			default:
+				return Long.MIN_VALUE;
+			}
+		}
+
+		@Override
+		long highKey() {
+			switch (operator) {
+			case EQUAL:
+			case LESS_EQUAL:
+				return value;
+			case LESS:
+				return value == Long.MIN_VALUE ? value : value - 1;
+			default:
+				return Long.MAX_VALUE;
+			}
+		}
+
+		@Override
+		void filter(Batch batch) {
+			int[] selection = batch.selection;
+			int[] rowids = batch.rowids;
+			int n = 0;
+			for (int k = 0; k < batch.selected; k++) {
+				int i = selection[k];
+				if (holds(Long.compare(rowids[i], value)))
+					selection[n++] = i;
+			}
+			batch.selected = n;
+		}
+	}
+
+	// Whether the value is NULL, for = NULL and != NULL
+	private static class Null extends Predicate {
+		Null(int operator, int position) {
+			super(operator, position);
+		}
+
+		@Override
+		boolean test(RowView row) {
+			return operator == (row.isNull(position) ? EQUAL : NOT_EQUAL);
+		}
+
+		@Override
+		Predicate negate() {
+			return negated(new Null(NEGATION[operator], position));
+		}
+
+		@Override
+		double cost() {
+			return 1;
+		}
+
+		@Override
+		void filter(Batch batch) {
+			int[] selection = batch.selection;
+			boolean[] nulls = batch.vector(position).nulls;
+			boolean isNull = operator == EQUAL;
+			int n = 0;
+			for (int k = 0; k < batch.selected; k++) {
+				int i = selection[k];
+				if (nulls[i] == isNull)
+					selection[n++] = i;
+			}
+			batch.selected = n;
+		}
+	}
+
+	// Integers, dates and datetimes, compared as longs
+	private static class Integral extends Predicate {
+		private final long value;
+
+		Integral(int operator, int position, long value) {
+			super(operator, position);
+			this.value = value;
+		}
+
+		@Override
+		boolean test(RowView row) {
+			if (row.isNull(position))
+				return false;
+			if (row.isFloatingPoint(position))
+				return holds(compare(row.getDouble(position), value));
+			return holds(Long.compare(row.getLong(position), value));
+		}
+
+		@Override
+		Predicate negate() {
+			return negated(new Integral(NEGATION[operator], position, value));
+		}
+
+		@Override
+		double cost() {
+			return 2;
+		}
+
+		@Override
+		void filter(Batch batch) {
+			Batch.ColumnVector vector = batch.vector(position);
+			if (vector.floatingPoint) {
+				filter(batch, vector, value);
+				return;
+			}
+			int[] selection = batch.selection;
+			boolean[] nulls = vector.nulls;
+			long[] longs = vector.longs;
+			int n = 0;
+			for (int k = 0; k < batch.selected; k++) {
+				int i = selection[k];
+				if (!nulls[i] && holds(Long.compare(longs[i], value)))
+					selection[n++] = i;
+			}
+			batch.selected = n;
+		}
+	}
+
+	// Numbers compared as doubles
+	private static class Real extends Predicate {
+		private final double value;
+
+		Real(int operator, int position, double value) {
+			super(operator, position);
+			this.value = value;
+		}
+
+		@Override
+		boolean test(RowView row) {
+			return !row.isNull(position) && holds(compare(row.getDouble(position), value));
+		}
+
+		@Override
+		Predicate negate() {
+			return negated(new Real(NEGATION[operator], position, value));
+		}
+
+		@Override
+		double cost() {
+			return 2;
+		}
+
+		@Override
+		void filter(Batch batch) {
+			Batch.ColumnVector vector = batch.vector(position);
+			if (vector.floatingPoint) {
+				filter(batch, vector, value);
+				return;
+			}
+			int[] selection = batch.selection;
+			boolean[] nulls = vector.nulls;
+			long[] longs = vector.longs;
+			int n = 0;
+			for (int k = 0; k < batch.selected; k++) {
+				int i = selection[k];
+				if (!nulls[i] && holds(compare(longs[i], value)))
+					selection[n++] = i;
+			}
+			batch.selected = n;
+		}
+	}
+
+	// Keep the rows whose number compares with the value as the operator
+	// asks
+	final void filter(Batch batch, Batch.ColumnVector vector, double value) {
+		int[] selection = batch.selection;
+		boolean[] nulls = vector.nulls;
+		double[] doubles = vector.doubles;
+		int n = 0;
+		for (int k = 0; k < batch.selected; k++) {
+			int i = selection[k];
+			if (!nulls[i] && holds(compare(doubles[i], value)))
+				selection[n++] = i;
+		}
+		batch.selected = n;
+	}
+
+	// Unlike Double.compare, 0.0 and -0.0 are equal
+	private static int compare(double a, double b) {
+		return a < b ? -1 : a > b ? 1 : 0;
+	}
+
+	// TEXT compared byte by byte with the ASCII letters folded to lower case
+	private static class Text extends Predicate {
+		private final byte[] value;
+
+		Text(int operator, int position, String value) {
+			this(operator, position, value.getBytes(StandardCharsets.ISO_8859_1));
+			for (int i = 0; i < this.value.length; i++)
+				this.value[i] = (byte) RowView.lower(this.value[i]);
+		}
+
+		private Text(int operator, int position, byte[] lowered) {
+			super(operator, position);
+			this.value = lowered;
+		}
+
+		@Override
+		Predicate negate() {
+			return negated(new Text(NEGATION[operator], position, value));
+		}
+
+		@Override
+		double cost() {
+			return 4;
+		}
+
+		@Override
+		boolean test(RowView row) {
+			return row.getSerialTypeCode(position) >= 12 && !row.isNull(position)
+					&& holds(row.compareText(position, value));
+		}
+
+		@Override
+		void filter(Batch batch) {
+			Batch.ColumnVector vector = batch.vector(position);
+			int[] selection = batch.selection;
+			byte[] codes = vector.codes;
+			boolean[] nulls = vector.nulls;
+			int n = 0;
+			for (int k = 0; k < batch.selected; k++) {
+				int i = selection[k];
+				if (codes[i] >= 12 && !nulls[i] && holds(compare(vector.text, vector.starts[i], vector.lengths[i])))
+					selection[n++] = i;
+			}
+			batch.selected = n;
+		}
+
+		// Same as RowView.compareText, over the bytes packed in a vector
+		private int compare(byte[] text, int start, int length) {
+			int n = Math.min(length, value.length);
+			for (int i = 0; i < n; i++) {
+				int c = RowView.lower(text[start + i]) - (value[i] & 0xff);
+				if (c != 0)
+					return c;
+			}
+			return length - value.length;
+		}
+	}
+
+	// The negation of this comparison, which matches the other rows
+	final Predicate negated(Predicate negation) {
+		negation.selectivity = 1 - selectivity;
+		return negation;
+	}
+
+	private static class And extends Predicate {
+		private final Predicate[] parts;
+
+		And(Predicate[] parts) {
+			super(EQUAL, 0);
+			this.parts = parts;
+			selectivity = 1;
+			for (Predicate part : parts)
+				selectivity *= part.selectivity;
+		}
+
+		@Override
+		boolean test(RowView row) {
+			for (Predicate part : parts)
+				if (!part.test(row))
+					return false;
+			return true;
+		}
+
+		// Each part only looks at the rows the parts before it kept
+		@Override
+		void filter(Batch batch) {
+			for (int i = 0; i < parts.length && batch.selected > 0; i++)
+				parts[i].filter(batch);
+		}
+
+		@Override
+		Predicate negate() {
+			List<Predicate> negations = new ArrayList<>();
+			for (Predicate part : parts)
+				negations.add(part.negate());
+			return or(negations);
+		}
+
+		@Override
+		double cost() {
+			double cost = 0;
+			for (Predicate part : parts)
+				cost += part.cost();
+			return cost;
+		}
+
+		@Override
+		long lowKey() {
+			long low = Long.MIN_VALUE;
+			for (Predicate part : parts)
+				low = Math.max(low, part.lowKey());
+			return low;
+		}
+
+		@Override
+		long highKey() {
+			long high = Long.MAX_VALUE;
+			for (Predicate part : parts)
+				high = Math.min(high, part.highKey());
+			return high;
+		}
+	}
+
+	private static class Or extends Predicate {
+		private final Predicate[] parts;
+
+		Or(Predicate[] parts) {
+			super(EQUAL, 0);
+			this.parts = parts;
+			double none = 1;
+			for (Predicate part : parts)
+				none *= 1 - part.selectivity;
+			selectivity = 1 - none;
+		}
+
+		@Override
+		boolean test(RowView row) {
+			for (Predicate part : parts)
+				if (part.test(row))
+					return true;
+			return false;
+		}
+
+		// Each part only looks at the rows no part before it matched, the
+		// rows matched are put back in the order of the batch at the end
+		@Override
+		void filter(Batch batch) {
+			int[] selection = batch.selection;
+			int[] pending = Arrays.copyOf(selection, batch.selected);
+			int count = pending.length;
+			boolean[] matched = new boolean[batch.size];
+			for (int i = 0; i < parts.length && count > 0; i++) {
+				System.arraycopy(pending, 0, selection, 0, count);
+				batch.selected = count;
+				parts[i].filter(batch);
+				for (int k = 0; k < batch.selected; k++)
+					matched[selection[k]] = true;
+				int n = 0;
+				for (int k = 0; k < count; k++)
+					if (!matched[pending[k]])
+						pending[n++] = pending[k];
+				count = n;
+			}
+			int n = 0;
+			for (int i = 0; i < batch.size; i++)
+				if (matched[i])
+					selection[n++] = i;
+			batch.selected = n;
+		}
+
+		@Override
+		Predicate negate() {
+			List<Predicate> negations = new ArrayList<>();
+			for (Predicate part : parts)
+				negations.add(part.negate());
+			return and(negations);
+		}
+
+		@Override
+		double cost() {
+			double cost = 0;
+			for (Predicate part : parts)
+				cost += part.cost();
+			return cost;
+		}
+
+		@Override
+		long lowKey() {
+			long low = Long.MAX_VALUE;
+			for (Predicate part : parts)
+				low = Math.min(low, part.lowKey());
+			return low;
+		}
+
+		@Override
+		long highKey() {
+			long high = Long.MIN_VALUE;
+			for (Predicate part : parts)
+				high = Math.max(high, part.highKey());
+			return high;
+		}
+	}
+}
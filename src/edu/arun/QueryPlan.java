@@ -0,0 +1,135 @@
+package edu.arun;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How a statement with a single comparison in its WHERE clause reaches the
+ * rows: scanning every leaf, reading the leaves of a rowid range when the
+ * comparison is on the primary key, or looking the rowids up in an index of
+ * the column. The number of rows selected is estimated from the
+ * {@link ColumnStatistics} gathered by ANALYZE TABLE, or from fixed guesses
+ * if the table has not been analyzed, and every possible access is costed
+ * in pages read. An index is costed by reading its matching entries, as many
+ * as could still make it cheaper than the other accesses, and every row
+ * found through it costs a page of the table.
+ */
+class QueryPlan {
+
+	enum Access {
+		FULL_SCAN, ROWID_RANGE, INDEX_RANGE
+	}
+
+	/**
+	 * Selectivity assumed for a range comparison when the column has no
+	 * statistics.
+	 */
+	static final double DEFAULT_RANGE_SELECTIVITY = 1.0 / 3;
+
+	/**
+	 * Comparisons an index can answer.
+	 */
+	static final List<String> RANGE_OPERATORS = Arrays.asList("=", "<", "<=", ">", ">=");
+
+	final Access access;
+
+	/**
+	 * Estimated fraction of the rows selected.
+	 */
+	final double selectivity;
+
+	final long estimatedRows;
+
+	/**
+	 * Estimated number of pages read.
+	 */
+	final double cost;
+
+	/**
+	 * For {@link Access#INDEX_RANGE} the index used and the rowids of the
+	 * matching rows, in index order.
+	 */
+	final IndexTree index;
+	final List<Integer> rowids;
+
+	private QueryPlan(Access access, double selectivity, long estimatedRows, double cost, IndexTree index,
+			List<Integer> rowids) {
+		this.access = access;
+		this.selectivity = selectivity;
+		this.estimatedRows = estimatedRows;
+		this.cost = cost;
+		this.index = index;
+		this.rowids = rowids;
+	}
+
+	/**
+	 * Plan the access for <code>column operator value</code>.
+	 */
+	static QueryPlan choose(TableSchema schema, Map<String, ColumnStatistics> statistics, List<IndexTree> indexes,
+			BTree tree, String column, String operator, String value) throws IOException {
+		int position = schema.getOrdinalPosition(column);
+		long rows = tree.getRowCount();
+		// rowid names the primary key, the first column
+		ColumnStatistics columnStatistics = position == 0 ? null
+				: statistics.get(schema.columns.get(position - 1).name);
+		double selectivity = selectivity(columnStatistics, position, rows, operator, value);
+		double leaves = Math.max(tree.getPageCount() - 1, 1);
+		Access access = Access.FULL_SCAN;
+		double cost = leaves;
+		if (position == 1) {
+			// A walk down to the first leaf of the range, then the leaves it
+			// covers. The walk ends on the first leaf the scan would read, so
+			// a range never reads more than the scan; <> is read as two
+			// ranges which together cover every leaf.
+			access = Access.ROWID_RANGE;
+			cost = Math.min(descent(leaves, tree.getPageSize()) + Math.ceil(selectivity * leaves), leaves);
+		}
+		IndexTree index = position > 1 ? findIndex(indexes, position) : null;
+		byte[] key = index == null ? null : IndexTree.encodeValue(index.index.column.type, value);
+		if (key != null && RANGE_OPERATORS.contains(operator)) {
+			// Reading more rows than there are leaves is never cheaper
+			List<Integer> rowids = index.search(operator, key, (long) leaves + 1);
+			if (rowids.size() <= leaves) {
+				double indexLeaves = Math.max(index.getPageCount() - 1, 1);
+				double entriesPerLeaf = Math.max(index.getEntryCount() / indexLeaves, 1);
+				double indexCost = descent(indexLeaves, index.getPageSize())
+						+ Math.ceil(rowids.size() / entriesPerLeaf) + rowids.size();
+				if (indexCost < cost)
+					return new QueryPlan(Access.INDEX_RANGE, rows == 0 ? 0 : (double) rowids.size() / rows,
+							rowids.size(), indexCost, index, rowids);
+			}
+		}
+		return new QueryPlan(access, selectivity, Math.round(selectivity * rows), cost, null, null);
+	}
+
+	// Pages read walking down from the root to a leaf
+	private static double descent(double leaves, long pageSize) {
+		double fanout = Math.max(pageSize / 8, 2);
+		return Math.log(leaves) / Math.log(fanout);
+	}
+
+	private static IndexTree findIndex(List<IndexTree> indexes, int position) {
+		for (IndexTree index : indexes)
+			if (index.index.column.ordinalPosition == position)
+				return index;
+		return null;
+	}
+
+	static double selectivity(ColumnStatistics statistics, int position, long rows, String operator,
+			String value) {
+		if (statistics != null)
+			return statistics.selectivity(operator, value);
+		boolean key = position == 1;
+		switch (operator) {
+		case "=":
+			return key ? 1.0 / Math.max(rows, 1) : ColumnStatistics.DEFAULT_SELECTIVITY;
+		case "!=":
+		case "<>":
+			return key ? 1 - 1.0 / Math.max(rows, 1) : 1 - ColumnStatistics.DEFAULT_SELECTIVITY;
+		default:
+			return DEFAULT_RANGE_SELECTIVITY;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package edu.arun;
 
+import java.io.IOException;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -12,6 +13,12 @@ public class QueryResultPrinter {
 
 	private static final int COLUMN_WIDTH = 150;
 
+	/**
+	 * Rows read to size the columns before the first one is printed. Later
+	 * rows are printed as they are read, in the widths found so far.
+	 */
+	private static final int SIZING_ROWS = 1000;
+
 	public static final int STRING_GROUP = 1;
 
 	public static final int INTEGER_GROUP = 2;
@@ -165,14 +172,18 @@ public class QueryResultPrinter {
 	}
 
 	/**
+	 * Print the rows of the cursor as a table and close it. Only the first
+	 * {@link #SIZING_ROWS} rows are kept in memory, to size the columns.
+	 *
+	 * @param resultSet
+	 *            the rows, with only the columns at
+	 *            <code>ordinalPostions</code> if it is not null
 	 * @param ordinalPostions
-	 * @param rs
-	 * @param maxStringColWidth
+	 *            the ordinal positions of the selected columns, or null for
+	 *            all of them
 	 */
-	public static void printQueryResult(List<List<Column>> resultSet, List<List<Column>> columnss, String tableName,
-			List<Integer> ordinalPostions) {
-		int maxStringColWidth = COLUMN_WIDTH;
-
+	public static void printQueryResult(Cursor resultSet, List<List<Column>> columnss, String tableName,
+			List<Integer> ordinalPostions) throws IOException {
 		// Total number of columns in this ResultSet
 		int columnCount = columnss.size();
 
@@ -192,58 +203,31 @@ public class QueryResultPrinter {
 						columnss.get(i).get(3).column);
 				c.setWidth(c.getLabel().length());
 				c.setTypeCategory(getGroup(c.getType()));
-				fields.add(c);
+				if (ordinalPostions == null || ordinalPostions.contains(i + 1))
+					fields.add(c);
 
 			}
 		else {
-			Field c = new Field(columnss.get(0).get(0).column, "TEXT", "TEXT");
+			// A column computed by the query also gives its type
+			List<Column> column = columnss.get(0);
+			String type = column.size() > 3 && column.get(3) != null && sqlTypes.containsKey(column.get(3).column)
+					? column.get(3).column
+					: "TEXT";
+			Field c = new Field(column.get(0).column, type, type);
 			c.setWidth(c.getLabel().length());
 			c.setTypeCategory(getGroup(c.getType()));
 			fields.add(c);
 		}
+		columnCount = fields.size();
 
-		// Go through each row, get values of each column and adjust
+		// Go through the first rows, get values of each column and adjust
 		// column widths.
 		int rowCount = 0;
-		for (List<Column> tuple : resultSet) {
+		List<Column> tuple;
+		while (rowCount < SIZING_ROWS && (tuple = resultSet.next()) != null) {
 			for (int i = 0; i < columnCount; i++) {
 				Field c = fields.get(i);
-				String value = null;
-				int category = c.getTypeCategory();
-
-				if (category == OTHER) {
-
-					// Use generic SQL type name instead of the actual value
-					// for column types BLOB, BINARY etc.
-					value = "(" + c.getTypeName() + ")";
-
-				} else {
-					value = tuple.get(i).column == null ? "NULL" : tuple.get(i).column;
-				}
-				switch (category) {
-				case DOUBLE_GROUP:
-
-					// For real numbers, format the string value to have 3
-					// digits
-					// after the point. THIS IS TOTALLY ARBITRARY and can be
-					// improved to be CONFIGURABLE.
-					if (!value.equals("NULL")) {
-						Double dValue = Double.parseDouble(tuple.get(i).column);
-						value = String.format("%.3f", dValue);
-					}
-					break;
-
-				case STRING_GROUP:
-
-					// Left justify the text columns
-					c.justifyLeft();
-
-					// and apply the width limit
-					if (value.length() > maxStringColWidth) {
-						value = value.substring(0, maxStringColWidth - 3) + "...";
-					}
-					break;
-				}
+				String value = formatValue(c, tuple.get(i));
 
 				// Adjust the column width
 				c.setWidth(value.length() > c.getWidth() ? value.length() : c.getWidth());
@@ -264,37 +248,33 @@ public class QueryResultPrinter {
 		 * +--------+------------+------------+-----------+ (row separator)
 		 */
 
-		int j = 1;
 		// Iterate over columns
 		for (Field c : fields) {
-			if (ordinalPostions == null || ordinalPostions.contains(j)) {
-				int width = c.getWidth();
-
-				// Center the column label
-				String toPrint;
-				String name = c.getLabel();
-				int diff = width - name.length();
-
-				if ((diff % 2) == 1) {
-					// diff is not divisible by 2, add 1 to width (and diff)
-					// so that we can have equal padding to the left and right
-					// of the column label.
-					width++;
-					diff++;
-					c.setWidth(width);
-				}
+			int width = c.getWidth();
+
+			// Center the column label
+			String toPrint;
+			String name = c.getLabel();
+			int diff = width - name.length();
+
+			if ((diff % 2) == 1) {
+				// diff is not divisible by 2, add 1 to width (and diff)
+				// so that we can have equal padding to the left and right
+				// of the column label.
+				width++;
+				diff++;
+				c.setWidth(width);
+			}
 
-				int paddingSize = diff / 2;
-				String padding = new String(new char[paddingSize]).replace("\0", " ");
+			int paddingSize = diff / 2;
+			String padding = new String(new char[paddingSize]).replace("\0", " ");
 
-				toPrint = "| " + padding + name + padding + " ";
+			toPrint = "| " + padding + name + padding + " ";
 
-				strToPrint.append(toPrint);
+			strToPrint.append(toPrint);
 
-				rowSeparator.append("+");
-				rowSeparator.append(new String(new char[width + 2]).replace("\0", "-"));
-			}
-			j++;
+			rowSeparator.append("+");
+			rowSeparator.append(new String(new char[width + 2]).replace("\0", "-"));
 		}
 
 		String lineSeparator = System.getProperty("line.separator");
@@ -318,26 +298,75 @@ public class QueryResultPrinter {
 		String format;
 
 		// Print out the rows
-		j = 1;
 		for (int i = 0; i < rowCount; i++) {
 			for (Field c : fields) {
-				if (ordinalPostions == null || ordinalPostions.contains(j)) {
+				// format string like: "%-60s"
+				format = String.format("| %%%s%ds ", c.getJustifyFlag(), c.getWidth());
+				System.out.print(String.format(format, c.getValue(i)));
+			}
+			System.out.println("|");
+			System.out.print(rowSeparator);
+		}
 
-					// format string like: "%-60s"
-					format = String.format("| %%%s%ds ", c.getJustifyFlag(), c.getWidth());
-					System.out.print(String.format(format, c.getValue(i)));
-				}
-				j++;
+		// and the rest as they are read
+		long total = rowCount;
+		while ((tuple = resultSet.next()) != null) {
+			for (int i = 0; i < columnCount; i++) {
+				Field c = fields.get(i);
+				format = String.format("| %%%s%ds ", c.getJustifyFlag(), c.getWidth());
+				System.out.print(String.format(format, formatValue(c, tuple.get(i))));
 			}
-			j = 1;
 			System.out.println("|");
 			System.out.print(rowSeparator);
+			total++;
 		}
-		System.out.println(resultSet.size() + " rows in set");
+		resultSet.close();
+		System.out.println(total + " rows in set");
 		System.out.println();
 
 	}
 
+	// The String representation of a value of the column
+	private static String formatValue(Field c, Column column) {
+		String value = null;
+		int category = c.getTypeCategory();
+
+		if (category == OTHER) {
+
+			// Use generic SQL type name instead of the actual value
+			// for column types BLOB, BINARY etc.
+			value = "(" + c.getTypeName() + ")";
+
+		} else {
+			value = column.column == null ? "NULL" : column.column;
+		}
+		switch (category) {
+		case DOUBLE_GROUP:
+
+			// For real numbers, format the string value to have 3
+			// digits
+			// after the point. THIS IS TOTALLY ARBITRARY and can be
+			// improved to be CONFIGURABLE.
+			if (!value.equals("NULL")) {
+				Double dValue = Double.parseDouble(column.column);
+				value = String.format("%.3f", dValue);
+			}
+			break;
+
+		case STRING_GROUP:
+
+			// Left justify the text columns
+			c.justifyLeft();
+
+			// and apply the width limit
+			if (value.length() > COLUMN_WIDTH) {
+				value = value.substring(0, COLUMN_WIDTH - 3) + "...";
+			}
+			break;
+		}
+		return value;
+	}
+
 	private static int getGroup(String type) {
 		switch (sqlTypes.get(type)) {
 		case Types.BIGINT:
@@ -0,0 +1,291 @@
+package edu.arun;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A row read in place from the bytes of its leaf cell. The typed getters
+ * read a value straight from the page; it only becomes a String or a
+ * {@link Column} when asked for one. A cursor moves a single view from row
+ * to row with {@link #at(ByteBuffer, int)}, so reading rows allocates
+ * nothing per row. Columns are addressed by ordinal position, 1 being the
+ * rowid.
+ */
+class RowView {
+
+	private static final ZoneId ZONE = ZoneId.of("America/Chicago");
+
+	private ByteBuffer page;
+
+	private int cell;
+
+	/**
+	 * Number of columns, the rowid included.
+	 */
+	private int columnCount;
+
+	/**
+	 * Start of the value of the column at position i + 2, worked out from
+	 * the serial type codes up to the last column asked for.
+	 */
+	private int[] offsets = new int[16];
+
+	private int known;
+
+	/**
+	 * Move the view to the leaf cell starting at <code>cell</code> in the
+	 * page.
+	 */
+	RowView at(ByteBuffer page, int cell) {
+		this.page = page;
+		this.cell = cell;
+		columnCount = page.get(cell + 6) + 1;
+		if (offsets.length < columnCount)
+			offsets = new int[columnCount];
+		offsets[0] = cell + 6 + columnCount;
+		known = 1;
+		return this;
+	}
+
+	int getColumnCount() {
+		return columnCount;
+	}
+
+	int getRowid() {
+		return page.getInt(cell + 2);
+	}
+
+	byte getSerialTypeCode(int position) {
+		return page.get(cell + 5 + position);
+	}
+
+	private int offset(int position) {
+		int i = position - 2;
+		for (; known <= i; known++)
+			offsets[known] = offsets[known - 1] + BTree.dataLength(page.get(cell + 6 + known));
+		return offsets[i];
+	}
+
+	/**
+	 * Number of bytes of the value.
+	 */
+	int getLength(int position) {
+		return position == 1 ? 4 : BTree.dataLength(getSerialTypeCode(position));
+	}
+
+	/**
+	 * True for the NULL of any type. TEXT is NULL if it is empty or holds the
+	 * word NULL, which is how a NULL TEXT value is written.
+	 */
+	boolean isNull(int position) {
+		if (position == 1)
+			return false;
+		byte code = getSerialTypeCode(position);
+		if (code < 4 || code == 12)
+			return true;
+		if (code != 16)
+			return false;
+		int offset = offset(position);
+		for (int i = 0; i < 4; i++)
+			if (lower(page.get(offset + i)) != "null".charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * A value of the integer types, or the epoch seconds of a DATE or
+	 * DATETIME. Floating point values are truncated and NULL reads as 0.
+	 */
+	long getLong(int position) {
+		if (position == 1)
+			return getRowid();
+		int offset = offset(position);
+		switch (getSerialTypeCode(position)) {
+		case 4:
+			return page.get(offset);
+		case 5:
+			return page.getShort(offset);
+		case 6:
+			return page.getInt(offset);
+		case 7:
+		case 10:
+		case 11:
+			return page.getLong(offset);
+		case 8:
+			return (long) page.getFloat(offset);
+		case 9:
+			return (long) page.getDouble(offset);
+		default:
+			return 0;
+		}
+	}
+
+	int getInt(int position) {
+		return (int) getLong(position);
+	}
+
+	/**
+	 * A value of any numeric type.
+	 */
+	double getDouble(int position) {
+		if (position == 1)
+			return getRowid();
+		switch (getSerialTypeCode(position)) {
+		case 8:
+			return page.getFloat(offset(position));
+		case 9:
+			return page.getDouble(offset(position));
+		default:
+			return getLong(position);
+		}
+	}
+
+	/**
+	 * True if the value is a REAL or a DOUBLE.
+	 */
+	boolean isFloatingPoint(int position) {
+		if (position == 1)
+			return false;
+		byte code = getSerialTypeCode(position);
+		return code == 8 || code == 9;
+	}
+
+	/**
+	 * A copy of the bytes of the value as stored.
+	 */
+	byte[] getBytes(int position) {
+		byte[] bytes = new byte[getLength(position)];
+		copyBytes(position, bytes, 0);
+		return bytes;
+	}
+
+	/**
+	 * Copy the bytes of the value into <code>target</code> from
+	 * <code>start</code> on.
+	 */
+	void copyBytes(int position, byte[] target, int start) {
+		int length = getLength(position);
+		int offset = position == 1 ? cell + 2 : offset(position);
+		for (int i = 0; i < length; i++)
+			target[start + i] = page.get(offset + i);
+	}
+
+	/**
+	 * Compare a TEXT value with <code>lowered</code>, both with the ASCII
+	 * letters in lower case, byte by byte.
+	 */
+	int compareText(int position, byte[] lowered) {
+		int length = getLength(position);
+		int offset = offset(position);
+		int n = Math.min(length, lowered.length);
+		for (int i = 0; i < n; i++) {
+			int c = lower(page.get(offset + i)) - (lowered[i] & 0xff);
+			if (c != 0)
+				return c;
+		}
+		return length - lowered.length;
+	}
+
+	static int lower(byte b) {
+		int c = b & 0xff;
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	/**
+	 * The value as the result of a query shows it.
+	 */
+	String getString(int position) {
+		if (position == 1)
+			return String.valueOf(getRowid());
+		byte code = getSerialTypeCode(position);
+		int offset = offset(position);
+		switch (code) {
+		case 0:
+		case 1:
+		case 2:
+		case 3:
+		case 12:
+			return "NULL";
+		case 4:
+		case 5:
+		case 6:
+		case 7:
+			return String.valueOf(getLong(position));
+		case 8:
+			return String.valueOf(page.getFloat(offset));
+		case 9:
+			return String.valueOf(page.getDouble(offset));
+		case 10:
+			return dateTimeString(page.getLong(offset));
+		case 11:
+			return dateString(page.getLong(offset));
+		default:
+			return new String(getBytes(position));
+		}
+	}
+
+	static String dateTimeString(long epochSecond) {
+		return Instant.ofEpochSecond(epochSecond).atZone(ZONE).toString();
+	}
+
+	static String dateString(long epochSecond) {
+		return Instant.ofEpochSecond(epochSecond).atZone(ZONE).toLocalDate().toString();
+	}
+
+	/**
+	 * The value as a Column, typed after its serial type code.
+	 */
+	Column getColumn(int position) {
+		if (position == 1)
+			return new Column(getString(position), "INT", "N", "Y");
+		String value = getString(position);
+		switch (getSerialTypeCode(position)) {
+		case 0:
+			return new Column(value, "NULL TINYINT", "", "N");
+		case 1:
+			return new Column(value, "NULL SMALLINT", "", "N");
+		case 2:
+			return new Column(value, "NULL INT", "", "N");
+		case 3:
+			return new Column(value, "NULL DOUBLE", "", "N");
+		case 4:
+			return new Column(value, "TINYINT", "", "N");
+		case 5:
+			return new Column(value, "SMALLINT", "", "N");
+		case 6:
+			return new Column(value, "INT", "", "N");
+		case 7:
+			return new Column(value, "BIGINT", "", "N");
+		case 8:
+			return new Column(value, "REAL", "", "N");
+		case 9:
+			return new Column(value, "DOUBLE", "", "N");
+		case 10:
+			return new Column(value, "DATETIME", "", "N");
+		case 11:
+			return new Column(value, "DATE", "", "N");
+		case 12:
+			return new Column(value, "TEXT", "", "Y");
+		default:
+			return new Column(value, "TEXT", "", "N");
+		}
+	}
+
+	/**
+	 * The columns at the given ordinal positions, or all of them if
+	 * <code>columns</code> is null.
+	 */
+	List<Column> toRow(List<Integer> columns) {
+		List<Column> tuple = new ArrayList<>(columns == null ? columnCount : columns.size());
+		if (columns == null)
+			for (int position = 1; position <= columnCount; position++)
+				tuple.add(getColumn(position));
+		else
+			for (int position : columns)
+				tuple.add(getColumn(position));
+		return tuple;
+	}
+}
@@ -0,0 +1,423 @@
+package edu.arun;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts the rows of a cursor for ORDER BY. Rows are sorted in memory until
+ * they take more than the memory budget, then each sorted run is written to
+ * a file under data and the runs are merged, up to {@link #MERGE_WIDTH} at
+ * a time, as the result is read. With a LIMIT only the first rows are kept,
+ * in a heap of at most that many rows.
+ * <p>
+ * NULLs come first, TEXT compares without regard to case and rows that
+ * compare equal keep the order the cursor returned them in.
+ */
+class Sorter {
+
+	/**
+	 * Memory the rows of a sort may take before they are written to runs,
+	 * unless -Ddavisbase.sortMemory says otherwise.
+	 */
+	static final long DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+	private static long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+	/**
+	 * Most runs merged at once. More runs are first merged into longer ones.
+	 */
+	static final int MERGE_WIDTH = 64;
+
+	/**
+	 * Index in the row of each column sorted on.
+	 */
+	private final int[] keys;
+
+	private final boolean[] ascending;
+
+	/**
+	 * Number of columns of the rows returned, the columns past them are only
+	 * read to sort on.
+	 */
+	private final int width;
+
+	// Order of the rows, the order they came in for rows with equal keys
+	private final Comparator<Entry> order = (a, b) -> {
+		int c = compareKeys(a.keys, b.keys);
+		return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+	};
+
+	private long sequence;
+
+	/**
+	 * A row with the values it is sorted on.
+	 */
+	private static class Entry {
+		final Comparable<?>[] keys;
+
+		final List<Column> row;
+
+		final long sequence;
+
+		Entry(Comparable<?>[] keys, List<Column> row, long sequence) {
+			this.keys = keys;
+			this.row = row;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Rows in order, one at a time.
+	 */
+	private interface Entries {
+		/**
+		 * Returns the next row, or null when there is none.
+		 */
+		Entry next() throws IOException;
+	}
+
+	Sorter(int[] keys, boolean[] ascending, int width) {
+		this.keys = keys;
+		this.ascending = ascending;
+		this.width = width;
+	}
+
+	static void setMemoryBudget(long bytes) {
+		memoryBudget = bytes;
+	}
+
+	/**
+	 * A cursor over the rows of <code>rows</code> in order, which is read to
+	 * the end and closed first.
+	 */
+	Cursor sort(Cursor rows) throws IOException {
+		List<Entry> buffer = new ArrayList<>();
+		List<File> runs = new ArrayList<>();
+		try {
+			long used = 0;
+			List<Column> row;
+			while ((row = rows.next()) != null) {
+				buffer.add(entry(row));
+				used += size(row);
+				if (used > memoryBudget) {
+					buffer.sort(order);
+					runs.add(writeRun(entries(buffer)));
+					buffer.clear();
+					used = 0;
+				}
+			}
+			buffer.sort(order);
+			if (runs.isEmpty())
+				return cursor(entries(buffer));
+			runs.add(writeRun(entries(buffer)));
+			buffer = null;
+			// The runs merged first replace them at the front, so rows with
+			// equal keys stay in the order they came in
+			while (runs.size() > MERGE_WIDTH) {
+				List<File> merged = new ArrayList<>(runs.subList(0, MERGE_WIDTH));
+				Merge merge = new Merge(merged);
+				File run;
+				try {
+					run = writeRun(merge);
+				} finally {
+					merge.close();
+				}
+				runs.subList(0, MERGE_WIDTH).clear();
+				runs.add(0, run);
+			}
+			return cursor(new Merge(runs));
+		} catch (IOException | RuntimeException e) {
+			for (File run : runs)
+				run.delete();
+			throw e;
+		} finally {
+			rows.close();
+		}
+	}
+
+	/**
+	 * A cursor over the first <code>count</code> rows of <code>rows</code>
+	 * in order past the first <code>offset</code>. Only that many rows are
+	 * kept while <code>rows</code> is read to the end and closed. If they
+	 * take more than the memory budget every row is sorted with
+	 * {@link #sort(Cursor)} instead and the first ones are skipped.
+	 */
+	Cursor top(Cursor rows, long offset, long count) throws IOException {
+		long n = offset + count;
+		// The last row kept on top, to be pushed out by a row before it
+		PriorityQueue<Entry> heap = new PriorityQueue<>((int) Math.min(Math.max(n, 1), 1024), order.reversed());
+		try {
+			long used = 0;
+			List<Column> row;
+			while (n > 0 && (row = rows.next()) != null) {
+				Entry entry = entry(row);
+				if (heap.size() < n) {
+					heap.add(entry);
+					used += size(row);
+					// No row was pushed out yet, the heap holds every row read
+					if (used > memoryBudget) {
+						List<Entry> read = new ArrayList<>(heap);
+						read.sort(Comparator.comparingLong(e -> e.sequence));
+						heap = null;
+						return Cursor.limit(sort(concat(read, rows)), offset, count);
+					}
+				} else if (order.compare(entry, heap.peek()) < 0) {
+					heap.poll();
+					heap.add(entry);
+				}
+			}
+		} finally {
+			rows.close();
+		}
+		List<Entry> first = new ArrayList<>(heap);
+		first.sort(order);
+		return cursor(entries(first.subList((int) Math.min(offset, first.size()), first.size())));
+	}
+
+	private Entry entry(List<Column> row) {
+		Comparable<?>[] values = new Comparable<?>[keys.length];
+		for (int k = 0; k < keys.length; k++)
+			values[k] = key(row.get(keys[k]));
+		return new Entry(values, row, sequence++);
+	}
+
+	/**
+	 * The value of the column to sort on, null for NULL. A sort on something
+	 * other than the values of the columns overrides it.
+	 */
+	Comparable<?> key(Column column) {
+		String value = column.column;
+		String type = column.type == null ? "" : column.type;
+		if (value == null || value.equalsIgnoreCase("NULL") || type.startsWith("NULL"))
+			return null;
+		try {
+			switch (type) {
+			case "TINYINT":
+			case "SMALLINT":
+			case "INT":
+			case "BIGINT":
+				return Long.valueOf(value);
+			case "REAL":
+			case "DOUBLE":
+				return Double.valueOf(value);
+			case "DATETIME":
+				return ZonedDateTime.parse(value).toEpochSecond();
+			case "DATE":
+				return value;
+			default:
+				return value.isEmpty() ? null : value.toLowerCase();
+			}
+		} catch (RuntimeException e) {
+			// A value not of its type sorts as text
+			return value.toLowerCase();
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private int compareKeys(Comparable<?>[] a, Comparable<?>[] b) {
+		for (int k = 0; k < a.length; k++) {
+			Comparable x = a[k], y = b[k];
+			int c;
+			if (x == null || y == null)
+				c = x == null ? (y == null ? 0 : -1) : 1;
+			else if (x.getClass() == y.getClass())
+				c = x.compareTo(y);
+			else if (x instanceof Number && y instanceof Number)
+				c = Double.compare(((Number) x).doubleValue(), ((Number) y).doubleValue());
+			else
+				c = x.toString().compareTo(y.toString());
+			if (c != 0)
+				return ascending[k] ? c : -c;
+		}
+		return 0;
+	}
+
+	// Rough number of bytes the row takes in memory
+	private static long size(List<Column> row) {
+		long size = 64;
+		for (Column column : row)
+			size += 48 + 2 * (column.column == null ? 0 : column.column.length());
+		return size;
+	}
+
+	// The rows already read, in the order they came in, then the rest of
+	// the cursor
+	private static Cursor concat(List<Entry> read, Cursor rows) {
+		Iterator<Entry> iterator = read.iterator();
+		return new Cursor() {
+			@Override
+			public List<Column> next() throws IOException {
+				return iterator.hasNext() ? iterator.next().row : rows.next();
+			}
+
+			@Override
+			public void close() {
+				rows.close();
+			}
+		};
+	}
+
+	private static Entries entries(List<Entry> entries) {
+		Iterator<Entry> iterator = entries.iterator();
+		return () -> iterator.hasNext() ? iterator.next() : null;
+	}
+
+	// A cursor over the rows, closing a merge when done
+	private Cursor cursor(Entries entries) {
+		return new Cursor() {
+			private boolean closed;
+
+			@Override
+			public List<Column> next() throws IOException {
+				Entry entry = closed ? null : entries.next();
+				if (entry != null)
+					return cut(entry.row);
+				close();
+				return null;
+			}
+
+			@Override
+			public void close() {
+				if (!closed && entries instanceof Merge)
+					((Merge) entries).close();
+				closed = true;
+			}
+		};
+	}
+
+	// The row without the columns only read to sort on
+	private List<Column> cut(List<Column> row) {
+		return row.size() > width ? row.subList(0, width) : row;
+	}
+
+	// Write the rows in the order given to a new run
+	private File writeRun(Entries entries) throws IOException {
+		File data = new File("data");
+		data.mkdirs();
+		File file = File.createTempFile("sort", ".tmp", data);
+		file.deleteOnExit();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			Entry entry;
+			while ((entry = entries.next()) != null) {
+				List<Column> row = entry.row;
+				out.writeInt(row.size());
+				for (Column column : row) {
+					out.writeBoolean(column.column != null);
+					if (column.column != null)
+						out.writeUTF(column.column);
+					out.writeUTF(column.type == null ? "" : column.type);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			file.delete();
+			throw e;
+		}
+		return file;
+	}
+
+	/**
+	 * The rows of a run, read back one at a time.
+	 */
+	private class Run {
+		private final File file;
+
+		private final DataInputStream in;
+
+		// Position of the run among those merged, to keep equal rows in order
+		private final int index;
+
+		Entry current;
+
+		Run(File file, int index) throws IOException {
+			this.file = file;
+			this.index = index;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+
+		// Move to the next row, false at the end of the run
+		boolean advance() throws IOException {
+			int size;
+			try {
+				size = in.readInt();
+			} catch (EOFException e) {
+				current = null;
+				return false;
+			}
+			List<Column> row = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				String value = in.readBoolean() ? in.readUTF() : null;
+				row.add(new Column(value, in.readUTF(), "", ""));
+			}
+			current = entry(row);
+			return true;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+			file.delete();
+		}
+	}
+
+	/**
+	 * The rows of several runs merged in order, each run deleted once it is
+	 * read.
+	 */
+	private class Merge implements Entries {
+		private final PriorityQueue<Run> heap;
+
+		private final List<Run> runs = new ArrayList<>();
+
+		Merge(List<File> files) throws IOException {
+			heap = new PriorityQueue<>(Math.max(files.size(), 1), (a, b) -> {
+				int c = compareKeys(a.current.keys, b.current.keys);
+				return c != 0 ? c : Integer.compare(a.index, b.index);
+			});
+			try {
+				for (File file : files) {
+					Run run = new Run(file, runs.size());
+					runs.add(run);
+					if (run.advance())
+						heap.add(run);
+				}
+			} catch (IOException | RuntimeException e) {
+				close();
+				for (File file : files)
+					file.delete();
+				throw e;
+			}
+		}
+
+		@Override
+		public Entry next() throws IOException {
+			Run run = heap.poll();
+			if (run == null)
+				return null;
+			Entry entry = run.current;
+			if (run.advance())
+				heap.add(run);
+			return entry;
+		}
+
+		void close() {
+			heap.clear();
+			for (Run run : runs)
+				run.close();
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package edu.arun;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of open table handles, keyed by database and table name, so that a
+ * statement does not open the table file again. A handle keeps the
+ * {@link BTree} of the table, with its file header read once, the schema of
+ * the table and its open indexes.
+ * <p>
+ * Handles are reference counted: a statement acquires the handle of its
+ * table and releases it when it is done. Once the cache holds more handles
+ * than its capacity the least recently used ones that are not in use are
+ * closed. Handles are acquired between statements, after the previous one
+ * has committed, so a handle is never closed while its pages hold changes
+ * that are not committed. DROP TABLE and DROP DATABASE invalidate the
+ * handles of the files they delete.
+ */
+class TableCache {
+
+	/**
+	 * Default number of table handles kept open.
+	 */
+	static final int DEFAULT_CAPACITY = 64;
+
+	private static TableCache instance;
+
+	private static int capacity = DEFAULT_CAPACITY;
+
+	/**
+	 * An open table.
+	 */
+	static class Handle {
+		final String database;
+		final String tableName;
+		final BTree tree;
+		/**
+		 * Schema of the table, taken from the {@link Catalog} on first use
+		 * and again whenever the catalog version has changed since.
+		 */
+		TableSchema schema;
+		long schemaVersion;
+		/**
+		 * The indexes of the table, opened along with the schema.
+		 */
+		List<IndexTree> indexes = Collections.emptyList();
+		private int refCount;
+		/**
+		 * Dropped while in use, closed when the last user releases it.
+		 */
+		private boolean invalidated;
+
+		private Handle(String database, String tableName, BTree tree) {
+			this.database = database;
+			this.tableName = tableName;
+			this.tree = tree;
+		}
+
+		private void close() throws IOException {
+			tree.close();
+			for (IndexTree index : indexes)
+				index.close();
+		}
+	}
+
+	/**
+	 * Handles in access order, the least recently used first.
+	 */
+	private final Map<String, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long hits = 0, misses = 0;
+
+	private TableCache() {
+	}
+
+	static synchronized TableCache getInstance() {
+		if (instance == null)
+			instance = new TableCache();
+		return instance;
+	}
+
+	/**
+	 * Sets the number of handles kept open. Takes effect on the next miss.
+	 */
+	static synchronized void setCapacity(int handles) {
+		capacity = handles;
+	}
+
+	static synchronized int getCapacity() {
+		return capacity;
+	}
+
+	private static String key(String database, String tableName) {
+		return database + "\\" + tableName;
+	}
+
+	/**
+	 * Returns the handle of the table, opening the table file if it is not
+	 * cached. <code>pageSize</code> is only used for a new file. The handle
+	 * has to be given back with {@link #release(Handle)}.
+	 */
+	synchronized Handle acquire(String database, String tableName, long pageSize) throws IOException {
+		String key = key(database, tableName);
+		Handle handle = handles.get(key);
+		if (handle != null)
+			hits++;
+		else {
+			misses++;
+			evict(getCapacity() - 1);
+			handle = new Handle(database, tableName, new BTree(key, pageSize));
+			handles.put(key, handle);
+		}
+		handle.refCount++;
+		return handle;
+	}
+
+	/**
+	 * Add the handle of a table the caller keeps open itself, such as a
+	 * catalog table, so that statements share its tree. The handle is never
+	 * evicted; {@link #closeAll()} closes it.
+	 */
+	synchronized void register(String database, String tableName, BTree tree) {
+		Handle handle = new Handle(database, tableName, tree);
+		handle.refCount = 1;
+		handles.put(key(database, tableName), handle);
+	}
+
+	synchronized void release(Handle handle) throws IOException {
+		if (--handle.refCount == 0 && handle.invalidated)
+			handle.close();
+	}
+
+	// Close the least recently used handles that are not in use until at
+	// most `size` are left
+	private void evict(int size) throws IOException {
+		Iterator<Handle> it = handles.values().iterator();
+		while (handles.size() > size && it.hasNext()) {
+			Handle handle = it.next();
+			if (handle.refCount == 0) {
+				it.remove();
+				handle.close();
+			}
+		}
+	}
+
+	/**
+	 * Forget the handle of a table that is being dropped or recreated.
+	 */
+	synchronized void invalidate(String database, String tableName) throws IOException {
+		invalidate(handles.remove(key(database, tableName)));
+	}
+
+	/**
+	 * Forget the handles of every table of a database that is being dropped.
+	 */
+	synchronized void invalidateDatabase(String database) throws IOException {
+		List<Handle> dropped = new ArrayList<>();
+		for (Handle handle : handles.values())
+			if (handle.database.equals(database))
+				dropped.add(handle);
+		for (Handle handle : dropped) {
+			handles.remove(key(handle.database, handle.tableName));
+			invalidate(handle);
+		}
+	}
+
+	private void invalidate(Handle handle) throws IOException {
+		if (handle == null)
+			return;
+		handle.invalidated = true;
+		if (handle.refCount == 0)
+			handle.close();
+	}
+
+	/**
+	 * Close every handle that is not in use, so that the tables are opened
+	 * again from their pages. Called after a statement was rolled back, when
+	 * the trees may hold headers its pages no longer match.
+	 */
+	synchronized void closeUnused() throws IOException {
+		evict(0);
+	}
+
+	/**
+	 * Close every handle, called on exit once the pages have been
+	 * checkpointed.
+	 */
+	synchronized void closeAll() throws IOException {
+		for (Handle handle : handles.values())
+			handle.close();
+		handles.clear();
+	}
+
+	synchronized int size() {
+		return handles.size();
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,68 @@
+package edu.arun;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The columns of a table, built once from its rows in davisbase_columns.
+ */
+class TableSchema {
+	final String database;
+	final String tableName;
+	/**
+	 * Columns by ordinal position, the primary key first.
+	 */
+	final List<ColumnSchema> columns;
+	private final Map<String, ColumnSchema> byName = new HashMap<>();
+	/**
+	 * The rows of davisbase_columns the schema was built from, sorted by
+	 * ordinal position, in the form the result printer takes them.
+	 */
+	final List<List<Column>> rows;
+
+	/**
+	 * Build the schema from rows of davisbase_columns: rowid, table_name,
+	 * column_name, data_type, ordinal_position, is_nullable, column_key and
+	 * database_name.
+	 */
+	TableSchema(String database, String tableName, List<List<Column>> rows) {
+		this.database = database;
+		this.tableName = tableName;
+		rows.sort((a, b) -> Integer.compare(Integer.parseInt(a.get(4).column), Integer.parseInt(b.get(4).column)));
+		ColumnSchema[] columns = new ColumnSchema[rows.size()];
+		int i = 0;
+		for (List<Column> row : rows) {
+			ColumnSchema column = new ColumnSchema(row.get(2).column, row.get(3).column,
+					Integer.parseInt(row.get(4).column), row.get(5).column.equals("Y"), row.get(6).column.equals("PRI"));
+			columns[i++] = column;
+			byName.put(column.name, column);
+		}
+		this.columns = Collections.unmodifiableList(Arrays.asList(columns));
+		this.rows = Collections.unmodifiableList(rows);
+	}
+
+	/**
+	 * Returns the column of the given name, or null if there is none.
+	 */
+	ColumnSchema getColumn(String name) {
+		return byName.get(name.toLowerCase());
+	}
+
+	/**
+	 * Ordinal position of the column, 0 if there is no such column. rowid
+	 * always names the primary key.
+	 */
+	int getOrdinalPosition(String name) {
+		if (name.equalsIgnoreCase("rowid"))
+			return 1;
+		ColumnSchema column = getColumn(name);
+		return column == null ? 0 : column.ordinalPosition;
+	}
+
+	int size() {
+		return columns.size();
+	}
+}
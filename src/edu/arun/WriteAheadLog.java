@@ -0,0 +1,385 @@
+package edu.arun;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of a database, kept in wal.log in the database directory.
+ * <p>
+ * The changes of a statement are logged as a redo record with the image of
+ * every page it modified, then a commit record. Most pages are logged when
+ * the statement commits; a page the {@link BufferPool} has to evict before
+ * that is logged then, and read back from the log when it is needed again.
+ * Records are written to the file as they are appended and made durable by
+ * {@link #flush(long)}. Commits that arrive while another thread is forcing
+ * the log wait for it and are then forced together, one fsync for the whole
+ * group. Every record carries its log sequence number (LSN), the position of
+ * its end in everything the database has logged.
+ * <p>
+ * The {@link BufferPool} only writes a page back to its table file once the
+ * records of the page are durable, and never while the page holds changes
+ * that are not committed. A checkpoint writes the committed pages back and
+ * empties the log. When a log that is not empty is opened, the database was
+ * not shut down cleanly and the committed page images are replayed. The
+ * pages of a statement that was rolled back are followed by an abort record
+ * and skipped. Truncating a table file cannot wait for the commit, so it is
+ * logged and forced right away.
+ */
+class WriteAheadLog {
+
+	static final byte PAGE_RECORD = 1;
+
+	static final byte COMMIT_RECORD = 2;
+
+	static final byte TRUNCATE_RECORD = 3;
+
+	static final byte ABORT_RECORD = 4;
+
+	/**
+	 * Default size the log may grow to before it is checkpointed, 16 MB.
+	 */
+	static final long DEFAULT_CHECKPOINT_SIZE = 16L * 1024 * 1024;
+
+	private static long checkpointSize = DEFAULT_CHECKPOINT_SIZE;
+
+	private static final Map<String, WriteAheadLog> logs = new HashMap<>();
+
+	private final String path;
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	/**
+	 * LSN of the first byte of the log file, LSNs keep growing when the log
+	 * is emptied by a checkpoint.
+	 */
+	private long baseLsn = 0;
+
+	private long appendedLsn = 0;
+
+	private long flushedLsn = 0;
+
+	/**
+	 * True while a thread is forcing the records written so far.
+	 */
+	private boolean flushing = false;
+
+	private long forces = 0;
+
+	private WriteAheadLog(String path) throws IOException {
+		this.path = path;
+		this.file = new RandomAccessFile(path, "rw");
+		this.channel = file.getChannel();
+		if (file.length() > 0)
+			recover();
+	}
+
+	static synchronized void setCheckpointSize(long bytes) {
+		checkpointSize = bytes;
+	}
+
+	static synchronized long getCheckpointSize() {
+		return checkpointSize;
+	}
+
+	/**
+	 * Returns the log of the database the table file belongs to, opening it
+	 * and replaying it first if needed.
+	 */
+	static WriteAheadLog forFile(String tablePath) throws IOException {
+		return forDirectory(directoryOf(tablePath));
+	}
+
+	static synchronized WriteAheadLog forDirectory(String directory) throws IOException {
+		WriteAheadLog log = logs.get(directory);
+		if (log == null) {
+			log = new WriteAheadLog(directory + "\\wal.log");
+			logs.put(directory, log);
+		}
+		return log;
+	}
+
+	/**
+	 * Returns the logs opened so far.
+	 */
+	static synchronized List<WriteAheadLog> openLogs() {
+		return new ArrayList<>(logs.values());
+	}
+
+	static String directoryOf(String tablePath) {
+		int i = tablePath.lastIndexOf('\\');
+		return i < 0 ? "." : tablePath.substring(0, i);
+	}
+
+	/**
+	 * Close and delete the log of a database that is being dropped.
+	 */
+	static synchronized void drop(String directory) throws IOException {
+		WriteAheadLog log = logs.remove(directory);
+		if (log != null)
+			log.file.close();
+		new File(directory + "\\wal.log").delete();
+	}
+
+	/**
+	 * Append the image of a page. Returns the LSN of the record.
+	 */
+	synchronized long appendPage(String tablePath, int pageNumber, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + tablePath.length() + 8);
+		DataOutputStream body = new DataOutputStream(bytes);
+		body.writeUTF(tablePath);
+		body.writeInt(pageNumber);
+		body.write(data);
+		return append(PAGE_RECORD, bytes.toByteArray());
+	}
+
+	/**
+	 * Append a commit record for the pages appended so far. Returns its LSN,
+	 * which has to be passed to {@link #flush(long)} to make the commit
+	 * durable.
+	 */
+	synchronized long appendCommit() throws IOException {
+		return append(COMMIT_RECORD, new byte[0]);
+	}
+
+	/**
+	 * Append an abort record: the pages appended since the last commit
+	 * belong to a statement that was rolled back.
+	 */
+	synchronized void appendAbort() throws IOException {
+		append(ABORT_RECORD, new byte[0]);
+	}
+
+	/**
+	 * Read the page image of the record with the given LSN, which has to be
+	 * in the log still, into <code>data</code>.
+	 */
+	synchronized void readPage(long lsn, byte[] data) throws IOException {
+		ByteBuffer bytes = ByteBuffer.wrap(data);
+		// The image ends right before the CRC of its record
+		long position = lsn - baseLsn - 4 - data.length;
+		while (bytes.hasRemaining())
+			if (channel.read(bytes, position + bytes.position()) < 0)
+				throw new EOFException("Page image past the end of " + path);
+	}
+
+	/**
+	 * Log that a table file is cut to the given length and force the log,
+	 * the file may be truncated once this returns.
+	 */
+	void logTruncate(String tablePath, long length) throws IOException {
+		long lsn;
+		synchronized (this) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream body = new DataOutputStream(bytes);
+			body.writeUTF(tablePath);
+			body.writeLong(length);
+			lsn = append(TRUNCATE_RECORD, bytes.toByteArray());
+		}
+		flush(lsn);
+	}
+
+	// Record layout: LSN, type, length of the body, body and a CRC32 of the
+	// type, length and body, so that a record torn by a crash is detected.
+	// The record is written to the end of the file right away.
+	private long append(byte type, byte[] body) throws IOException {
+		long lsn = appendedLsn + 8 + 1 + 4 + body.length + 4;
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(ByteBuffer.allocate(4).putInt(body.length).array());
+		crc.update(body);
+		ByteBuffer record = ByteBuffer.allocate((int) (lsn - appendedLsn));
+		record.putLong(lsn);
+		record.put(type);
+		record.putInt(body.length);
+		record.put(body);
+		record.putInt((int) crc.getValue());
+		record.flip();
+		long position = appendedLsn - baseLsn;
+		while (record.hasRemaining())
+			channel.write(record, position + record.position());
+		appendedLsn = lsn;
+		return lsn;
+	}
+
+	/**
+	 * Make every record up to the given LSN durable. The thread that finds
+	 * the log idle forces everything written so far, including the records
+	 * of other threads, with a single fsync; threads arriving in the
+	 * meantime wait and are covered by the next force.
+	 */
+	void flush(long lsn) throws IOException {
+		long upTo;
+		synchronized (this) {
+			while (flushing && flushedLsn < lsn)
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the log to be flushed", e);
+				}
+			if (flushedLsn >= lsn || flushedLsn >= appendedLsn)
+				return;
+			flushing = true;
+			upTo = appendedLsn;
+		}
+		try {
+			channel.force(false);
+		} finally {
+			synchronized (this) {
+				flushing = false;
+				forces++;
+				if (upTo > flushedLsn)
+					flushedLsn = upTo;
+				notifyAll();
+			}
+		}
+	}
+
+	synchronized long getFlushedLsn() {
+		return flushedLsn;
+	}
+
+	/**
+	 * LSN of the first byte of the log file. The records with a higher LSN
+	 * are still in the log.
+	 */
+	synchronized long getBaseLsn() {
+		return baseLsn;
+	}
+
+	/**
+	 * Number of bytes logged since the last checkpoint.
+	 */
+	synchronized long size() {
+		return appendedLsn - baseLsn;
+	}
+
+	boolean needsCheckpoint() {
+		return size() > getCheckpointSize();
+	}
+
+	synchronized long getForces() {
+		return forces;
+	}
+
+	/**
+	 * Empty the log. Called by the checkpoint once the pages it covers have
+	 * been written back and forced to disk.
+	 */
+	void reset() throws IOException {
+		flush(Long.MAX_VALUE);
+		synchronized (this) {
+			channel.truncate(0);
+			channel.force(false);
+			baseLsn = appendedLsn;
+		}
+	}
+
+	// Redo the committed statements of a log left behind by a crash. Page
+	// images are applied in log order when their commit record is reached,
+	// the records after the last commit belong to a statement that never
+	// finished and are ignored, like those followed by an abort record. Only
+	// the positions of the pages of a statement are kept until its commit
+	// record, the images are read again from the log then. Records of table
+	// files that no longer exist are skipped, those files were dropped later
+	// on.
+	private void recover() throws IOException {
+		Map<String, RandomAccessFile> files = new HashMap<>();
+		List<long[]> pending = new ArrayList<>();
+		int statements = 0;
+		long position = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+			while (true) {
+				in.readLong();
+				byte type = in.readByte();
+				int length = in.readInt();
+				if (length < 0 || length > file.length())
+					break;
+				byte[] body = new byte[length];
+				in.readFully(body);
+				CRC32 crc = new CRC32();
+				crc.update(type);
+				crc.update(ByteBuffer.allocate(4).putInt(length).array());
+				crc.update(body);
+				if (in.readInt() != (int) crc.getValue())
+					break;
+				if (type == PAGE_RECORD)
+					pending.add(new long[] { position + 8 + 1 + 4, length });
+				else if (type == COMMIT_RECORD) {
+					for (long[] page : pending) {
+						byte[] image = new byte[(int) page[1]];
+						file.seek(page[0]);
+						file.readFully(image);
+						redoPage(files, image);
+					}
+					pending.clear();
+					statements++;
+				} else if (type == ABORT_RECORD)
+					pending.clear();
+				else if (type == TRUNCATE_RECORD)
+					redoTruncate(files, body);
+				else
+					break;
+				position += 8 + 1 + 4 + length + 4;
+			}
+		} catch (EOFException e) {
+			// The last record was cut short by the crash
+		} finally {
+			for (RandomAccessFile f : files.values()) {
+				f.getFD().sync();
+				f.close();
+			}
+		}
+		channel.truncate(0);
+		channel.force(false);
+		System.out.println("Recovered " + statements + " committed statements from " + path);
+	}
+
+	private static RandomAccessFile open(Map<String, RandomAccessFile> files, String tablePath) throws IOException {
+		RandomAccessFile f = files.get(tablePath);
+		if (f == null && new File(tablePath).exists()) {
+			f = new RandomAccessFile(tablePath, "rw");
+			files.put(tablePath, f);
+		}
+		return f;
+	}
+
+	private static void redoPage(Map<String, RandomAccessFile> files, byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		String tablePath = in.readUTF();
+		int pageNumber = in.readInt();
+		byte[] data = new byte[in.available()];
+		in.readFully(data);
+		RandomAccessFile f = open(files, tablePath);
+		if (f != null) {
+			f.seek((long) pageNumber * data.length);
+			f.write(data);
+		}
+	}
+
+	private static void redoTruncate(Map<String, RandomAccessFile> files, byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		String tablePath = in.readUTF();
+		long length = in.readLong();
+		RandomAccessFile f = open(files, tablePath);
+		if (f != null && f.length() > length)
+			f.setLength(length);
+	}
+}